@@ -0,0 +1,137 @@
+package Hn;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Free lists of buffers in a few size classes, shared by all connections.
+ *
+ * <p>Connections borrow a buffer only while it holds data and give it back
+ * as soon as it is empty, so memory follows the number of connections that
+ * are busy right now rather than the number connected. A request is served
+ * from the smallest class that fits it; one larger than every class gets a
+ * buffer of its own that is not kept. At most {@code maxIdleBytes} of idle
+ * buffers are kept per class; beyond that returned buffers are left to the
+ * garbage collector.
+ *
+ * <p>Hits, misses and the buffers currently borrowed are counted so that the
+ * classes and the idle limit can be tuned from {@link ServerMetrics}.
+ */
+public final class BufferPool {
+
+    private final String name;
+    private final boolean direct;
+    private final int[] sizes;
+    private final int[] maxPooled;
+    private final List<ConcurrentLinkedQueue<ByteBuffer>> free;
+    private final AtomicInteger[] pooled;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder borrowed = new LongAdder();
+    private final LongAdder borrowedBytes = new LongAdder();
+
+    /**
+     * @param direct whether to hand out direct buffers, for channels, or
+     *        array-backed ones, for streams
+     * @param sizes the size classes, in bytes
+     */
+    public BufferPool(String name, boolean direct, int maxIdleBytes, int... sizes) {
+        this.name = name;
+        this.direct = direct;
+        this.sizes = sizes.clone();
+        Arrays.sort(this.sizes);
+        this.maxPooled = new int[sizes.length];
+        this.free = new ArrayList<>(sizes.length);
+        this.pooled = new AtomicInteger[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            maxPooled[i] = maxIdleBytes / this.sizes[i];
+            free.add(new ConcurrentLinkedQueue<>());
+            pooled[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * A cleared buffer of at least {@code minSize} bytes; its capacity may
+     * be larger and its limit is the capacity.
+     */
+    public ByteBuffer acquire(int minSize) {
+        int index = classOf(minSize);
+        int size = index < sizes.length ? sizes[index] : minSize;
+        ByteBuffer buffer = index < sizes.length ? free.get(index).poll() : null;
+        if (buffer == null) {
+            misses.increment();
+            buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        } else {
+            hits.increment();
+            pooled[index].decrementAndGet();
+            buffer.clear();
+        }
+        borrowed.increment();
+        borrowedBytes.add(size);
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer from {@link #acquire} back; the caller must not touch it
+     * afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        int size = buffer.capacity();
+        borrowed.decrement();
+        borrowedBytes.add(-size);
+        int index = classOf(size);
+        if (index == sizes.length || sizes[index] != size) {
+            return;
+        }
+        if (pooled[index].incrementAndGet() <= maxPooled[index]) {
+            free.get(index).offer(buffer);
+        } else {
+            pooled[index].decrementAndGet();
+        }
+    }
+
+    private int classOf(int size) {
+        int index = 0;
+        while (index < sizes.length && sizes[index] < size) {
+            index++;
+        }
+        return index;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** Requests served from a free list. */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /** Requests that had to allocate. */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** Buffers borrowed and not yet given back. */
+    public long getBorrowed() {
+        return borrowed.sum();
+    }
+
+    public long getBorrowedBytes() {
+        return borrowedBytes.sum();
+    }
+
+    /** Bytes of buffers waiting in the free lists. */
+    public long getIdleBytes() {
+        long bytes = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            bytes += (long) pooled[i].get() * sizes[i];
+        }
+        return bytes;
+    }
+}
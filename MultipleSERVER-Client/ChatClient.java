@@ -6,15 +6,31 @@ import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.net.*;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.net.ssl.SSLContext;
 
 public class ChatClient extends JFrame {
 
     private static final String SERVER_HOST = "localhost";
     private static final int SERVER_PORT = 5000;
+    // Run with -Dchat.tls=true (and -Djavax.net.ssl.trustStore=... for a
+    // self-signed server certificate) to connect over TLS
+    private static final boolean USE_TLS = Boolean.getBoolean("chat.tls");
+    // Lines kept in the chat area, and how often it is redrawn at most;
+    // -Dchat.scrollback and -Dchat.fps
+    private static final int SCROLLBACK_LINES = Integer.getInteger("chat.scrollback", 5000);
+    private static final int RENDER_FPS = Integer.getInteger("chat.fps", 30);
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+    // A dropped connection is retried after a random delay of up to
+    // RECONNECT_BASE_MILLIS, doubling per attempt up to RECONNECT_MAX_MILLIS,
+    // so that clients dropped together do not all come back at once
+    private static final long RECONNECT_BASE_MILLIS = 250;
+    private static final long RECONNECT_MAX_MILLIS = 10000;
+    private static final long RECONNECT_GIVE_UP_MILLIS = 60000;
 
     private JTextArea chatArea;
+    private MessageFeed feed;
     private JTextField messageField;
     private JTextField usernameField;
     private JButton sendButton;
@@ -23,14 +39,13 @@ public class ChatClient extends JFrame {
     private JLabel statusLabel;
     private JLabel connectionIndicator;
     private JList<String> userList;
+    // Sorted by username; entries read "name" or "name (status)"
     private DefaultListModel<String> userListModel;
 
-    private Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
+    // Replaced by the listener thread when it reconnects
+    private volatile ChatConnection connection;
     private String username;
-    private boolean isConnected = false;
-    private SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss");
+    private volatile boolean isConnected = false;
 
     public ChatClient() {
         initializeGUI();
@@ -131,6 +146,7 @@ public class ChatClient extends JFrame {
         chatArea.setBackground(Color.WHITE);
         chatArea.setForeground(new Color(30, 41, 59));
         chatArea.setMargin(new Insets(10, 10, 10, 10));
+        feed = new MessageFeed(chatArea, SCROLLBACK_LINES, RENDER_FPS);
 
         JScrollPane chatScroll = new JScrollPane(chatArea);
         chatScroll.setBorder(BorderFactory.createLineBorder(new Color(226, 232, 240), 1));
@@ -143,7 +159,7 @@ public class ChatClient extends JFrame {
         JMenuItem clearItem = new JMenuItem("Clear Chat");
 
         copyItem.addActionListener(e -> chatArea.copy());
-        clearItem.addActionListener(e -> chatArea.setText(""));
+        clearItem.addActionListener(e -> feed.clear());
 
         chatMenu.add(copyItem);
         chatMenu.addSeparator();
@@ -354,13 +370,12 @@ public class ChatClient extends JFrame {
         }
 
         try {
-            socket = new Socket();
-            socket.connect(new InetSocketAddress(SERVER_HOST, SERVER_PORT), 10000);
-
-            out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-            out.println(username);
+            // Ask for the binary protocol, compressed, the user list with its
+            // changes and a session to resume; everything we send from here
+            // on is framed
+            connection = ChatConnection.open(SERVER_HOST, SERVER_PORT, username, new ChatConnection.Options()
+                    .binary(true).compress(true).presence(true).resumable(true)
+                    .tls(tls()).timeoutMillis(CONNECT_TIMEOUT_MILLIS));
 
             isConnected = true;
             updateConnectionStatus(true);
@@ -382,15 +397,29 @@ public class ChatClient extends JFrame {
                     "Could not connect to server.\nMake sure the server is running!",
                     "Connection Failed",
                     JOptionPane.ERROR_MESSAGE);
+        } catch (NoSuchAlgorithmException e) {
+            appendMessage("System", "TLS is not available: " + e.getMessage());
         }
     }
 
+    private static SSLContext tls() throws NoSuchAlgorithmException {
+        return USE_TLS ? SSLContext.getDefault() : null;
+    }
+
     private void disconnect() {
         try {
+            if (isConnected && connection != null && !connection.isClosed()) {
+                // Log out, rather than leave the session for a reconnect
+                try {
+                    connection.sendLine("/quit");
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+            }
             isConnected = false;
 
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
+            if (connection != null) {
+                connection.close();
             }
 
             updateConnectionStatus(false);
@@ -402,6 +431,13 @@ public class ChatClient extends JFrame {
         }
     }
 
+    private void showReconnecting() {
+        SwingUtilities.invokeLater(() -> {
+            connectionIndicator.setForeground(new Color(250, 204, 21));
+            statusLabel.setText("Reconnecting...");
+        });
+    }
+
     private void updateConnectionStatus(boolean connected) {
         SwingUtilities.invokeLater(() -> {
             if (connected) {
@@ -433,85 +469,268 @@ public class ChatClient extends JFrame {
         });
     }
 
+    /**
+     * Runs on the connection's own thread. Frames are decoded and formatted
+     * here and handed to the feed, which draws them in batches; only user
+     * list changes go to the EDT one by one.
+     *
+     * <p>If the connection drops while the server keeps a session for it,
+     * this thread reconnects and resumes it, so that the chat carries on
+     * where it left off.
+     */
     private void listenForMessages() {
-        try {
-            String message;
-            while (isConnected && (message = in.readLine()) != null) {
-                final String msg = message;
-                SwingUtilities.invokeLater(() -> processMessage(msg));
-            }
-        } catch (SocketException e) {
-            if (isConnected) {
-                SwingUtilities.invokeLater(() -> {
-                    appendMessage("System", "Server closed the connection.");
-                    disconnect();
+        ChatConnection current = connection;
+        long reconnectingSince = 0;
+        while (true) {
+            ChatConnection listening = current;
+            boolean reconnected = reconnectingSince != 0;
+            boolean[] answered = {false};
+            String error;
+            try {
+                listening.listen(new ChatConnection.Listener() {
+                    @Override
+                    public void onFrame(FrameCodec.Frame frame) {
+                        processFrame(frame);
+                    }
+
+                    @Override
+                    public void onLine(String line) {
+                        processMessage(line);
+                    }
+
+                    @Override
+                    public void onSession(String token, boolean resumed) {
+                        answered[0] = true;
+                        sessionStarted(reconnected, resumed);
+                    }
                 });
+                error = "Server closed the connection.";
+            } catch (SocketException e) {
+                error = "Server closed the connection.";
+            } catch (IOException e) {
+                error = "Connection error: " + e.getMessage();
             }
-        } catch (IOException e) {
-            if (isConnected) {
+            if (!isConnected || connection != current) {
+                // Disconnected on purpose
+                return;
+            }
+            if (!current.canResume()) {
+                String reason = error;
                 SwingUtilities.invokeLater(() -> {
-                    appendMessage("System", "Connection error: " + e.getMessage());
+                    appendMessage("System", reason);
                     disconnect();
                 });
+                return;
             }
+            if (answered[0] || reconnectingSince == 0) {
+                // It was up again; a new drop starts a new round of retries
+                reconnectingSince = System.nanoTime();
+                appendMessage("System", error + " Reconnecting...");
+                showReconnecting();
+            }
+            ChatConnection next = reconnect(current, reconnectingSince);
+            if (next == null) {
+                if (isConnected && connection == current) {
+                    SwingUtilities.invokeLater(() -> {
+                        appendMessage("System", "Could not reconnect.");
+                        disconnect();
+                    });
+                }
+                return;
+            }
+            connection = next;
+            if (!isConnected) {
+                // Disconnected while it was being opened
+                try {
+                    next.close();
+                } catch (IOException e) {
+                    // Already going
+                }
+                return;
+            }
+            current = next;
+        }
+    }
+
+    /**
+     * Opens a connection that resumes {@code lost}'s session, retrying with
+     * exponential backoff and full jitter. Returns null if the user
+     * disconnected meanwhile or {@link #RECONNECT_GIVE_UP_MILLIS} have passed
+     * since {@code since}.
+     */
+    private ChatConnection reconnect(ChatConnection lost, long since) {
+        long giveUpAt = since + RECONNECT_GIVE_UP_MILLIS * 1_000_000L;
+        for (int attempt = 0; isConnected && connection == lost; attempt++) {
+            long ceiling = Math.min(RECONNECT_MAX_MILLIS, RECONNECT_BASE_MILLIS << Math.min(attempt, 10));
+            long delay = ThreadLocalRandom.current().nextLong(ceiling + 1);
+            if (System.nanoTime() + delay * 1_000_000L - giveUpAt > 0) {
+                return null;
+            }
+            try {
+                Thread.sleep(delay);
+                return lost.reconnect();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (IOException e) {
+                // Next attempt
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The server's answer to a connection: after a reconnect, either the
+     * session carries on or it had expired and this is a new login.
+     */
+    private void sessionStarted(boolean reconnected, boolean resumed) {
+        if (!reconnected) {
+            return;
+        }
+        updateConnectionStatus(true);
+        if (resumed) {
+            appendMessage("System", "Reconnected.");
+        } else {
+            appendMessage("System", "Reconnected, but the session had expired; messages sent meanwhile are lost.");
+        }
+    }
+
+    private void processFrame(FrameCodec.Frame frame) {
+        switch (frame.type) {
+            case SYSTEM:
+                appendMessage("System", frame.text);
+                break;
+            case PM_FROM:
+                appendMessage("Private", "[Private from " + frame.peer + "] " + frame.text);
+                break;
+            case PM_TO:
+                appendMessage("Chat", "[PM to " + frame.peer + "] " + frame.text);
+                break;
+            case USERLIST:
+                SwingUtilities.invokeLater(() -> updateUserList(frame.text));
+                break;
+            case PRESENCE:
+                SwingUtilities.invokeLater(() -> applyPresence(frame.text));
+                break;
+            case CLEAR:
+                feed.clear();
+                break;
+            default:
+                appendMessage("Chat", frame.text);
         }
     }
 
     private void processMessage(String message) {
         if (message.startsWith("[System]")) {
             appendMessage("System", message.substring(9));
-        } else if (message.startsWith("[PM from")) {
-            // Handle private messages
-            String pmPattern = "\\[PM from (.*?)\\] (.*)";
-            String pmMessage = message.replaceAll(pmPattern, "[Private from $1] $2");
-            appendMessage("Private", pmMessage);
+        } else if (message.startsWith("[PM from ") && message.indexOf("] ") > 0) {
+            // "[PM from <user>] <text>"; usernames cannot contain "] "
+            appendMessage("Private", "[Private from " + message.substring(9));
         } else if (message.startsWith("USERLIST:")) {
-            updateUserList(message.substring(9));
+            SwingUtilities.invokeLater(() -> updateUserList(message.substring(9)));
+        } else if (message.startsWith("PRESENCE:")) {
+            SwingUtilities.invokeLater(() -> applyPresence(message.substring(9)));
         } else if (message.equals("CLEAR_CHAT")) {
-            chatArea.setText("");
+            feed.clear();
         } else {
             appendMessage("Chat", message);
         }
     }
 
+    /**
+     * Adds a line to the chat; safe from any thread, drawn with the next
+     * batch.
+     */
     private void appendMessage(String type, String message) {
-        String time = "[" + timeFormat.format(new Date()) + "] ";
+        feed.post("System".equals(type) ? "[System] " + message : message);
+    }
 
-        switch (type) {
-            case "System":
-                chatArea.append(time + "[System] " + message + "\n");
-                break;
-            case "Chat":
-                chatArea.append(time + message + "\n");
-                break;
-            case "Private":
-                chatArea.append(time + message + "\n");
-                break;
+    /**
+     * Replaces the user list with a snapshot of {@code name} or
+     * {@code name:status} entries. Called on the EDT, in order with the
+     * deltas that follow it.
+     */
+    private void updateUserList(String userListStr) {
+        userListModel.clear();
+        java.util.List<String> users = new java.util.ArrayList<>();
+        for (String user : userListStr.split(",")) {
+            if (!user.trim().isEmpty()) {
+                users.add(user.trim());
+            }
+        }
+        // By name alone, the order findUser searches in: as whole entries,
+        // "bob0" would sort before "bob:away"
+        users.sort(java.util.Comparator.comparing(ChatClient::nameOf));
+        for (String user : users) {
+            userListModel.addElement(displayName(user));
         }
-
-        chatArea.setCaretPosition(chatArea.getDocument().getLength());
     }
 
-    private void updateUserList(String userListStr) {
-        SwingUtilities.invokeLater(() -> {
-            userListModel.clear();
-            String[] users = userListStr.split(",");
-            for (String user : users) {
-                if (!user.trim().isEmpty()) {
-                    userListModel.addElement(user.trim());
+    /**
+     * Applies a delta of {@code +name}, {@code +name:status} and
+     * {@code -name} entries in place, so that only the changed rows of the
+     * list are touched.
+     */
+    private void applyPresence(String delta) {
+        for (String entry : delta.split(",")) {
+            if (entry.length() < 2) {
+                continue;
+            }
+            String user = entry.substring(1);
+            int index = findUser(nameOf(user));
+            if (entry.charAt(0) == '-') {
+                if (index >= 0) {
+                    userListModel.remove(index);
                 }
+            } else if (index >= 0) {
+                userListModel.set(index, displayName(user));
+            } else {
+                userListModel.add(-index - 1, displayName(user));
             }
-        });
+        }
+    }
+
+    private static String nameOf(String entry) {
+        int colon = entry.indexOf(':');
+        return colon < 0 ? entry : entry.substring(0, colon);
+    }
+
+    private static String displayName(String entry) {
+        int colon = entry.indexOf(':');
+        return colon < 0 ? entry : entry.substring(0, colon) + " (" + entry.substring(colon + 1) + ")";
+    }
+
+    /**
+     * Binary search of the sorted list by username; returns the index, or
+     * {@code -(insertion point) - 1} if absent.
+     */
+    private int findUser(String name) {
+        int low = 0;
+        int high = userListModel.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            String shown = userListModel.get(mid);
+            int space = shown.indexOf(' ');
+            int cmp = (space < 0 ? shown : shown.substring(0, space)).compareTo(name);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -low - 1;
     }
 
     private void sendMessage() {
-        if (!isConnected || out == null) {
+        if (!isConnected || connection == null) {
             return;
         }
 
         String message = messageField.getText().trim();
         if (!message.isEmpty()) {
-            out.println(message);
+            sendLine(message);
             messageField.setText("");
 
             if (!message.startsWith("/")) {
@@ -521,8 +740,16 @@ public class ChatClient extends JFrame {
     }
 
     private void sendCommand(String command) {
-        if (isConnected && out != null) {
-            out.println(command);
+        if (isConnected && connection != null) {
+            sendLine(command);
+        }
+    }
+
+    private void sendLine(String line) {
+        try {
+            connection.sendLine(line);
+        } catch (IOException e) {
+            appendMessage("System", "Failed to send: " + e.getMessage());
         }
     }
 
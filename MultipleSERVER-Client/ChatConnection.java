@@ -0,0 +1,408 @@
+package Hn;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import javax.net.ssl.SSLContext;
+
+/**
+ * The client side of the chat protocol, without any user interface: connects,
+ * performs the handshake, sends lines and dispatches whatever the server
+ * sends. Used by {@link ChatClient} and {@link LoadGenerator}.
+ *
+ * <p>When asked for the binary protocol it sends the
+ * {@value FrameCodec#BINARY_HANDSHAKE} handshake and falls back to plain text
+ * lines if the server does not acknowledge it. Compression is requested the
+ * same way, with {@value FrameCodec#DEFLATE_HANDSHAKE}, and what the server
+ * sends is inflated if it agrees. A client that keeps a user list asks for
+ * {@value FrameCodec#PRESENCE_HANDSHAKE} updates.
+ *
+ * <p>A resumable connection asks for a session with
+ * {@value FrameCodec#SESSION_HANDSHAKE} and counts the frames it is sent
+ * after the server's {@code SESSION} frame. If it drops, {@link #reconnect}
+ * opens a new one that presents the token and the count, and the server
+ * carries on from the first frame the old one did not receive.
+ *
+ * <p>What is asked for is set in {@link Options}. Given an
+ * {@link SSLContext} there, the connection is made over TLS, and the
+ * TLS handshake completes within the connect timeout before the chat
+ * handshake is sent. Connections opened with the same context share its
+ * session cache, so reconnecting resumes the earlier session.
+ */
+public class ChatConnection implements Closeable {
+
+    private static final String SESSION_LINE = FrameCodec.toTextLine(FrameCodec.Type.SESSION, null, "");
+
+    /**
+     * Receives what the server sends, on the thread running {@link #listen}.
+     */
+    public interface Listener {
+        /** A frame of the binary protocol. */
+        default void onFrame(FrameCodec.Frame frame) {
+        }
+
+        /** A line of the text protocol, without its terminator. */
+        default void onLine(String line) {
+        }
+
+        /**
+         * The server's {@code SESSION} frame, before anything counted.
+         * {@code resumed} says whether the session presented by
+         * {@link #reconnect} was carried on, so that nothing was lost; if not,
+         * this is a new login.
+         */
+        default void onSession(String token, boolean resumed) {
+        }
+    }
+
+    /**
+     * What a connection asks the server for, and how it connects. Everything
+     * is off by default; the connect timeout is 5 seconds.
+     */
+    public static final class Options {
+        private boolean binary;
+        private boolean compress;
+        private boolean presence;
+        private boolean resumable;
+        private SSLContext tls;
+        private int timeoutMillis = 5000;
+
+        /** Whether to ask for the binary protocol. */
+        public Options binary(boolean on) {
+            binary = on;
+            return this;
+        }
+
+        /** Whether to ask for a compressed stream from the server. */
+        public Options compress(boolean on) {
+            compress = on;
+            return this;
+        }
+
+        /** Whether to be sent the user list and its changes. */
+        public Options presence(boolean on) {
+            presence = on;
+            return this;
+        }
+
+        /** Whether to ask for a session that {@link #reconnect} can resume. */
+        public Options resumable(boolean on) {
+            resumable = on;
+            return this;
+        }
+
+        /** A context to connect over TLS with, or null for plain TCP. */
+        public Options tls(SSLContext context) {
+            tls = context;
+            return this;
+        }
+
+        /** How long connecting, and the TLS handshake, may take. */
+        public Options timeoutMillis(int millis) {
+            timeoutMillis = millis;
+            return this;
+        }
+
+        private Options copy() {
+            return new Options().binary(binary).compress(compress).presence(presence).resumable(resumable)
+                    .tls(tls).timeoutMillis(timeoutMillis);
+        }
+    }
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final InputStream rawIn;
+    private final String host;
+    private final int port;
+    private final String username;
+    private final Options options;
+    // The session presented in the handshake, or null
+    private final String resumeToken;
+    private final long resumeSeq;
+    private volatile boolean binary = false;
+    private volatile boolean compressed = false;
+    // Set by the server's SESSION frame; null until then
+    private volatile String sessionToken;
+    // Frames received since the SESSION frame, plus the count it gave
+    private volatile long received;
+    // Set once the server says the session is over
+    private volatile boolean ended = false;
+    // Opened once listen() has read the server's reply to the handshake, or
+    // the connection ended before one came
+    private final CountDownLatch handshakeReplied = new CountDownLatch(1);
+
+    private ChatConnection(Socket socket, String host, int port, String username, Options options,
+            String resumeToken, long resumeSeq) throws IOException {
+        this.socket = socket;
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.options = options;
+        this.resumeToken = resumeToken;
+        this.resumeSeq = resumeSeq;
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.rawIn = new BufferedInputStream(socket.getInputStream());
+    }
+
+    /**
+     * Connects and sends the handshake. The server's reply is read by
+     * {@link #listen}.
+     */
+    public static ChatConnection open(String host, int port, String username, Options options) throws IOException {
+        return open(host, port, username, options.copy(), null, 0);
+    }
+
+    /**
+     * Opens a new connection with the same options that resumes this one's
+     * session, if it has one and the server still keeps it; otherwise the
+     * server logs the user in anew, which the listener's
+     * {@link Listener#onSession} is told.
+     */
+    public ChatConnection reconnect() throws IOException {
+        String token = sessionToken;
+        if (token == null) {
+            // Dropped before the server answered; try the same session again
+            return open(host, port, username, options, resumeToken, resumeSeq);
+        }
+        return open(host, port, username, options, token, received);
+    }
+
+    private static ChatConnection open(String host, int port, String username, Options options,
+            String resumeToken, long resumeSeq) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), options.timeoutMillis);
+            socket.setTcpNoDelay(true);
+            if (options.tls != null) {
+                socket = TlsConfig.startClient(options.tls, socket, host, port, options.timeoutMillis);
+            }
+            ChatConnection connection = new ChatConnection(socket, host, port, username, options,
+                    resumeToken, resumeSeq);
+            String handshake = username;
+            if (options.resumable) {
+                handshake = FrameCodec.SESSION_HANDSHAKE + " "
+                        + (resumeToken != null ? resumeToken + "/" + resumeSeq : "-") + " " + handshake;
+            }
+            if (options.presence) {
+                handshake = FrameCodec.PRESENCE_HANDSHAKE + " " + handshake;
+            }
+            if (options.compress) {
+                handshake = FrameCodec.DEFLATE_HANDSHAKE + " " + handshake;
+            }
+            if (options.binary) {
+                handshake = FrameCodec.BINARY_HANDSHAKE + " " + handshake;
+            }
+            connection.out.write((handshake + "\n").getBytes(StandardCharsets.UTF_8));
+            connection.out.flush();
+            return connection;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads and dispatches until the connection ends. Returns normally at end
+     * of stream and throws if the connection fails or is closed under it.
+     */
+    public void listen(Listener listener) throws IOException {
+        String first;
+        try {
+            first = readLine(rawIn);
+            if (first == null) {
+                return;
+            }
+            String binaryAck = FrameCodec.BINARY_HANDSHAKE;
+            String deflateAck = FrameCodec.DEFLATE_HANDSHAKE;
+            if (options.binary) {
+                binary = first.equals(binaryAck) || first.equals(binaryAck + " " + deflateAck);
+                deflateAck = binaryAck + " " + deflateAck;
+            }
+            compressed = options.compress && first.equals(deflateAck);
+        } finally {
+            handshakeReplied.countDown();
+        }
+
+        Inflater inflater = compressed ? new Inflater(true) : null;
+        InputStream stream = compressed ? new InflaterInputStream(rawIn, inflater) : rawIn;
+        try {
+            if (binary) {
+                DataInputStream frames = new DataInputStream(stream);
+                FrameCodec.Frame frame;
+                while ((frame = FrameCodec.read(frames)) != null) {
+                    if (frame.type == FrameCodec.Type.SESSION) {
+                        onSession(listener, frame.text);
+                    } else {
+                        counted();
+                        listener.onFrame(frame);
+                    }
+                }
+                return;
+            }
+
+            // Server without binary support: plain text lines
+            if (!compressed) {
+                dispatchLine(listener, first);
+            }
+            BufferedReader in = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+            String line;
+            while ((line = in.readLine()) != null) {
+                dispatchLine(listener, line);
+            }
+        } catch (EOFException e) {
+            // The server closes without ending the deflate stream
+            if (!compressed) {
+                throw e;
+            }
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+
+    private void dispatchLine(Listener listener, String line) {
+        if (line.startsWith(SESSION_LINE)) {
+            onSession(listener, line.substring(SESSION_LINE.length()));
+        } else {
+            counted();
+            listener.onLine(line);
+        }
+    }
+
+    /**
+     * Takes the token and count from a {@code SESSION} frame's text,
+     * {@code "token count"}.
+     */
+    private void onSession(Listener listener, String text) {
+        int space = text.indexOf(' ');
+        String token = space < 0 ? text : text.substring(0, space);
+        if (token.equals(Session.ENDED)) {
+            ended = true;
+            return;
+        }
+        long count = 0;
+        try {
+            count = space < 0 ? 0 : Long.parseLong(text.substring(space + 1).trim());
+        } catch (NumberFormatException e) {
+            // Counted from 0 then
+        }
+        received = count;
+        sessionToken = token;
+        listener.onSession(token, token.equals(resumeToken));
+    }
+
+    private void counted() {
+        if (sessionToken != null) {
+            // Only the listener thread writes it
+            received++;
+        }
+    }
+
+    private static String readLine(InputStream stream) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = stream.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        String text = line.toString(StandardCharsets.UTF_8);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    /**
+     * Sends a chat line or /command. Safe to call from any thread. A line
+     * over {@link FrameCodec#MAX_LINE_LENGTH} bytes is refused, since the
+     * server would drop the connection over it.
+     *
+     * <p>If the binary protocol was asked for, this waits, up to the connect
+     * timeout, for {@link #listen} to read whether the server agreed: a
+     * server that did expects frames from then on, one that did not, lines.
+     */
+    public void sendLine(String line) throws IOException {
+        if (!FrameCodec.fitsLine(line)) {
+            throw new IOException("Message too long; the limit is " + FrameCodec.MAX_LINE_LENGTH + " bytes");
+        }
+        if (options.binary) {
+            awaitHandshakeReply();
+        }
+        synchronized (out) {
+            if (binary) {
+                FrameCodec.write(out, FrameCodec.Type.TEXT, 0, null, line);
+            } else {
+                out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            out.flush();
+        }
+    }
+
+    private void awaitHandshakeReply() throws IOException {
+        try {
+            if (!handshakeReplied.await(options.timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SocketTimeoutException("No reply to the handshake");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the handshake reply");
+        }
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * The session's token, or null if the server has not sent one (yet).
+     */
+    public String getSessionToken() {
+        return sessionToken;
+    }
+
+    /**
+     * Whether {@link #reconnect} may resume a session: one was asked for,
+     * the server has given or been presented a token, and it has not said
+     * that the session is over.
+     */
+    public boolean canResume() {
+        return options.resumable && !ended && (sessionToken != null || resumeToken != null);
+    }
+
+    /**
+     * Frames received in the session, counting those received before a
+     * resume.
+     */
+    public long getReceived() {
+        return received;
+    }
+
+    /**
+     * Whether the server acknowledged the binary protocol. Only meaningful
+     * once {@link #listen} has started dispatching.
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Whether the server agreed to compress what it sends. Only meaningful
+     * once {@link #listen} has started dispatching.
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -1,353 +1,397 @@
 package Hn;
 
 import javax.swing.*;
-import javax.swing.Timer;
-import java.awt.*;
-import java.awt.event.*;
+import java.awt.GraphicsEnvironment;
 import java.io.*;
 import java.net.*;
-import java.text.SimpleDateFormat;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.List;
 import java.util.concurrent.*;
-import java.util.logging.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+/**
+ * The chat server core. It has no user interface of its own: the Swing
+ * {@link ServerControlPanel} and the headless console are both
+ * {@link ServerListener}s, and with no listeners attached no log text is even
+ * built.
+ */
+public class ChatServer {
 
-public class ChatServer extends JFrame {
-
-    private static final int PORT = 5000;
     private static final String VERSION = "1.0.0";
-
-    private JTextArea logArea;
-    private JTextArea clientListArea;
-    private JLabel statusLabel;
-    private JLabel clientCountLabel;
-    private JLabel uptimeLabel;
-    private JLabel versionLabel;
-    private JTextArea statsArea;
-
+    private static final String SERVER_FULL = "Server is full, please try again later.";
+    // Above this many recipients a broadcast is compressed once for all
+    // compressed connections instead of in each one's own stream
+    static final int COMPRESS_ONCE_ABOVE = 32;
+    // Buffer size classes: short reads, a burst of reads, a TLS record and
+    // the largest frame
+    private static final int[] BUFFER_SIZES = {1024, 4096, 17 * 1024, FrameCodec.MAX_FRAME_LENGTH};
+    // Idle buffers kept per size class, in bytes
+    private static final int MAX_IDLE_BUFFER_BYTES = 8 * 1024 * 1024;
+
+    private final ServerConfig config;
     private ServerSocket serverSocket;
-    private List<ClientHandler> clients = Collections.synchronizedList(new ArrayList<>());
-    private Map<String, Integer> messageStats = new ConcurrentHashMap<>();
-    private boolean isRunning = false;
-    private SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss");
-    private Instant startTime;
-
-    private int totalConnections = 0;
-    private int totalMessages = 0;
-    private int peakConnections = 0;
+    private NioServerCore nioCore;
+    // Null unless --tls-keystore is given
+    private SSLContext tlsContext;
+    private ExecutorService tlsTasks;
+    // Lock-free, so broadcasts, joins and leaves never wait on each other and
+    // handlers on virtual threads never block inside a monitor
+    private final ClientRegistry<ClientHandler> clients = new ClientRegistry<>();
+    // Username -> handler; entries are claimed atomically during the handshake
+    // and released on disconnect, so lookups never scan the client list
+    private final ConcurrentMap<String, ClientHandler> usersByName = new ConcurrentHashMap<>();
+    private final RoomManager rooms;
+    private volatile MessageJournal journal;
+    // Runs /history reads, which may take a while, off the event loops and
+    // one at a time; null when journaling is disabled
+    private ExecutorService journalReader;
+    private volatile ClusterNode cluster;
+    private ExecutorService clientExecutor;
+    private ThreadUtilizationMonitor utilizationMonitor;
+    private ScheduledExecutorService monitorScheduler;
+    // Null when --presence-ms=0
+    private final Presence presence;
+    // Token -> session of each user that can reconnect without logging out
+    private final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<>();
+    // Presence flushes and session expiry
+    private ScheduledExecutorService timers;
+    private final Map<String, LongAdder> messageStats = new ConcurrentHashMap<>();
+    // Connections borrow I/O buffers only while they have bytes on hand:
+    // direct ones for channels (NIO, TLS engines), array-backed ones for the
+    // blocking transports' streams
+    private final BufferPool channelBuffers = new BufferPool("direct", true, MAX_IDLE_BUFFER_BYTES, BUFFER_SIZES);
+    private final BufferPool streamBuffers = new BufferPool("heap", false, MAX_IDLE_BUFFER_BYTES, BUFFER_SIZES);
+    private final ServerMetrics metrics = new ServerMetrics(this::getOnlineCount, channelBuffers, streamBuffers);
+    private final List<ServerListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean isRunning = false;
+    private volatile Instant startTime;
 
     public ChatServer() {
-        initializeGUI();
+        this(new ServerConfig());
     }
 
-    private void initializeGUI() {
-        setTitle("Chat Server v" + VERSION);
-        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        setSize(1000, 700);
-        setLocationRelativeTo(null);
-
-        // Set look and feel
-        try {
-            UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
-        // Main panel
-        JPanel mainPanel = new JPanel(new BorderLayout(10, 10));
-        mainPanel.setBorder(BorderFactory.createEmptyBorder(15, 15, 15, 15));
-        mainPanel.setBackground(new Color(240, 242, 245));
+    public ChatServer(ServerConfig config) {
+        this.config = config;
+        this.rooms = new RoomManager(config.getBacklog(), config.getRoomChatRate(), config.getRoomChatBurst());
+        this.presence = config.getPresenceIntervalMillis() > 0 ? new Presence(metrics, COMPRESS_ONCE_ABOVE) : null;
+    }
 
-        // Header panel
-        JPanel headerPanel = new JPanel(new BorderLayout());
-        headerPanel.setBackground(new Color(59, 130, 246));
-        headerPanel.setBorder(BorderFactory.createEmptyBorder(15, 20, 15, 20));
+    public void addListener(ServerListener listener) {
+        listeners.add(listener);
+    }
 
-        JLabel titleLabel = new JLabel("Chat Server Control Panel");
-        titleLabel.setFont(new Font("Segoe UI", Font.BOLD, 24));
-        titleLabel.setForeground(Color.WHITE);
-        headerPanel.add(titleLabel, BorderLayout.WEST);
+    public void removeListener(ServerListener listener) {
+        listeners.remove(listener);
+    }
 
-        JPanel statusPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 15, 0));
-        statusPanel.setOpaque(false);
+    /**
+     * Binds the listening socket and starts accepting clients. Returns once
+     * the server is accepting; a bind failure is thrown rather than logged.
+     */
+    public synchronized void start() throws IOException {
+        if (isRunning) {
+            log("Server is already running!");
+            return;
+        }
 
-        versionLabel = new JLabel("v" + VERSION);
-        versionLabel.setFont(new Font("Segoe UI", Font.PLAIN, 12));
-        versionLabel.setForeground(new Color(220, 220, 220));
+        openJournal();
+        try {
+            if (config.getTlsKeystore() != null) {
+                tlsContext = TlsConfig.forServer(config.getTlsKeystore(), config.getTlsPassword());
+            }
+            if (config.getIoMode() == ServerConfig.IoMode.NIO) {
+                startNioServer();
+            } else {
+                startThreadedServer();
+            }
+            startCluster();
+        } catch (IOException e) {
+            try {
+                closeClientListener();
+            } catch (IOException closeError) {
+                e.addSuppressed(closeError);
+            }
+            closeJournal();
+            metrics.unregister();
+            throw e;
+        }
 
-        uptimeLabel = new JLabel("Uptime: 00:00:00");
-        uptimeLabel.setFont(new Font("Segoe UI", Font.PLAIN, 12));
-        uptimeLabel.setForeground(new Color(220, 220, 220));
+        startTime = Instant.now();
+        startUtilizationMonitor();
+        startTimers();
+        String jmxError = metrics.register();
+        if (jmxError != null) {
+            log("Metrics MBean not registered: " + jmxError);
+        }
+        isRunning = true;
+        fireStateChanged(true);
+        log("Waiting for client connections...");
+    }
 
-        statusLabel = new JLabel("STOPPED");
-        statusLabel.setFont(new Font("Segoe UI", Font.BOLD, 14));
-        statusLabel.setForeground(new Color(255, 200, 200));
+    private void startCluster() throws IOException {
+        if (config.getClusterPort() <= 0) {
+            return;
+        }
+        ClusterNode node = new ClusterNode(this, config);
+        node.start();
+        cluster = node;
+    }
 
-        statusPanel.add(versionLabel);
-        statusPanel.add(uptimeLabel);
-        statusPanel.add(statusLabel);
-        headerPanel.add(statusPanel, BorderLayout.EAST);
+    private void stopCluster() {
+        ClusterNode node = cluster;
+        if (node != null) {
+            cluster = null;
+            node.stop();
+        }
+    }
 
-        mainPanel.add(headerPanel, BorderLayout.NORTH);
+    private void closeClientListener() throws IOException {
+        if (serverSocket != null && !serverSocket.isClosed()) {
+            serverSocket.close();
+        }
+        if (nioCore != null) {
+            nioCore.stop();
+            nioCore = null;
+        }
+        if (tlsTasks != null) {
+            tlsTasks.shutdownNow();
+            tlsTasks = null;
+        }
+    }
 
-        // Center panel with tabs
-        JTabbedPane tabbedPane = new JTabbedPane();
-        tabbedPane.setFont(new Font("Segoe UI", Font.BOLD, 13));
-        tabbedPane.setBackground(new Color(248, 250, 252));
-        tabbedPane.setForeground(new Color(59, 130, 246));
+    private void openJournal() throws IOException {
+        if (config.getJournalDir() == null) {
+            return;
+        }
+        journal = MessageJournal.open(Paths.get(config.getJournalDir()),
+                config.getJournalSegmentBytes(), config.getJournalSegments(), config.getJournalFlushMillis());
+        journalReader = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "journal-reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        log("Journal opened in " + journal.getDirectory().toAbsolutePath() + " ("
+                + journal.getSegmentCount() + " segments, last sequence " + journal.getLastSequence() + ")");
+    }
 
-        tabbedPane.addTab("📝 SERVER LOGS", createLogsPanel());
-        tabbedPane.addTab("👥 CONNECTED CLIENTS", createClientsPanel());
-        tabbedPane.addTab("📊 STATISTICS", createStatisticsPanel());
+    private void closeJournal() {
+        if (journalReader != null) {
+            journalReader.shutdownNow();
+            journalReader = null;
+        }
+        MessageJournal current = journal;
+        if (current != null) {
+            journal = null;
+            current.close();
+        }
+    }
 
-        mainPanel.add(tabbedPane, BorderLayout.CENTER);
-        mainPanel.add(createControlPanel(), BorderLayout.SOUTH);
+    private void startThreadedServer() throws IOException {
+        // Each client has its own thread here anyway, so it may as well do
+        // the TLS handshake and record layer itself
+        serverSocket = tlsContext != null ? tlsContext.getServerSocketFactory().createServerSocket()
+                : new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(config.getPort()));
 
-        add(mainPanel);
-        setVisible(true);
+        if (config.getIoMode() == ServerConfig.IoMode.VIRTUAL) {
+            clientExecutor = newVirtualThreadExecutor();
+        }
+        log("Server started successfully on port " + config.getPort()
+                + (clientExecutor != null ? " (virtual threads)" : "") + (tlsContext != null ? " with TLS" : ""));
 
-        // Start uptime timer
-        Timer uptimeTimer = new Timer(1000, e -> updateUptime());
-        uptimeTimer.start();
+        ServerSocket socket = serverSocket;
+        new Thread(() -> acceptLoop(socket), "acceptor").start();
     }
 
-    private JPanel createLogsPanel() {
-        JPanel panel = new JPanel(new BorderLayout());
-        panel.setBackground(Color.WHITE);
-        panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
-
-        logArea = new JTextArea();
-        logArea.setEditable(false);
-        logArea.setFont(new Font("Consolas", Font.PLAIN, 13));
-        logArea.setBackground(new Color(255, 255, 255));
-        logArea.setForeground(new Color(50, 50, 50));
-        logArea.setMargin(new Insets(10, 10, 10, 10));
+    private void acceptLoop(ServerSocket socket) {
+        while (!socket.isClosed()) {
+            try {
+                Socket clientSocket = socket.accept();
+                if (!admit(clientSocket)) {
+                    continue;
+                }
 
-        JScrollPane scrollPane = new JScrollPane(logArea);
-        scrollPane.setBorder(BorderFactory.createLineBorder(new Color(226, 232, 240), 2));
-        scrollPane.getVerticalScrollBar().setBackground(new Color(248, 250, 252));
-        panel.add(scrollPane, BorderLayout.CENTER);
-
-        return panel;
-    }
-
-    private JPanel createClientsPanel() {
-        JPanel panel = new JPanel(new BorderLayout());
-        panel.setBackground(Color.WHITE);
-        panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
-
-        JPanel headerPanel = new JPanel(new BorderLayout());
-        headerPanel.setBackground(new Color(248, 250, 252));
-        headerPanel.setBorder(BorderFactory.createEmptyBorder(15, 15, 15, 15));
-
-        JLabel clientsLabel = new JLabel("CONNECTED CLIENTS");
-        clientsLabel.setFont(new Font("Segoe UI", Font.BOLD, 16));
-        clientsLabel.setForeground(new Color(59, 130, 246));
-        headerPanel.add(clientsLabel, BorderLayout.WEST);
-
-        clientCountLabel = new JLabel("0");
-        clientCountLabel.setFont(new Font("Segoe UI", Font.BOLD, 18));
-        clientCountLabel.setForeground(new Color(34, 197, 94));
-        headerPanel.add(clientCountLabel, BorderLayout.EAST);
-
-        panel.add(headerPanel, BorderLayout.NORTH);
-
-        clientListArea = new JTextArea();
-        clientListArea.setEditable(false);
-        clientListArea.setFont(new Font("Segoe UI", Font.PLAIN, 13));
-        clientListArea.setBackground(Color.WHITE);
-        clientListArea.setForeground(new Color(50, 50, 50));
-        clientListArea.setMargin(new Insets(10, 10, 10, 10));
-
-        JScrollPane scrollPane = new JScrollPane(clientListArea);
-        scrollPane.setBorder(BorderFactory.createLineBorder(new Color(226, 232, 240), 1));
-        scrollPane.getVerticalScrollBar().setBackground(new Color(248, 250, 252));
-        panel.add(scrollPane, BorderLayout.CENTER);
-
-        return panel;
-    }
-
-    private JPanel createStatisticsPanel() {
-        JPanel panel = new JPanel(new BorderLayout());
-        panel.setBackground(Color.WHITE);
-        panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
-
-        statsArea = new JTextArea();
-        statsArea.setEditable(false);
-        statsArea.setFont(new Font("Consolas", Font.PLAIN, 13));
-        statsArea.setBackground(Color.WHITE);
-        statsArea.setForeground(new Color(50, 50, 50));
-        statsArea.setMargin(new Insets(10, 10, 10, 10));
-
-        JScrollPane scrollPane = new JScrollPane(statsArea);
-        scrollPane.setBorder(BorderFactory.createLineBorder(new Color(226, 232, 240), 2));
-        scrollPane.getVerticalScrollBar().setBackground(new Color(248, 250, 252));
-        panel.add(scrollPane, BorderLayout.CENTER);
-
-        return panel;
-    }
-
-    private JPanel createControlPanel() {
-        JPanel panel = new JPanel(new FlowLayout(FlowLayout.CENTER, 20, 15));
-        panel.setBackground(new Color(248, 250, 252));
-        panel.setBorder(BorderFactory.createEmptyBorder(15, 15, 15, 15));
-
-        JButton startButton = createStyledButton("▶ START SERVER", new Color(34, 197, 94));
-        JButton stopButton = createStyledButton("■ STOP SERVER", new Color(239, 68, 68));
-        JButton clearButton = createStyledButton("🗑 CLEAR LOGS", new Color(100, 150, 220));
-        JButton kickButton = createStyledButton("👢 KICK USER", new Color(245, 158, 11));
-        JButton saveButton = createStyledButton("💾 SAVE LOGS", new Color(139, 92, 246));
-
-        startButton.addActionListener(e -> startServer());
-        stopButton.addActionListener(e -> stopServer());
-        clearButton.addActionListener(e -> logArea.setText(""));
-        kickButton.addActionListener(e -> showKickDialog());
-        saveButton.addActionListener(e -> saveLogs());
-
-        panel.add(startButton);
-        panel.add(stopButton);
-        panel.add(clearButton);
-        panel.add(kickButton);
-        panel.add(saveButton);
-
-        return panel;
-    }
-
-    private JButton createStyledButton(String text, Color bgColor) {
-        // Create a custom button that forces text to be visible
-        JButton button = new JButton(text) {
-            @Override
-            protected void paintComponent(Graphics g) {
-                // Always paint background first
-                Graphics2D g2d = (Graphics2D) g;
-                g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-
-                // Paint background
-                if (getModel().isPressed()) {
-                    g2d.setColor(bgColor.darker());
-                } else if (getModel().isRollover()) {
-                    g2d.setColor(new Color(
-                            Math.min(255, bgColor.getRed() + 30),
-                            Math.min(255, bgColor.getGreen() + 30),
-                            Math.min(255, bgColor.getBlue() + 30)
-                    ));
+                ClientHandler handler = new ClientHandler(clientSocket, this);
+                clientAccepted(handler);
+                ExecutorService executor = clientExecutor;
+                if (executor != null) {
+                    executor.execute(handler);
                 } else {
-                    g2d.setColor(bgColor);
+                    new Thread(handler, "client-" + metrics.getTotalConnections()).start();
                 }
-                g2d.fillRect(0, 0, getWidth(), getHeight());
-
-                // Paint border
-                g2d.setColor(bgColor.darker().darker());
-                g2d.setStroke(new BasicStroke(2));
-                g2d.drawRect(1, 1, getWidth() - 3, getHeight() - 3);
 
-                // Now paint the text
-                super.paintComponent(g);
+            } catch (SocketException e) {
+                if (isRunning) {
+                    log("Server socket closed.");
+                }
+            } catch (IOException | RejectedExecutionException e) {
+                if (isRunning) {
+                    log("Error accepting client: " + e.getMessage());
+                }
             }
+        }
+    }
 
-            @Override
-            public void paint(Graphics g) {
-                super.paint(g);
-                // Force all components to repaint
-                paintComponents(g);
-            }
-        };
-
-        button.setFont(new Font("Segoe UI", Font.BOLD, 13));
-        button.setForeground(Color.WHITE); // ALWAYS white text
-        button.setBackground(bgColor);
-        button.setBorder(BorderFactory.createEmptyBorder(15, 30, 15, 30));
-        button.setFocusPainted(false);
-        button.setCursor(new Cursor(Cursor.HAND_CURSOR));
-
-        // CRITICAL: Make button fully opaque
-        button.setOpaque(true);
-        button.setContentAreaFilled(false); // We paint our own background
-
-        // Remove any UI defaults
-        button.setUI(new javax.swing.plaf.basic.BasicButtonUI());
-
-        // Add mouse listener for hover effects
-        button.addMouseListener(new MouseAdapter() {
-            @Override
-            public void mouseEntered(MouseEvent e) {
-                button.setForeground(Color.WHITE);
-                button.repaint();
-            }
+    private ExecutorService newVirtualThreadExecutor() {
+        // Looked up reflectively so the server still builds and runs on JDKs
+        // without virtual threads; those fall back to platform threads
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log("Virtual threads are not available on this JVM, using platform threads");
+            return null;
+        }
+    }
 
-            @Override
-            public void mouseExited(MouseEvent e) {
-                button.setForeground(Color.WHITE);
-                button.repaint();
-            }
+    private void startUtilizationMonitor() {
+        switch (config.getIoMode()) {
+            case VIRTUAL:
+                utilizationMonitor = ThreadUtilizationMonitor.forCarriers();
+                break;
+            case NIO:
+                utilizationMonitor = ThreadUtilizationMonitor.forPlatformThreads("nio-loop-");
+                break;
+            default:
+                utilizationMonitor = ThreadUtilizationMonitor.forPlatformThreads("client-");
+        }
 
-            @Override
-            public void mousePressed(MouseEvent e) {
-                button.setForeground(Color.WHITE);
-                button.repaint();
-            }
+        monitorScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "utilization-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        monitorScheduler.scheduleAtFixedRate(() -> {
+            utilizationMonitor.sample();
+            fireStatisticsChanged();
+        }, 5, 5, TimeUnit.SECONDS);
+    }
 
-            @Override
-            public void mouseReleased(MouseEvent e) {
-                button.setForeground(Color.WHITE);
-                button.repaint();
-            }
+    private void startTimers() {
+        timers = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "server-timers");
+            thread.setDaemon(true);
+            return thread;
         });
+        if (presence == null) {
+            return;
+        }
+        int interval = config.getPresenceIntervalMillis();
+        timers.scheduleWithFixedDelay(() -> {
+            try {
+                presence.flush();
+            } catch (RuntimeException e) {
+                log("Error publishing presence: " + e.getMessage());
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
 
-        return button;
+    private void startNioServer() throws IOException {
+        if (tlsContext != null) {
+            tlsTasks = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+                Thread thread = new Thread(r, "tls-tasks");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        nioCore = new NioServerCore(this, config.getPort(), config.getEventLoops());
+        nioCore.start();
+
+        log("Server started successfully on port " + config.getPort()
+                + " (NIO, " + config.getEventLoops() + " event loops)" + (tlsContext != null ? " with TLS" : ""));
     }
 
-    private void startServer() {
-        if (isRunning) {
-            log("Server is already running!");
-            return;
+    /**
+     * A TLS session for a freshly accepted NIO channel, or null if the server
+     * runs without TLS.
+     */
+    TlsSession newTlsSession(SocketChannel channel) throws IOException {
+        if (tlsContext == null) {
+            return null;
         }
+        SSLEngine engine = tlsContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        return new TlsSession(engine, channel, channelBuffers, metrics);
+    }
 
-        startTime = Instant.now();
+    /**
+     * Runs a TLS session's handshake tasks off the event loops.
+     */
+    void runTlsTasks(Runnable tasks) {
+        tlsTasks.execute(tasks);
+    }
 
-        new Thread(() -> {
-            try {
-                serverSocket = new ServerSocket(PORT);
-                serverSocket.setReuseAddress(true);
+    BufferPool getChannelBuffers() {
+        return channelBuffers;
+    }
 
-                isRunning = true;
-                SwingUtilities.invokeLater(() -> {
-                    statusLabel.setText("RUNNING");
-                    statusLabel.setForeground(new Color(200, 255, 200));
-                });
+    BufferPool getStreamBuffers() {
+        return streamBuffers;
+    }
 
-                log("Server started successfully on port " + PORT);
-                log("Waiting for client connections...");
+    void startWriter(Runnable writer, String name) {
+        ExecutorService executor = clientExecutor;
+        if (executor != null) {
+            executor.execute(writer);
+        } else {
+            new Thread(writer, name).start();
+        }
+    }
 
-                while (isRunning) {
-                    try {
-                        Socket clientSocket = serverSocket.accept();
-                        totalConnections++;
-
-                        ClientHandler handler = new ClientHandler(clientSocket, this);
-                        clients.add(handler);
-                        new Thread(handler).start();
-
-                        updateClientList();
-                        updateStatistics();
-
-                    } catch (SocketException e) {
-                        if (isRunning) {
-                            log("Server socket closed.");
-                        }
-                    } catch (IOException e) {
-                        log("Error accepting client: " + e.getMessage());
-                    }
-                }
+    /**
+     * Applies the connection limit to a freshly accepted socket, which must
+     * still be in blocking mode. A rejected socket is told why and closed.
+     */
+    boolean admit(Socket socket) {
+        int limit = config.getMaxClients();
+        if (limit <= 0 || clients.size() < limit) {
+            return true;
+        }
+        log("Rejected connection: limit of " + limit + " clients reached");
+        if (tlsContext != null) {
+            // The notice would take a handshake on the accepting thread
+            try {
+                socket.close();
             } catch (IOException e) {
-                log("Failed to start server: " + e.getMessage());
+                // Gone either way
             }
-        }).start();
+            return false;
+        }
+        try (Socket rejected = socket) {
+            rejected.getOutputStream().write((FrameCodec.toTextLine(FrameCodec.Type.SYSTEM, null, SERVER_FULL)
+                    + "\n").getBytes(StandardCharsets.UTF_8));
+            // Half-close and discard whatever handshake already arrived, so
+            // the close is not turned into a reset that loses the notice
+            rejected.shutdownOutput();
+            InputStream in = rejected.getInputStream();
+            in.skip(in.available());
+        } catch (IOException e) {
+            // Nothing more to tell a client that is already gone
+        }
+        return false;
+    }
+
+    void clientAccepted(ClientHandler handler) {
+        metrics.connectionAccepted();
+        clients.add(handler);
+        fireClientsChanged();
+        fireStatisticsChanged();
     }
 
-    private void stopServer() {
+    public synchronized void stop() {
         if (!isRunning) {
             log("Server is not running!");
             return;
@@ -357,24 +401,34 @@ public class ChatServer extends JFrame {
         log("Stopping server...");
 
         try {
-            synchronized (clients) {
-                for (ClientHandler client : clients) {
-                    client.disconnect();
-                }
-                clients.clear();
-            }
+            // Peers drop this node's users when the links go, so the
+            // disconnects below are not relayed one by one
+            stopCluster();
 
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
+            // disconnect() removes each client from the list, so work on a copy
+            for (ClientHandler client : getConnectedUsers()) {
+                endSession(client);
             }
 
-            SwingUtilities.invokeLater(() -> {
-                statusLabel.setText("STOPPED");
-                statusLabel.setForeground(new Color(255, 200, 200));
-            });
+            closeClientListener();
+            if (clientExecutor != null) {
+                clientExecutor.shutdownNow();
+                clientExecutor = null;
+            }
+            if (monitorScheduler != null) {
+                monitorScheduler.shutdownNow();
+                monitorScheduler = null;
+            }
+            if (timers != null) {
+                timers.shutdownNow();
+                timers = null;
+            }
+            closeJournal();
+            metrics.unregister();
 
-            updateClientList();
-            updateStatistics();
+            fireStateChanged(false);
+            fireClientsChanged();
+            fireStatisticsChanged();
             log("Server stopped successfully");
 
         } catch (IOException e) {
@@ -383,169 +437,411 @@ public class ChatServer extends JFrame {
     }
 
     public void broadcast(String message, ClientHandler sender, boolean includeSender) {
-        totalMessages++;
-        log("Message from " + (sender != null ? sender.getUsername() : "System") + ": "
-                + (message.length() > 100 ? message.substring(0, 100) + "..." : message));
+        String senderName = sender != null ? sender.getUsername() : null;
+        journal(FrameCodec.Type.CHAT, null, senderName, null, message);
+        broadcastFrame(clients, SharedFrame.chat(sender != null ? sender.getConnectionId() : 0, message),
+                sender, includeSender);
+        relay(FrameCodec.Type.CHAT, null, senderName, message);
+    }
+
+    public void broadcastSystem(String text, ClientHandler sender, boolean includeSender) {
+        journal(FrameCodec.Type.SYSTEM, null, null, null, text);
+        broadcastFrame(clients, SharedFrame.system(text), sender, includeSender);
+        relay(FrameCodec.Type.SYSTEM, null, null, text);
+    }
+
+    /**
+     * Sends a chat line to the members of {@code room} only.
+     */
+    public void broadcastToRoom(Room room, String message, ClientHandler sender) {
+        journal(FrameCodec.Type.CHAT, room.getName(), sender.getUsername(), null, message);
+        SharedFrame frame = SharedFrame.chat(sender.getConnectionId(), message);
+        room.remember(frame);
+        broadcastFrame(room.getMembers(), frame, sender, false);
+        relay(FrameCodec.Type.CHAT, room.getName(), sender.getUsername(), message);
+    }
+
+    public void broadcastSystemToRoom(Room room, String text, ClientHandler sender) {
+        journal(FrameCodec.Type.SYSTEM, room.getName(), null, null, text);
+        broadcastFrame(room.getMembers(), SharedFrame.system(text), sender, false);
+        relay(FrameCodec.Type.SYSTEM, room.getName(), null, text);
+    }
+
+    /**
+     * Passes a broadcast on to the other cluster nodes, if there are any.
+     */
+    private void relay(FrameCodec.Type type, String room, String sender, String text) {
+        ClusterNode node = cluster;
+        if (node != null) {
+            node.relayBroadcast(type, room, sender, text);
+        }
+    }
+
+    /**
+     * Delivers a broadcast relayed by another cluster node to the local
+     * clients, or to the local members of {@code roomName}. It is not relayed
+     * again.
+     */
+    void deliverRemote(FrameCodec.Type type, String roomName, String sender, String text) {
+        journal(type, roomName, sender, null, text);
+        SharedFrame frame = type == FrameCodec.Type.CHAT ? SharedFrame.chat(0, text) : SharedFrame.system(text);
+        if (roomName == null) {
+            broadcastFrame(clients, frame, null, true);
+            return;
+        }
+        Room room = rooms.get(roomName);
+        if (room == null) {
+            // Nobody here is in that room
+            frame.release();
+            return;
+        }
+        if (type == FrameCodec.Type.CHAT) {
+            room.remember(frame);
+        }
+        broadcastFrame(room.getMembers(), frame, null, true);
+    }
+
+    /**
+     * Delivers a private message routed here by another cluster node.
+     * Returns false if the recipient is not (or no longer) connected here.
+     */
+    boolean deliverRemotePrivateMessage(String from, String to, String text) {
+        ClientHandler client = usersByName.get(to);
+        if (client == null) {
+            return false;
+        }
+        journal(FrameCodec.Type.PM_FROM, null, from, to, text);
+        client.sendFrame(SharedFrame.of(FrameCodec.Type.PM_FROM, 0, from, text));
+        return true;
+    }
+
+    /**
+     * Completes a private message that was routed to another cluster node,
+     * once that node has said whether the recipient got it.
+     */
+    void privateMessageRouted(ClientHandler sender, String to, String text, boolean delivered) {
+        if (!delivered) {
+            sender.privateMessageFailed(to);
+            return;
+        }
+        journal(FrameCodec.Type.PM_FROM, null, sender.getUsername(), to, text);
+        sender.sendFrame(SharedFrame.of(FrameCodec.Type.PM_TO, sender.getConnectionId(), to, text));
+    }
+
+    /**
+     * Records a message in the journal, if there is one. Private messages are
+     * stored as PM_FROM with the recipient as peer.
+     */
+    private void journal(FrameCodec.Type type, String room, String sender, String peer, String text) {
+        MessageJournal current = journal;
+        if (current == null) {
+            return;
+        }
+        try {
+            current.append(type, room, sender, peer, text);
+        } catch (IOException | IllegalArgumentException e) {
+            log("Journal append failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Looks up the newest journaled chat lines of {@code room} on the journal
+     * reader thread and hands them, oldest first, to {@code reply} there;
+     * null if journaling is disabled. Only the newest
+     * {@link ServerConfig#getHistoryScanBytes} of the journal are searched.
+     *
+     * <p>Private messages are journaled but never replayed: users are known
+     * only by name, and whoever takes a freed name, even after a restart,
+     * is not the person the messages were for.
+     */
+    public void readHistory(Room room, int limit, Consumer<List<MessageJournal.Entry>> reply) {
+        MessageJournal current = journal;
+        ExecutorService reader = journalReader;
+        if (current == null || reader == null) {
+            reply.accept(null);
+            return;
+        }
+        String roomName = room != null ? room.getName() : null;
+        try {
+            reader.execute(() -> reply.accept(current.recent(limit, config.getHistoryScanBytes(),
+                    entry -> entry.type == FrameCodec.Type.CHAT && Objects.equals(entry.room, roomName))));
+        } catch (RejectedExecutionException e) {
+            // Stopping; nobody is waiting for the answer
+        }
+    }
 
-        synchronized (clients) {
-            for (ClientHandler client : clients) {
+    /**
+     * Fans {@code frame} out to {@code recipients}, consuming the caller's
+     * reference.
+     */
+    private void broadcastFrame(ClientRegistry<ClientHandler> recipients, SharedFrame frame,
+            ClientHandler sender, boolean includeSender) {
+        metrics.messageBroadcast();
+        if (isLogging()) {
+            String message = frame.getText();
+            log("Message from " + (sender != null ? sender.getUsername() : "System") + ": "
+                    + (message.length() > 100 ? message.substring(0, 100) + "..." : message));
+        }
+
+        // Encoded once per protocol; every recipient queues a reference to the same bytes
+        if (recipients.size() > COMPRESS_ONCE_ABOVE) {
+            frame.markBroadcast();
+        }
+        long start = System.nanoTime();
+        try {
+            recipients.forEach(client -> {
                 if (includeSender || client != sender) {
                     try {
-                        client.sendMessage(message);
+                        client.sendFrame(frame.retain());
                     } catch (Exception e) {
                         log("Error sending to " + client.getUsername() + ": " + e.getMessage());
                     }
                 }
-            }
+            });
+        } finally {
+            frame.release();
+            metrics.broadcastFanOut.recordSince(start);
         }
     }
 
     public boolean sendPrivateMessage(ClientHandler sender, String targetUsername, String message) {
-        synchronized (clients) {
-            for (ClientHandler client : clients) {
-                if (client != sender && client.getUsername().equals(targetUsername)) {
-                    client.sendMessage("[PM from " + sender.getUsername() + "] " + message);
-                    sender.sendMessage("[PM to " + targetUsername + "] " + message);
-                    log("Private message: " + sender.getUsername() + " -> " + targetUsername);
-                    return true;
-                }
-            }
+        ClientHandler client = usersByName.get(targetUsername);
+        if (client == sender) {
+            return false;
         }
-        return false;
+        if (client == null) {
+            // Another node may have the user; the echo waits until it confirms
+            ClusterNode node = cluster;
+            return node != null && node.sendPrivateMessage(sender, targetUsername, message);
+        }
+        client.sendFrame(SharedFrame.of(FrameCodec.Type.PM_FROM, sender.getConnectionId(),
+                sender.getUsername(), message));
+        journal(FrameCodec.Type.PM_FROM, null, sender.getUsername(), targetUsername, message);
+        sender.sendFrame(SharedFrame.of(FrameCodec.Type.PM_TO, sender.getConnectionId(),
+                targetUsername, message));
+        if (isLogging()) {
+            log("Private message: " + sender.getUsername() + " -> " + targetUsername);
+        }
+        return true;
     }
 
+    /**
+     * Called once {@code client}'s connection is gone. If the connection
+     * carries a session, the user stays until the session expires or ends;
+     * otherwise the user leaves.
+     */
     public void removeClient(ClientHandler client) {
+        Session session = client.getSession();
+        if (session != null) {
+            ClientHandler connection = client;
+            if (isRunning && session.linger(connection, timers, config.getSessionGraceSeconds() * 1000L,
+                    () -> expireSession(session, connection))) {
+                if (session.getOwner() == client) {
+                    log(client.getUsername() + " dropped; holding the session for "
+                            + config.getSessionGraceSeconds() + " s");
+                }
+                return;
+            }
+            sessions.remove(session.getToken(), session);
+            client = session.getOwner();
+        }
         boolean removed = clients.remove(client);
+        if (presence != null) {
+            presence.unsubscribe(client);
+            if (usersByName.get(client.getUsername()) == client) {
+                // Before the name is free, so that it cannot follow a new
+                // owner's arrival
+                presence.offline(client.getUsername());
+            }
+        }
+        boolean named = usersByName.remove(client.getUsername(), client);
+        ClusterNode node = cluster;
+        if (named && node != null) {
+            node.release(client.getUsername());
+        }
+        Room room = client.getRoom();
+        if (room != null) {
+            client.setRoom(null);
+            rooms.leave(room, client);
+        }
         if (removed) {
-            updateClientList();
-            updateStatistics();
+            fireClientsChanged();
+            fireStatisticsChanged();
             log(client.getUsername() + " disconnected");
-            broadcast("[System] " + client.getUsername() + " has left the chat", null, true);
+            broadcastSystem(client.getUsername() + " has left the chat", null, true);
         }
     }
 
-    public void clientConnected(ClientHandler client) {
-        updateClientList();
-        updateStatistics();
-        log(client.getUsername() + " connected from "
-                + client.getSocket().getInetAddress().getHostAddress());
-
-        peakConnections = Math.max(peakConnections, clients.size());
-        broadcast("[System] " + client.getUsername() + " has joined the chat", null, true);
+    /**
+     * Starts a session for a client that has just logged in, and queues its
+     * announcement ahead of everything else the client is sent.
+     */
+    Session openSession(ClientHandler client) {
+        Session session = new Session(client, config.getSessionFrames());
+        sessions.put(session.getToken(), session);
+        client.setSession(session);
+        client.sendFrame(session.announcement());
+        return session;
     }
 
-    public void logMessage(String username, String message) {
-        messageStats.put(username, messageStats.getOrDefault(username, 0) + 1);
+    /**
+     * Moves the session with {@code token} to the freshly connected
+     * {@code client}, whose client has seen {@code lastSeq} of its frames.
+     * The user carries on as before, with no leave or join. Returns false if
+     * there is no such session, for the client to log in anew.
+     */
+    boolean resumeSession(ClientHandler client, String token, long lastSeq) {
+        Session session = sessions.get(token);
+        if (session == null) {
+            return false;
+        }
+        // Frames for the user come through the session; broadcasts must not
+        // reach this connection a second way
+        clients.remove(client);
+        client.getOutboundQueue().clear();
+        client.setSession(session);
+        Session.Resumption resumed = session.resume(client, lastSeq);
+        if (resumed == Session.BUSY) {
+            // The old connection may be half-open; it gives way to the new one
+            ClientHandler previous = session.liveConnection();
+            if (previous != null) {
+                previous.disconnect();
+            }
+            resumed = session.resume(client, lastSeq);
+        }
+        if (resumed == null) {
+            // Ended just now
+            client.setSession(null);
+            clients.add(client);
+            return false;
+        }
+        if (resumed == Session.BUSY) {
+            // Not back in the client list, so leaving makes no announcement
+            client.setSession(null);
+            client.sendSystemMessage("Your previous connection is still closing; try again in a moment.");
+            client.disconnect();
+            return true;
+        }
+        ClientHandler user = session.getOwner();
+        metrics.sessionResumed(resumed.replayed, resumed.missed);
+        if (resumed.missed > 0 && presence != null && user.wantsPresence()) {
+            // Some of the changes may be among what was missed
+            presence.resend(user);
+        }
+        log(user.getUsername() + " resumed its session (" + resumed.replayed + " frames replayed"
+                + (resumed.missed > 0 ? ", " + resumed.missed + " missed" : "") + ")");
+        fireClientsChanged();
+        return true;
     }
 
-    private void updateClientList() {
-        SwingUtilities.invokeLater(() -> {
-            StringBuilder sb = new StringBuilder();
-            synchronized (clients) {
-                for (ClientHandler client : clients) {
-                    sb.append("• ").append(client.getUsername())
-                            .append(" - ").append(client.getStatus())
-                            .append("\n");
-                }
-            }
-            clientListArea.setText(sb.toString());
-            clientCountLabel.setText(String.valueOf(clients.size()));
-        });
+    private void expireSession(Session session, ClientHandler connection) {
+        if (session.expire(connection)) {
+            metrics.sessionExpired();
+            removeClient(session.getOwner());
+        }
     }
 
-    private void updateStatistics() {
-        SwingUtilities.invokeLater(() -> {
-            StringBuilder sb = new StringBuilder();
-            sb.append("Server Statistics\n");
-            sb.append("=================\n\n");
-            sb.append("Version: ").append(VERSION).append("\n");
-            sb.append("Uptime: ").append(getUptime()).append("\n");
-            sb.append("Current connections: ").append(clients.size()).append("\n");
-            sb.append("Peak connections: ").append(peakConnections).append("\n");
-            sb.append("Total connections: ").append(totalConnections).append("\n");
-            sb.append("Total messages: ").append(totalMessages).append("\n\n");
-
-            sb.append("Message Statistics\n");
-            sb.append("==================\n");
-            messageStats.entrySet().stream()
-                    .sorted((a, b) -> b.getValue().compareTo(a.getValue()))
-                    .limit(10)
-                    .forEach(entry -> sb.append(entry.getKey()).append(": ")
-                    .append(entry.getValue()).append(" messages\n"));
-
-            statsArea.setText(sb.toString());
-        });
+    /**
+     * Logs {@code client}'s user out for good: its session, if it has one,
+     * ends instead of waiting to be resumed.
+     */
+    void endSession(ClientHandler client) {
+        Session session = client.getSession();
+        if (session == null) {
+            client.disconnect();
+            return;
+        }
+        ClientHandler connection = session.end();
+        if (connection != null) {
+            connection.disconnect();
+        }
+        // In case the connection had already dropped
+        removeClient(session.getOwner());
     }
 
-    private void updateUptime() {
-        if (startTime != null) {
-            Duration uptime = Duration.between(startTime, Instant.now());
-            String uptimeStr = String.format("%02d:%02d:%02d",
-                    uptime.toHours(),
-                    uptime.toMinutesPart(),
-                    uptime.toSecondsPart());
-            uptimeLabel.setText("Uptime: " + uptimeStr);
+    public void clientConnected(ClientHandler client) {
+        fireClientsChanged();
+        fireStatisticsChanged();
+        if (isLogging()) {
+            log(client.getUsername() + " connected from "
+                    + client.getSocket().getInetAddress().getHostAddress());
+        }
+
+        metrics.clientOnline();
+        client.setRoom(rooms.join(RoomManager.LOBBY, client));
+        if (presence != null) {
+            presence.online(client.getUsername(), client.getStatus());
+            if (client.wantsPresence()) {
+                presence.subscribe(client);
+            }
         }
+        broadcastSystem(client.getUsername() + " has joined the chat", null, true);
     }
 
-    private void log(String message) {
-        SwingUtilities.invokeLater(() -> {
-            String timestamp = timeFormat.format(new Date());
-            logArea.append("[" + timestamp + "] " + message + "\n");
-            logArea.setCaretPosition(logArea.getDocument().getLength());
-        });
+    /**
+     * Moves {@code client} into the named room. It joins the new room before
+     * leaving the old one, so it is never without a room.
+     */
+    public Room joinRoom(ClientHandler client, String name) {
+        Room previous = client.getRoom();
+        Room room = rooms.join(name, client);
+        client.setRoom(room);
+        if (previous != null) {
+            rooms.leave(previous, client);
+            broadcastSystemToRoom(previous, client.getUsername() + " left #" + previous.getName(), client);
+        }
+        broadcastSystemToRoom(room, client.getUsername() + " joined #" + name, client);
+        log(client.getUsername() + " joined #" + name);
+        fireClientsChanged();
+        return room;
     }
 
-    private void showKickDialog() {
-        if (clients.isEmpty()) {
-            JOptionPane.showMessageDialog(this,
-                    "No users connected.",
-                    "Kick User",
-                    JOptionPane.INFORMATION_MESSAGE);
+    /**
+     * Replays the recent chat lines of {@code client}'s room to it as a
+     * single write. Concurrent broadcasts to the room are not held up.
+     */
+    public void sendBacklog(ClientHandler client) {
+        Room room = client.getRoom();
+        if (room == null) {
             return;
         }
-
-        String[] userArray = new String[clients.size()];
-        for (int i = 0; i < clients.size(); i++) {
-            userArray[i] = clients.get(i).getUsername();
-        }
-
-        String selectedUser = (String) JOptionPane.showInputDialog(
-                this,
-                "Select user to kick:",
-                "Kick User",
-                JOptionPane.QUESTION_MESSAGE,
-                null,
-                userArray,
-                userArray[0]);
-
-        if (selectedUser != null) {
-            synchronized (clients) {
-                for (ClientHandler client : clients) {
-                    if (client.getUsername().equals(selectedUser)) {
-                        client.sendSystemMessage("You have been kicked by the server administrator.");
-                        client.disconnect();
-                        log("Kicked user: " + selectedUser);
-                        break;
-                    }
-                }
-            }
+        List<SharedFrame> frames = room.getRecentFrames();
+        if (frames.isEmpty()) {
+            return;
         }
+        frames.add(0, SharedFrame.system("Last " + frames.size() + " messages in #" + room.getName() + ":"));
+        client.sendFrame(SharedFrame.batch(frames));
     }
 
-    private void saveLogs() {
-        JFileChooser fileChooser = new JFileChooser();
-        fileChooser.setSelectedFile(new File("server_log_"
-                + new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date()) + ".txt"));
+    public List<Room> getRooms() {
+        return rooms.list();
+    }
 
-        if (fileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
-            try (PrintWriter writer = new PrintWriter(fileChooser.getSelectedFile())) {
-                writer.write(logArea.getText());
-                log("Logs saved to: " + fileChooser.getSelectedFile().getPath());
-            } catch (IOException e) {
-                log("Error saving logs: " + e.getMessage());
-            }
+    public void logMessage(String username, String message) {
+        messageStats.computeIfAbsent(username, name -> new LongAdder()).increment();
+        metrics.messageReceived(message);
+    }
+
+    /**
+     * Disconnects the named client on behalf of the administrator.
+     */
+    public boolean kick(String username) {
+        ClientHandler client = usersByName.get(username);
+        if (client == null) {
+            return false;
         }
+        client.sendSystemMessage("You have been kicked by the server administrator.");
+        endSession(client);
+        log("Kicked user: " + username);
+        return true;
+    }
+
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    ServerConfig getConfig() {
+        return config;
     }
 
     public String getServerVersion() {
@@ -567,32 +863,282 @@ public class ChatServer extends JFrame {
         return clients.size();
     }
 
-    public int getTotalUsers() {
-        return totalConnections;
+    public long getTotalUsers() {
+        return metrics.getTotalConnections();
+    }
+
+    public int getPeakConnections() {
+        return metrics.getPeakConnections();
+    }
+
+    public long getTotalMessages() {
+        return metrics.getTotalMessages();
+    }
+
+    public Map<String, LongAdder> getMessageStats() {
+        return messageStats;
+    }
+
+    public String getUtilizationReport() {
+        ThreadUtilizationMonitor monitor = utilizationMonitor;
+        return monitor != null ? monitor.getLastReport() : "n/a";
+    }
+
+    public boolean isRunning() {
+        return isRunning;
     }
 
     public List<ClientHandler> getConnectedUsers() {
-        return new ArrayList<>(clients);
+        return clients.snapshot();
     }
 
-    public boolean isUsernameTaken(String username, ClientHandler requester) {
-        synchronized (clients) {
-            for (ClientHandler client : clients) {
-                if (client != requester && client.getUsername().equals(username)) {
-                    return true;
-                }
-            }
+    /**
+     * The client connected to this node under {@code username}, or null.
+     */
+    ClientHandler getLocalUser(String username) {
+        return usersByName.get(username);
+    }
+
+    /**
+     * Atomically claims {@code username} for {@code client}. Returns false if
+     * another client already holds it, here or on another cluster node. In a
+     * cluster this may wait for the node that owns the name to answer; if it
+     * does not, the name is accepted.
+     */
+    public boolean reserveUsername(String username, ClientHandler client) {
+        return reserveUsername(username, client, true);
+    }
+
+    private boolean reserveUsername(String username, ClientHandler client, boolean acceptOnTimeout) {
+        ClusterNode node = cluster;
+        if (node != null && !node.claim(username, acceptOnTimeout)) {
+            return false;
+        }
+        ClientHandler owner = usersByName.putIfAbsent(username, client);
+        return owner == null || owner == client;
+    }
+
+    /**
+     * Moves {@code client} from {@code oldName} to {@code newName}. The new
+     * name is claimed before the old one is released, so there is no window
+     * in which the client cannot be found. In a cluster this may wait for the
+     * node that owns the new name, and fails if that node does not answer:
+     * unlike at login, the client still has a name to keep.
+     */
+    public boolean renameClient(ClientHandler client, String oldName, String newName) {
+        if (!reserveUsername(newName, client, false)) {
+            return false;
+        }
+        if (presence != null) {
+            presence.offline(oldName);
+            presence.online(newName, client.getStatus());
+        }
+        usersByName.remove(oldName, client);
+        ClusterNode node = cluster;
+        if (node != null) {
+            node.release(oldName);
+        }
+        log(oldName + " renamed to " + newName);
+        fireClientsChanged();
+        return true;
+    }
+
+    /**
+     * Tells presence subscribers and the other cluster nodes about a status
+     * change of {@code client}.
+     */
+    public void statusChanged(ClientHandler client) {
+        if (presence != null) {
+            presence.online(client.getUsername(), client.getStatus());
+        }
+        ClusterNode node = cluster;
+        if (node != null) {
+            node.statusChanged(client.getUsername(), client.getStatus().name());
+        }
+    }
+
+    /**
+     * Asks the other cluster nodes to send {@code client} their user lists.
+     */
+    public void requestRemoteUsers(ClientHandler client) {
+        ClusterNode node = cluster;
+        if (node != null) {
+            node.requestUsers(client);
+        }
+    }
+
+    /**
+     * Runs {@code task}, a handshake or rename, on another thread if claiming
+     * its name may have to wait for another cluster node. Returns false if
+     * that is not needed, in which case the caller runs it itself.
+     */
+    boolean offloadNameClaim(Runnable task) {
+        ClusterNode node = cluster;
+        return node != null && node.runBlocking(task);
+    }
+
+    /**
+     * This server's cluster node id, or null when not clustered.
+     */
+    public String getClusterNodeId() {
+        ClusterNode node = cluster;
+        return node != null ? node.getNodeId() : null;
+    }
+
+    /**
+     * One line about this node's cluster membership, or null when not
+     * clustered.
+     */
+    public String getClusterStatus() {
+        ClusterNode node = cluster;
+        if (node == null) {
+            return null;
+        }
+        List<String> peers = node.getPeers();
+        return "node " + node.getNodeId() + ", " + peers.size() + " peers" + (peers.isEmpty() ? "" : " " + peers)
+                + ", owns " + node.getOwnedNames() + " names";
+    }
+
+    Map<String, ClientHandler> getUsersByName() {
+        return Collections.unmodifiableMap(usersByName);
+    }
+
+    private boolean isLogging() {
+        return !listeners.isEmpty();
+    }
+
+    void log(String message) {
+        for (ServerListener listener : listeners) {
+            listener.onLog(message);
+        }
+    }
+
+    private void fireClientsChanged() {
+        for (ServerListener listener : listeners) {
+            listener.onClientsChanged();
+        }
+    }
+
+    private void fireStatisticsChanged() {
+        for (ServerListener listener : listeners) {
+            listener.onStatisticsChanged();
+        }
+    }
+
+    private void fireStateChanged(boolean running) {
+        for (ServerListener listener : listeners) {
+            listener.onStateChanged(running);
         }
-        return false;
     }
 
     public static void main(String[] args) {
+        ServerConfig config = ServerConfig.parse(args);
+        ChatServer server = new ChatServer(config);
+
+        if (config.isHeadless() || GraphicsEnvironment.isHeadless()) {
+            runHeadless(server);
+            return;
+        }
+
         try {
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
         } catch (Exception e) {
             e.printStackTrace();
         }
+        SwingUtilities.invokeLater(() -> new ServerControlPanel(server));
+    }
+
+    private static void runHeadless(ChatServer server) {
+        ServerConfig config = server.getConfig();
+        ConsoleLog console = null;
+        if (!config.isQuiet()) {
+            console = new ConsoleLog(config.getLogLines());
+            server.addListener(console);
+            console.start();
+        }
+
+        long startNanos = System.nanoTime();
+        try {
+            server.start();
+        } catch (IOException e) {
+            System.err.println("Failed to start server: " + e.getMessage());
+            System.exit(1);
+        }
+        System.out.printf("Chat Server v%s listening on port %d (%s) in %.1f ms%n", VERSION,
+                config.getPort(), config.getIoMode(), (System.nanoTime() - startNanos) / 1e6);
+
+        ConsoleLog log = console;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            if (log != null) {
+                log.flush();
+            }
+        }, "shutdown"));
+
+        if (config.getStatsIntervalSeconds() > 0) {
+            ScheduledExecutorService stats = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "stats-printer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            stats.scheduleAtFixedRate(() -> System.out.printf(
+                    "[stats] uptime=%s online=%d peak=%d messages=%d liveFrames=%d utilization=%s%n",
+                    server.getUptime(), server.getOnlineCount(), server.getPeakConnections(),
+                    server.getTotalMessages(), SharedFrame.getLiveFrames(), server.getUtilizationReport()),
+                    config.getStatsIntervalSeconds(), config.getStatsIntervalSeconds(), TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * The headless console. Logging threads only stamp the line and put it in
+     * a {@link LogRingBuffer}; one printer thread writes it out, so a stalled
+     * stdout holds up nobody but the printer. If it falls a whole ring
+     * behind, the lines it missed are counted instead of printed.
+     */
+    private static final class ConsoleLog implements ServerListener {
+
+        private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss");
+        private static final long IDLE_NANOS = 100_000_000L;
+
+        private final LogRingBuffer lines;
+        private final Thread printer = new Thread(this::printLoop, "console-log");
+        private final List<String> batch = new ArrayList<>();
+        // Printer only, or the shutdown hook once the server has stopped
+        private long cursor = 0;
+
+        ConsoleLog(int capacity) {
+            this.lines = new LogRingBuffer(capacity);
+            printer.setDaemon(true);
+        }
+
+        void start() {
+            printer.start();
+        }
 
-        SwingUtilities.invokeLater(ChatServer::new);
+        @Override
+        public void onLog(String message) {
+            lines.add("[" + LocalTime.now().format(TIME) + "] " + message);
+            LockSupport.unpark(printer);
+        }
+
+        private void printLoop() {
+            while (true) {
+                LockSupport.parkNanos(IDLE_NANOS);
+                flush();
+            }
+        }
+
+        synchronized void flush() {
+            long oldest = lines.getSequence() - lines.getCapacity();
+            if (cursor < oldest) {
+                System.out.println("[" + (oldest - cursor) + " log lines skipped]");
+                cursor = oldest;
+            }
+            cursor = lines.drainTo(cursor, batch);
+            for (String line : batch) {
+                System.out.println(line);
+            }
+            batch.clear();
+        }
     }
 }
@@ -2,20 +2,76 @@ package Hn;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import javax.net.ssl.SSLSocket;
 
 public class ClientHandler implements Runnable {
 
+    // Queued by close() so the writer drains what is left and then exits
+    private static final SharedFrame END_OF_STREAM = SharedFrame.constant(FrameCodec.Type.CHAT, "");
+    private static final SharedFrame CLEAR_CHAT = SharedFrame.constant(FrameCodec.Type.CLEAR, "");
+    private static final long WRITER_DRAIN_MILLIS = 1000;
+    private static final int TLS_HANDSHAKE_TIMEOUT_MILLIS = 10000;
+    private static final int READ_BUFFER_SIZE = 4096;
+    // How often a lingering writer checks whether the line it waits on is done
+    private static final long LINGER_SLICE_NANOS = 50_000;
+    private static final int DEFAULT_HISTORY = 20;
+    private static final int MAX_HISTORY = 100;
+    private static final AtomicInteger nextConnectionId = new AtomicInteger(1);
+
     private Socket socket;
     private ChatServer server;
-    private PrintWriter out;
-    private BufferedReader in;
-    private String username;
+    // Unbuffered; each frame goes out in one write anyway
+    private OutputStream out;
+    private InboundReader in;
+    private volatile String username;
     private AtomicBoolean isRunning = new AtomicBoolean(true);
     private String clientId;
+    private final int connectionId = nextConnectionId.getAndIncrement();
+    private volatile boolean binary = false;
+    // Set during the handshake if the client asked for compression and the
+    // server allows it; used only by the writer
+    private StreamCompressor compressor;
+    // Set during the handshake if the client keeps a user list
+    private boolean presence = false;
+    // Set during the handshake if the client reconnects on its own; the
+    // token is null for a new session
+    private boolean resumable = false;
+    private String resumeToken;
+    private long resumeSeq;
+    // Null unless the client has a session, which this handler either
+    // stands for or carries
+    private volatile Session session;
+    // Set by /admin with the server's admin token
+    private volatile boolean admin = false;
+    // Set once the writer has taken the session's announcement; writer only
+    private boolean numbering = false;
     private UserStatus status = UserStatus.ONLINE;
+    private volatile Room room;
+    // Set while the reader handles a line of this client's, so that the
+    // writer can wait for the rest of the replies before writing
+    private volatile boolean dispatching = false;
+    private OutboundQueue<SharedFrame> outbound;
+    private final CountDownLatch writerDone = new CountDownLatch(1);
+    private boolean writerStarted = false;
+    // Rate limits on what this client sends; null for no limit
+    private final TokenBucket chatLimit;
+    private final TokenBucket pmLimit;
+    private final TokenBucket statusLimit;
+    // Set once the client has been told it is being slowed down; reader only
+    private boolean throttleNoticeSent = false;
     
     public enum UserStatus {
         ONLINE, AWAY, BUSY, OFFLINE
@@ -25,10 +81,14 @@ public class ClientHandler implements Runnable {
         this.socket = socket;
         this.server = server;
         this.clientId = generateClientId();
+        this.outbound = OutboundQueue.forFrames(server.getConfig());
+        this.chatLimit = TokenBucket.of(server.getConfig().getChatRate(), server.getConfig().getChatBurst());
+        this.pmLimit = TokenBucket.of(server.getConfig().getPmRate(), server.getConfig().getPmBurst());
+        this.statusLimit = TokenBucket.of(server.getConfig().getStatusRate(), server.getConfig().getStatusBurst());
         
         try {
-            out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = socket.getOutputStream();
+            in = new InboundReader(socket.getInputStream(), server.getStreamBuffers(), READ_BUFFER_SIZE);
             
             // Remove timeout to prevent automatic disconnection
             socket.setKeepAlive(true);
@@ -39,41 +99,50 @@ public class ClientHandler implements Runnable {
         }
     }
 
+    /**
+     * For transports that do their own socket I/O; the subclass feeds
+     * {@link #onHandshake} and {@link #onLine} and overrides {@link #sendMessage}.
+     */
+    protected ClientHandler(ChatServer server, Socket socket) {
+        this.socket = socket;
+        this.server = server;
+        this.clientId = generateClientId();
+        this.chatLimit = TokenBucket.of(server.getConfig().getChatRate(), server.getConfig().getChatBurst());
+        this.pmLimit = TokenBucket.of(server.getConfig().getPmRate(), server.getConfig().getPmBurst());
+        this.statusLimit = TokenBucket.of(server.getConfig().getStatusRate(), server.getConfig().getStatusBurst());
+    }
+
     @Override
     public void run() {
         try {
-            username = in.readLine();
-            if (username == null || username.trim().isEmpty()) {
-                username = "Anonymous_" + clientId.substring(0, 4);
+            if (socket instanceof SSLSocket) {
+                startTls((SSLSocket) socket);
             }
-            
-            username = validateUsername(username);
-            
-            if (server.isUsernameTaken(username, this)) {
-                sendSystemMessage("Username '" + username + "' is already taken. Using '" + username + "_" + clientId.substring(0, 4) + "' instead.");
-                username = username + "_" + clientId.substring(0, 4);
+            // What arrived behind the handshake line stays in the reader
+            // until we know which protocol it is
+            String requestedName = parseHandshake(in.readLine());
+
+            writerStarted = true;
+            server.startWriter(this::writeLoop, "client-writer-" + clientId);
+            dispatching = true;
+            try {
+                onHandshake(requestedName);
+            } finally {
+                dispatching = false;
             }
-            
-            server.clientConnected(this);
-            
-            sendSystemMessage("Welcome to the Chat Server, " + username + "!");
-            sendSystemMessage("Type /help for available commands");
-            
-            String message;
-            while (isRunning.get() && (message = in.readLine()) != null) {
-                if (!message.trim().isEmpty()) {
-                    if (message.startsWith("/")) {
-                        handleCommand(message);
-                    } else {
-                        if (status != UserStatus.AWAY) {
-                            String formattedMessage = formatMessage(message);
-                            server.broadcast(formattedMessage, this, false);
-                            server.logMessage(username, message);
-                        } else {
-                            sendSystemMessage("You are marked as AWAY. Type /back to resume chatting.");
-                        }
+
+            if (binary) {
+                FrameCodec.Frame frame;
+                while (isRunning.get() && (frame = in.readFrame()) != null) {
+                    if (frame.type == FrameCodec.Type.TEXT) {
+                        dispatch(frame.text);
                     }
                 }
+            } else {
+                String message;
+                while (isRunning.get() && (message = in.readLine()) != null) {
+                    dispatch(message);
+                }
             }
         } catch (SocketException e) {
             // Socket closed by server or client
@@ -84,10 +153,343 @@ public class ClientHandler implements Runnable {
             }
         } finally {
             disconnect();
+            in.release();
+        }
+    }
+
+    private void dispatch(String line) {
+        long wait = throttle(line);
+        if (wait > 0) {
+            // Not reading meanwhile lets TCP slow the client down
+            long until = System.nanoTime() + wait;
+            while (isRunning.get() && (wait = until - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+        dispatching = true;
+        try {
+            onLine(line);
+        } finally {
+            dispatching = false;
+        }
+    }
+
+    /**
+     * Runs the TLS handshake up front rather than within the first read, so
+     * that a peer stalling in it times out and its cost is measured.
+     */
+    private void startTls(SSLSocket tls) throws IOException {
+        long start = System.nanoTime();
+        long startMillis = System.currentTimeMillis();
+        tls.setSoTimeout(TLS_HANDSHAKE_TIMEOUT_MILLIS);
+        tls.startHandshake();
+        tls.setSoTimeout(0);
+        server.getMetrics().tlsHandshake(System.nanoTime() - start,
+                TlsConfig.isResumed(tls.getSession(), startMillis));
+    }
+
+    /**
+     * Strips the binary protocol, compression, presence and session requests
+     * off the first line, if present, and returns the requested username.
+     */
+    String parseHandshake(String line) {
+        String prefix = FrameCodec.BINARY_HANDSHAKE + " ";
+        if (line != null && line.startsWith(prefix)) {
+            binary = true;
+            line = line.substring(prefix.length());
+        }
+        prefix = FrameCodec.DEFLATE_HANDSHAKE + " ";
+        if (line != null && line.startsWith(prefix)) {
+            line = line.substring(prefix.length());
+            int level = server.getConfig().getCompressionLevel();
+            if (level > 0) {
+                compressor = new StreamCompressor(level);
+            }
+        }
+        prefix = FrameCodec.PRESENCE_HANDSHAKE + " ";
+        if (line != null && line.startsWith(prefix)) {
+            line = line.substring(prefix.length());
+            presence = server.getConfig().getPresenceIntervalMillis() > 0;
+        }
+        prefix = FrameCodec.SESSION_HANDSHAKE + " ";
+        if (line != null && line.startsWith(prefix)) {
+            int end = line.indexOf(' ', prefix.length());
+            String resume = line.substring(prefix.length(), end < 0 ? line.length() : end);
+            line = end < 0 ? "" : line.substring(end + 1);
+            resumable = server.getConfig().getSessionGraceSeconds() > 0;
+            int slash = resume.indexOf('/');
+            if (slash > 0 && !resume.startsWith("-")) {
+                try {
+                    resumeSeq = Long.parseLong(resume.substring(slash + 1));
+                    resumeToken = resume.substring(0, slash);
+                } catch (NumberFormatException e) {
+                    // Not resumable; a new session it is
+                }
+            }
+        }
+        return line;
+    }
+
+    /**
+     * Drains the outbound queue onto the socket, so that a client with a full
+     * TCP window only ever stalls its own writer and not the senders.
+     *
+     * <p>Everything queued when the writer wakes goes out in one write, and
+     * while this client's own line is being handled the writer waits up to
+     * {@link ServerConfig#getWriteLingerMicros} for the rest of its replies.
+     */
+    private void writeLoop() {
+        ServerMetrics metrics = server.getMetrics();
+        OutboundBatch batch = new OutboundBatch(server.getStreamBuffers(), metrics, binary, compressor);
+        SharedFrame frame = null;
+        try {
+            byte[] ack = FrameCodec.handshakeAck(binary, compressor != null);
+            if (ack != null) {
+                out.write(ack);
+                metrics.socketWrite();
+            }
+            long lingerNanos = server.getConfig().getWriteLingerMicros() * 1000L;
+            frame = outbound.take();
+            taken(frame);
+            while (frame != END_OF_STREAM) {
+                long lingerUntil = System.nanoTime() + lingerNanos;
+                while (frame != null && frame != END_OF_STREAM && batch.add(frame)) {
+                    // The batch has taken it over
+                    frame = null;
+                    frame = pollWhileDispatching(lingerUntil);
+                }
+                // Null, the end, or the first frame of the next batch
+                writeBatch(batch);
+                if (frame == null) {
+                    frame = outbound.take();
+                    taken(frame);
+                }
+            }
+        } catch (IOException e) {
+            // The reader notices the broken socket and disconnects
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (frame != null) {
+                frame.release();
+            }
+            batch.release();
+            drainQueue(outbound);
+            if (compressor != null) {
+                compressor.end();
+            }
+            writerDone.countDown();
+        }
+    }
+
+    /**
+     * The next queued frame, waiting for one only while this client's line
+     * is still being handled and {@code lingerUntil} has not passed.
+     */
+    private SharedFrame pollWhileDispatching(long lingerUntil) throws InterruptedException {
+        SharedFrame frame = outbound.poll();
+        while (frame == null && dispatching) {
+            long wait = lingerUntil - System.nanoTime();
+            if (wait <= 0) {
+                break;
+            }
+            frame = outbound.poll(Math.min(wait, LINGER_SLICE_NANOS), TimeUnit.NANOSECONDS);
+        }
+        taken(frame);
+        return frame;
+    }
+
+    /**
+     * Called by the writer for every frame it takes off the queue, in order:
+     * logs it in the session, once the session's announcement has been
+     * taken, so that the numbers match the client's count.
+     */
+    protected void taken(SharedFrame frame) {
+        Session current = session;
+        if (current == null || frame == null || frame == END_OF_STREAM) {
+            return;
+        }
+        if (frame.getType() == FrameCodec.Type.SESSION) {
+            numbering = true;
+        } else if (numbering) {
+            current.record(this, frame.retain());
+        }
+    }
+
+    /**
+     * Called by the writer once it has stopped: logs what is left in the
+     * queue in the session, which from then on logs what is sent, or drops
+     * it if there is no session.
+     */
+    protected void drainQueue(OutboundQueue<SharedFrame> queue) {
+        Session current = session;
+        if (current == null) {
+            queue.clear();
+            return;
+        }
+        current.detach(this, () -> {
+            SharedFrame frame;
+            while ((frame = queue.poll()) != null) {
+                taken(frame);
+                frame.release();
+            }
+        });
+    }
+
+    private void writeBatch(OutboundBatch batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            ByteBuffer bytes = batch.finish();
+            out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+        } finally {
+            batch.release();
+        }
+        server.getMetrics().socketWrite();
+        server.getMetrics().recipientWrite.recordSince(start);
+    }
+
+    StreamCompressor getCompressor() {
+        return compressor;
+    }
+
+    void onHandshake(String requestedName) {
+        if (resumeToken != null && server.resumeSession(this, resumeToken, resumeSeq)) {
+            return;
+        }
+        username = requestedName;
+        if (username == null || username.trim().isEmpty()) {
+            username = "Anonymous_" + clientId.substring(0, 4);
+        }
+        
+        username = validateUsername(username);
+        
+        if (!server.reserveUsername(username, this)) {
+            String requested = username;
+            username = requested + "_" + clientId.substring(0, 4);
+            for (int n = 2; !server.reserveUsername(username, this); n++) {
+                username = requested + "_" + n;
+            }
+            sendSystemMessage("Username '" + requested + "' is already taken. Using '" + username + "' instead.");
+        }
+        
+        if (resumable) {
+            session = server.openSession(this);
+        }
+        server.clientConnected(this);
+        
+        sendSystemMessage("Welcome to the Chat Server, " + username + "!");
+        sendSystemMessage("Type /help for available commands");
+        server.sendBacklog(this);
+    }
+
+    /**
+     * Takes the tokens {@code line} costs and returns how many nanoseconds
+     * to hold it back before {@link #onLine}, 0 if it may go now. The
+     * caller stops reading from this client meanwhile, so a flood waits in
+     * the client's socket rather than in queues here.
+     *
+     * <p>Chat lines cost a token from this client's chat limit and from its
+     * room's, private messages from its PM limit, and commands that
+     * announce something to others, or read the journal, from its status
+     * limit. Other commands only reply to this client and are not limited.
+     */
+    long throttle(String line) {
+        ClientHandler user = getUser();
+        if (user != this) {
+            // The limits go with the user, not the connection
+            return user.throttle(line);
+        }
+        TokenBucket bucket;
+        ServerMetrics.Throttle cause;
+        if (!line.startsWith("/")) {
+            if (line.trim().isEmpty()) {
+                return 0;
+            }
+            bucket = chatLimit;
+            cause = ServerMetrics.Throttle.CHAT;
+        } else {
+            int end = line.indexOf(' ');
+            switch ((end < 0 ? line : line.substring(0, end)).toLowerCase()) {
+                case "/msg":
+                    bucket = pmLimit;
+                    cause = ServerMetrics.Throttle.PM;
+                    break;
+                case "/away":
+                case "/back":
+                case "/status":
+                case "/nick":
+                case "/join":
+                case "/part":
+                case "/history":
+                case "/admin":
+                    bucket = statusLimit;
+                    cause = ServerMetrics.Throttle.STATUS;
+                    break;
+                default:
+                    return 0;
+            }
+        }
+        long now = System.nanoTime();
+        long wait = bucket != null ? bucket.take(now) : 0;
+        Room current = room;
+        if (cause == ServerMetrics.Throttle.CHAT && current != null && current.getChatLimit() != null) {
+            long roomWait = current.getChatLimit().take(now);
+            if (roomWait > wait) {
+                wait = roomWait;
+                cause = ServerMetrics.Throttle.ROOM;
+            }
+        }
+        if (wait == 0) {
+            throttleNoticeSent = false;
+            return 0;
+        }
+        server.getMetrics().throttled(cause, wait);
+        if (!throttleNoticeSent) {
+            throttleNoticeSent = true;
+            sendSystemMessage(cause == ServerMetrics.Throttle.ROOM
+                    ? "#" + current.getName() + " is busy; your messages are being slowed down."
+                    : "You are sending too fast; your messages are being slowed down.");
+        }
+        return wait;
+    }
+
+    void onLine(String message) {
+        getUser().handleLine(message, this);
+    }
+
+    /**
+     * Handles a line from {@code connection} for this user. The connection
+     * is this handler unless it resumed the user's session.
+     */
+    private void handleLine(String message, ClientHandler connection) {
+        if (!FrameCodec.fitsLine(message)) {
+            // The readers cap the bytes, but bytes that are not UTF-8 decode
+            // to longer replacement characters
+            sendSystemMessage("Message too long; the limit is " + FrameCodec.MAX_LINE_LENGTH + " bytes.");
+            return;
+        }
+        if (!message.trim().isEmpty()) {
+            if (message.startsWith("/")) {
+                handleCommand(message, connection);
+            } else {
+                if (status != UserStatus.AWAY) {
+                    String formattedMessage = formatMessage(message);
+                    Room current = room;
+                    if (current != null) {
+                        server.broadcastToRoom(current, formattedMessage, this);
+                    }
+                    server.logMessage(username, message);
+                } else {
+                    sendSystemMessage("You are marked as AWAY. Type /back to resume chatting.");
+                }
+            }
         }
     }
     
-    private void handleCommand(String command) {
+    private void handleCommand(String command, ClientHandler connection) {
         String[] parts = command.split(" ", 2);
         String cmd = parts[0].toLowerCase();
         String argument = parts.length > 1 ? parts[1] : "";
@@ -97,38 +499,85 @@ public class ClientHandler implements Runnable {
                 sendSystemMessage("Available commands:");
                 sendSystemMessage("/users - Show online users");
                 sendSystemMessage("/msg <user> <message> - Send private message");
+                sendSystemMessage("/nick <name> - Change your username");
+                sendSystemMessage("/join <room> - Join or create a room");
+                sendSystemMessage("/part - Leave your room for the lobby");
+                sendSystemMessage("/rooms - List rooms");
+                sendSystemMessage("/history [n] - Show recent messages in your room");
                 sendSystemMessage("/away <message> - Set away status");
                 sendSystemMessage("/back - Return from away status");
                 sendSystemMessage("/status <online|away|busy> - Change status");
                 sendSystemMessage("/clear - Clear your chat");
                 sendSystemMessage("/info - Show server info");
+                sendSystemMessage("/quit - Log out");
+                if (server.getConfig().getAdminToken() != null) {
+                    sendSystemMessage("/admin <token> - Log in as an administrator");
+                }
+                if (isAdmin()) {
+                    sendSystemMessage("/metrics - Show server metrics (admin)");
+                }
                 break;
                 
             case "/users":
-                sendSystemMessage("Online users (" + server.getOnlineCount() + "):");
-                for (ClientHandler user : server.getConnectedUsers()) {
-                    String userInfo = "- " + user.getUsername();
-                    if (user != this) {
-                        userInfo += " (" + user.getStatus() + ")";
-                    }
-                    sendSystemMessage(userInfo);
-                }
+                listUsers();
                 break;
                 
             case "/msg":
                 handlePrivateMessage(argument);
                 break;
                 
+            case "/join":
+                handleJoin(argument);
+                break;
+                
+            case "/part":
+                if (room == null || RoomManager.LOBBY.equals(room.getName())) {
+                    sendSystemMessage("You are already in the lobby.");
+                } else {
+                    server.joinRoom(this, RoomManager.LOBBY);
+                    sendSystemMessage("You are back in #" + RoomManager.LOBBY);
+                    server.sendBacklog(this);
+                }
+                break;
+                
+            case "/rooms":
+                listRooms();
+                break;
+                
+            case "/nick":
+                handleRename(argument, connection);
+                break;
+                
+            case "/history":
+                handleHistory(argument);
+                break;
+                
+            case "/admin":
+                handleAdminLogin(argument);
+                break;
+                
+            case "/metrics":
+                if (!isAdmin()) {
+                    sendSystemMessage("/metrics is only available to server administrators.");
+                    break;
+                }
+                for (String line : server.getMetrics().report().split("\n")) {
+                    sendSystemMessage(line);
+                }
+                break;
+                
             case "/away":
                 setStatus(UserStatus.AWAY);
+                server.statusChanged(this);
                 sendSystemMessage("You are now AWAY" + (argument.isEmpty() ? "" : ": " + argument));
-                server.broadcast("[System] " + username + " is now away", this, true);
+                server.broadcastSystem(username + " is now away", this, true);
                 break;
                 
             case "/back":
                 setStatus(UserStatus.ONLINE);
+                server.statusChanged(this);
                 sendSystemMessage("Welcome back!");
-                server.broadcast("[System] " + username + " is back online", this, true);
+                server.broadcastSystem(username + " is back online", this, true);
                 break;
                 
             case "/status":
@@ -136,7 +585,12 @@ public class ClientHandler implements Runnable {
                 break;
                 
             case "/clear":
-                sendMessage("CLEAR_CHAT");
+                sendFrame(CLEAR_CHAT);
+                break;
+                
+            case "/quit":
+                sendSystemMessage("Goodbye, " + username + "!");
+                server.endSession(this);
                 break;
                 
             case "/info":
@@ -144,6 +598,10 @@ public class ClientHandler implements Runnable {
                 sendSystemMessage("Version: " + server.getServerVersion());
                 sendSystemMessage("Uptime: " + server.getUptime());
                 sendSystemMessage("Active connections: " + server.getOnlineCount());
+                String cluster = server.getClusterStatus();
+                if (cluster != null) {
+                    sendSystemMessage("Cluster: " + cluster);
+                }
                 break;
                 
             default:
@@ -161,25 +619,151 @@ public class ClientHandler implements Runnable {
         String targetUser = parts[0];
         String privateMsg = parts[1];
         
-        if (server.sendPrivateMessage(this, targetUser, privateMsg)) {
-            sendMessage("[PM to " + targetUser + "] " + privateMsg);
-        } else {
-            sendSystemMessage("User '" + targetUser + "' not found or offline.");
+        if (!server.sendPrivateMessage(this, targetUser, privateMsg)) {
+            privateMessageFailed(targetUser);
+        }
+    }
+    
+    void privateMessageFailed(String targetUser) {
+        sendSystemMessage("User '" + targetUser + "' not found or offline.");
+    }
+    
+    private void handleJoin(String argument) {
+        String name = RoomManager.normalize(argument);
+        if (name == null) {
+            sendSystemMessage("Usage: /join <room> (letters, digits, _ or -, up to 20)");
+            return;
+        }
+        if (room != null && room.getName().equals(name)) {
+            sendSystemMessage("You are already in #" + name);
+            return;
+        }
+        
+        Room joined = server.joinRoom(this, name);
+        sendSystemMessage("You joined #" + name + " (" + joined.getMemberCount() + " members)");
+        server.sendBacklog(this);
+    }
+    
+    private void listUsers() {
+        String node = server.getClusterNodeId();
+        sendSystemMessage("Online users" + (node != null ? " on node " + node : "")
+                + " (" + server.getOnlineCount() + "):");
+        for (ClientHandler user : server.getConnectedUsers()) {
+            String userInfo = "- " + user.getUsername();
+            if (user != this) {
+                userInfo += " (" + user.getStatus() + ")";
+            }
+            sendSystemMessage(userInfo);
+        }
+        server.requestRemoteUsers(this);
+    }
+    
+    private void listRooms() {
+        List<Room> rooms = server.getRooms();
+        sendSystemMessage("Rooms (" + rooms.size() + "):");
+        for (Room r : rooms) {
+            sendSystemMessage("- #" + r.getName() + " (" + r.getMemberCount() + ")"
+                    + (r == room ? " <- you are here" : ""));
+        }
+    }
+    
+    private void handleHistory(String argument) {
+        int limit = DEFAULT_HISTORY;
+        if (!argument.trim().isEmpty()) {
+            try {
+                limit = Math.min(MAX_HISTORY, Math.max(1, Integer.parseInt(argument.trim())));
+            } catch (NumberFormatException e) {
+                sendSystemMessage("Usage: /history [n] (up to " + MAX_HISTORY + ")");
+                return;
+            }
+        }
+        
+        // Answered from the journal reader thread
+        Room current = room;
+        server.readHistory(current, limit, entries -> {
+            if (entries == null) {
+                sendSystemMessage("Message history is not enabled on this server.");
+                return;
+            }
+            sendSystemMessage("Last " + entries.size() + " messages"
+                    + (current != null ? " in #" + current.getName() : "") + ":");
+            for (MessageJournal.Entry entry : entries) {
+                sendFrame(SharedFrame.chat(0, entry.text));
+            }
+            sendSystemMessage("End of history.");
+        });
+    }
+    
+    /**
+     * Administrators are clients on the server's own host and users who gave
+     * the admin token. Usernames are not checked: anyone can pick one.
+     */
+    private boolean isAdmin() {
+        return admin || (socket != null && socket.getInetAddress().isLoopbackAddress());
+    }
+    
+    private void handleAdminLogin(String argument) {
+        String token = server.getConfig().getAdminToken();
+        // Compared in constant time; /admin is rate-limited like /nick
+        if (token == null || !MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+                argument.trim().getBytes(StandardCharsets.UTF_8))) {
+            server.log("Rejected /admin from " + username);
+            sendSystemMessage("Wrong admin token.");
+            return;
+        }
+        admin = true;
+        server.log(username + " logged in as an administrator");
+        sendSystemMessage("You are now an administrator.");
+    }
+    
+    private void handleRename(String argument, ClientHandler connection) {
+        if (argument.trim().isEmpty()) {
+            sendSystemMessage("Usage: /nick <name>");
+            return;
+        }
+        
+        String newName = validateUsername(argument);
+        String oldName = username;
+        if (newName.equals(oldName)) {
+            return;
+        }
+        connection.claimName(() -> server.renameClient(this, oldName, newName),
+                renamed -> finishRename(oldName, newName, renamed));
+    }
+
+    private void finishRename(String oldName, String newName, boolean renamed) {
+        if (!renamed) {
+            sendSystemMessage("Username '" + newName + "' is not available.");
+            return;
         }
+        
+        username = newName;
+        sendSystemMessage("You are now known as " + newName);
+        server.broadcastSystem(oldName + " is now known as " + newName, this, false);
+    }
+    
+    /**
+     * Runs {@code claim}, which may wait for another cluster node, and hands
+     * its outcome to {@code then}. Blocking transports do both on the reading
+     * thread; others may claim on another thread and read nothing meanwhile.
+     */
+    protected void claimName(BooleanSupplier claim, Consumer<Boolean> then) {
+        then.accept(claim.getAsBoolean());
     }
     
     private void handleStatusChange(String status) {
         try {
             UserStatus newStatus = UserStatus.valueOf(status.toUpperCase());
             setStatus(newStatus);
+            server.statusChanged(this);
             sendSystemMessage("Status changed to: " + newStatus);
-            server.broadcast("[System] " + username + " is now " + newStatus, this, true);
+            server.broadcastSystem(username + " is now " + newStatus, this, true);
         } catch (IllegalArgumentException e) {
             sendSystemMessage("Invalid status. Use: online, away, busy");
         }
     }
     
-    private String formatMessage(String message) {
+    String formatMessage(String message) {
         LocalDateTime now = LocalDateTime.now();
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("HH:mm");
         String timestamp = now.format(formatter);
@@ -187,7 +771,7 @@ public class ClientHandler implements Runnable {
         return "[" + timestamp + "] " + username + ": " + message;
     }
     
-    private String validateUsername(String username) {
+    String validateUsername(String username) {
         username = username.replaceAll("[^a-zA-Z0-9_]", "").trim();
         if (username.length() > 15) {
             username = username.substring(0, 15);
@@ -199,28 +783,101 @@ public class ClientHandler implements Runnable {
     }
     
     public void sendMessage(String message) {
-        if (out != null && !socket.isClosed()) {
-            out.println(message);
-            out.flush();
+        sendFrame(SharedFrame.chat(0, message));
+    }
+    
+    /**
+     * Queues an already encoded frame, taking over one reference to it. The
+     * reference is released once the frame has been written or dropped.
+     * With a session, the frame goes to whichever connection carries it.
+     */
+    public void sendFrame(SharedFrame frame) {
+        Session current = session;
+        if (current != null) {
+            current.send(frame);
+        } else {
+            enqueue(frame);
+        }
+    }
+
+    /**
+     * Queues a frame on this connection. With a session, this is only called
+     * until the writer has drained the queue, which then takes care of frames
+     * that come in while it closes.
+     */
+    protected void enqueue(SharedFrame frame) {
+        if (out == null || (!isRunning.get() && session == null)) {
+            frame.release();
+            return;
+        }
+        OutboundQueue.OfferResult result = outbound.offer(frame);
+        if (result == OutboundQueue.OfferResult.DISCONNECT) {
+            onSlowConsumer();
+        } else if (result == OutboundQueue.OfferResult.DROPPED) {
+            server.getMetrics().frameDropped();
+        }
+        if (!isRunning.get() && session == null) {
+            // Raced with disconnect(): the frame may sit behind the end marker,
+            // where the writer never reaches it. Drop it and requeue the marker.
+            outbound.clear();
+            if (writerStarted) {
+                outbound.forceOffer(END_OF_STREAM);
+            }
+        }
+    }
+    
+    protected ServerMetrics getMetrics() {
+        return server.getMetrics();
+    }
+    
+    /**
+     * Called from a producer's thread when the slow-consumer policy gives up
+     * on this client. Producers may be iterating the client list, so this only
+     * closes the socket; the reader thread then runs the normal disconnect.
+     */
+    protected void onSlowConsumer() {
+        System.err.println("Disconnecting slow consumer " + getUsername()
+                + " (queue depth " + outbound.getDepth() + ")");
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("Error closing slow consumer: " + e.getMessage());
         }
     }
     
     public void sendSystemMessage(String message) {
-        sendMessage("[System] " + message);
+        sendFrame(SharedFrame.system(message));
     }
     
     public void disconnect() {
         if (isRunning.compareAndSet(true, false)) {
-            setStatus(UserStatus.OFFLINE);
+            if (session == null) {
+                // A session keeps the user as it was until it ends
+                setStatus(UserStatus.OFFLINE);
+            }
             close();
             server.removeClient(this);
         }
     }
     
     public void close() {
+        if (writerStarted) {
+            // Let the writer deliver what is already queued (e.g. a kick
+            // notice) before the socket goes away
+            outbound.forceOffer(END_OF_STREAM);
+            try {
+                writerDone.await(WRITER_DRAIN_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (session == null || !writerStarted) {
+            // With a session the writer logs what is left once it stops
+            getOutboundQueue().clear();
+        }
         try {
-            if (in != null) in.close();
-            if (out != null) out.close();
+            // Also unblocks a reader thread parked in a read; the reader
+            // gives its buffer back itself on the way out
             if (socket != null && !socket.isClosed()) {
                 socket.close();
             }
@@ -234,14 +891,75 @@ public class ClientHandler implements Runnable {
                Thread.currentThread().getId();
     }
     
+    boolean isConnected() {
+        return isRunning.get();
+    }
+    
     public String getUsername() {
+        ClientHandler user = getUser();
+        if (user != this) {
+            return user.getUsername();
+        }
         return username != null ? username : "Unknown";
     }
+
+    /**
+     * The handler that stands for this connection's user: the session's
+     * owner if the connection resumed one, otherwise this handler.
+     */
+    ClientHandler getUser() {
+        Session current = session;
+        return current != null ? current.getOwner() : this;
+    }
+
+    Session getSession() {
+        return session;
+    }
+
+    void setSession(Session session) {
+        this.session = session;
+    }
+    
+    public int getConnectionId() {
+        return connectionId;
+    }
+    
+    boolean isBinary() {
+        return binary;
+    }
+    
+    boolean wantsPresence() {
+        return presence;
+    }
     
     public String getClientId() {
         return clientId;
     }
     
+    protected OutboundQueue<?> getOutboundQueue() {
+        return outbound;
+    }
+    
+    public int getQueueDepth() {
+        return getOutboundQueue().getDepth();
+    }
+    
+    public int getMaxQueueDepth() {
+        return getOutboundQueue().getMaxDepth();
+    }
+    
+    public long getDroppedMessages() {
+        return getOutboundQueue().getDropped();
+    }
+    
+    public Room getRoom() {
+        return room;
+    }
+    
+    void setRoom(Room room) {
+        this.room = room;
+    }
+    
     public UserStatus getStatus() {
         return status;
     }
@@ -0,0 +1,112 @@
+package Hn;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Lock-free set of connected clients, tuned for fan-out: iteration is far more
+ * frequent than joins and leaves.
+ *
+ * <p>Members are spread over copy-on-write stripes. A reader grabs each
+ * stripe's array once and walks it without any coordination, so broadcasts
+ * never wait for joins or leaves and vice versa. Writers CAS a new array into
+ * a single stripe, so a join or leave copies only about 1/{@value #STRIPES}
+ * of the population.
+ *
+ * <p>A reader may still be walking a snapshot that contains a member after
+ * {@link #remove} returns. Members must therefore refuse deliveries once they
+ * are closed, as {@link ClientHandler#sendFrame} does.
+ */
+public class ClientRegistry<T> implements Iterable<T> {
+
+    private static final int STRIPES = 16;
+    private static final Object[] EMPTY = new Object[0];
+
+    private final AtomicReferenceArray<Object[]> stripes = new AtomicReferenceArray<>(STRIPES);
+    private final AtomicInteger size = new AtomicInteger();
+
+    public ClientRegistry() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes.set(i, EMPTY);
+        }
+    }
+
+    private static int stripeOf(Object member) {
+        int h = System.identityHashCode(member);
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    public void add(T member) {
+        int stripe = stripeOf(member);
+        while (true) {
+            Object[] current = stripes.get(stripe);
+            Object[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = member;
+            if (stripes.compareAndSet(stripe, current, next)) {
+                size.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    public boolean remove(T member) {
+        int stripe = stripeOf(member);
+        while (true) {
+            Object[] current = stripes.get(stripe);
+            int index = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == member) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                return false;
+            }
+
+            Object[] next;
+            if (current.length == 1) {
+                next = EMPTY;
+            } else {
+                next = new Object[current.length - 1];
+                System.arraycopy(current, 0, next, 0, index);
+                System.arraycopy(current, index + 1, next, index, current.length - index - 1);
+            }
+            if (stripes.compareAndSet(stripe, current, next)) {
+                size.decrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEach(Consumer<? super T> action) {
+        for (int i = 0; i < STRIPES; i++) {
+            for (Object member : stripes.get(i)) {
+                action.accept((T) member);
+            }
+        }
+    }
+
+    public List<T> snapshot() {
+        List<T> copy = new ArrayList<>(size());
+        forEach(copy::add);
+        return copy;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return snapshot().iterator();
+    }
+}
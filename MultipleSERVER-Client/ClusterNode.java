@@ -0,0 +1,1029 @@
+package Hn;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Joins a {@link ChatServer} to other server processes so that they share one
+ * chat space.
+ *
+ * <p>Every node keeps one TCP link to every other node (a full mesh) on its
+ * {@code --cluster-port}. A new node needs only one reachable
+ * {@code --peers} entry: each peer it connects to tells it about the rest of
+ * the cluster, and it dials those too. Lost links are redialed every few
+ * seconds.
+ *
+ * <p>A broadcast is encoded once and relayed once per peer node, however
+ * many users that node has; the receiving node fans it out to its own clients
+ * and never relays it further.
+ *
+ * <p>Presence is partitioned, not replicated. A {@link HashRing} over the
+ * linked nodes makes one node the owner of each username, and only the owner
+ * records which node the user is connected to (its home). Claiming a name is
+ * a single atomic check-and-set at its owner, so two nodes can never both
+ * hand it out, and a private message to a user on another node goes to the
+ * name's owner and from there to the home node, whichever node it was sent
+ * from. Messages that reach a node whose view of the ring says someone else
+ * owns the name are forwarded. When a node joins, each existing node hands
+ * it the few names it now owns and then sends TRANSFER_DONE; the new owner
+ * holds back claims until every peer has done so. When a node leaves, only
+ * the names it owned are registered again, by their home nodes, with the
+ * new owners. Views of the ring differ for the moment a link takes to come
+ * up on both ends, and a claim in that moment can still collide; collisions
+ * are logged when the owner receives the second registration.
+ *
+ * <p>Every message carries a sequence number from the node that sent it,
+ * assigned in the order messages are queued to the links. A receiver drops
+ * anything at or below the highest sequence it has already taken from that
+ * node during the node's current run, so a message that reaches a node twice
+ * (e.g. over both links of a simultaneous dial) is delivered once.
+ *
+ * <p>On the wire each message is
+ *
+ * <pre>
+ * | length u32 | kind u8 | sequence u64 | field ... |
+ * </pre>
+ *
+ * where each field is a presence byte followed, if present, by a u32 length
+ * and that many bytes of UTF-8. ({@link DataOutput#writeUTF} would cap a
+ * field at 65535 bytes of modified UTF-8, less than the longest chat line
+ * can take.)
+ */
+public class ClusterNode {
+
+    private enum Kind {
+        HELLO, PEERS, BROADCAST,
+        CLAIM, CLAIM_RESULT, REGISTER, TRANSFER_DONE, RELEASE, STATUS,
+        PM, PM_DELIVER, PM_RESULT, USERS, USERS_REPLY
+    }
+
+    private static final int MAX_MESSAGE_LENGTH = 1024 * 1024;
+    private static final int MAX_QUEUED = 65536;
+    private static final int MAX_BATCH = 1024;
+    private static final int MAX_HOPS = 3;
+    private static final int USERS_PER_REPLY = 200;
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+    private static final long CLAIM_TIMEOUT_MILLIS = 2000;
+    private static final long REQUEST_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final long REDIAL_MILLIS = 2000;
+    private static final long REREGISTER_DELAY_MILLIS = 1000;
+
+    private static final class Message {
+        final Kind kind;
+        final long sequence;
+        final String[] fields;
+
+        Message(Kind kind, long sequence, String[] fields) {
+            this.kind = kind;
+            this.sequence = sequence;
+            this.fields = fields;
+        }
+    }
+
+    /**
+     * Where an owned name is connected, and its status.
+     */
+    private static final class Registration {
+        final String home;
+        final String status;
+
+        Registration(String home, String status) {
+            this.home = home;
+            this.status = status;
+        }
+    }
+
+    /**
+     * A private message sent from here, waiting to hear whether it arrived.
+     */
+    private static final class PendingMessage {
+        final ClientHandler sender;
+        final String to;
+        final String text;
+        final long createdNanos = System.nanoTime();
+
+        PendingMessage(ClientHandler sender, String to, String text) {
+            this.sender = sender;
+            this.to = to;
+            this.text = text;
+        }
+    }
+
+    private static final class PendingUsers {
+        final ClientHandler client;
+        final long createdNanos = System.nanoTime();
+
+        PendingUsers(ClientHandler client) {
+            this.client = client;
+        }
+    }
+
+    /**
+     * Duplicate suppression state for one sending node, valid for one run of
+     * it.
+     */
+    private static final class Origin {
+        final long epoch;
+        final AtomicLong highest = new AtomicLong();
+
+        Origin(long epoch) {
+            this.epoch = epoch;
+        }
+
+        boolean accept(long sequence) {
+            return highest.getAndAccumulate(sequence, Math::max) < sequence;
+        }
+    }
+
+    /**
+     * One connection to a peer node. Relayed messages are queued and written
+     * by the link's own thread, so a slow peer never holds up a broadcast.
+     */
+    private final class Link {
+        final Socket socket;
+        final String dialedAddress;
+        final DataInputStream in;
+        final DataOutputStream out;
+        final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(MAX_QUEUED);
+        volatile String peerId;
+        volatile boolean closed = false;
+        private Thread writer;
+
+        Link(Socket socket, String dialedAddress) throws IOException {
+            this.socket = socket;
+            this.dialedAddress = dialedAddress;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+        }
+
+        String getDialer() {
+            return dialedAddress != null ? nodeId : peerId;
+        }
+
+        void startWriter() {
+            writer = startThread(this::writeLoop, "cluster-writer-" + peerId);
+        }
+
+        void send(byte[] message) {
+            if (!queue.offer(message)) {
+                server.log("Link to node " + peerId + " is backed up; dropping it");
+                close();
+            }
+        }
+
+        private void writeLoop() {
+            List<byte[]> batch = new ArrayList<>();
+            try {
+                while (!closed) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    for (byte[] message : batch) {
+                        out.write(message);
+                    }
+                    // One flush for everything that queued up meanwhile
+                    out.flush();
+                    batch.clear();
+                }
+            } catch (IOException e) {
+                close();
+            } catch (InterruptedException e) {
+                // Closed
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+            if (writer != null) {
+                writer.interrupt();
+            }
+            linkClosed(this);
+        }
+    }
+
+    private final ChatServer server;
+    private final ServerMetrics metrics;
+    private final String nodeId;
+    private final int clusterPort;
+    private final long epoch = ThreadLocalRandom.current().nextLong();
+    // Node id -> its one active link
+    private final ConcurrentMap<String, Link> links = new ConcurrentHashMap<>();
+    // host:port -> node id, or "" until a handshake has told us
+    private final ConcurrentMap<String, String> knownAddresses = new ConcurrentHashMap<>();
+    private final Set<String> dialing = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<String, Origin> origins = new ConcurrentHashMap<>();
+    // Names this node owns on the ring
+    private final ConcurrentMap<String, Registration> owned = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, CompletableFuture<Boolean>> claims = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, PendingMessage> pendingMessages = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, PendingUsers> pendingUsers = new ConcurrentHashMap<>();
+    private final AtomicLong nextRequest = new AtomicLong();
+    // Orders sequence numbers with the queueing of messages to the links, and
+    // ring changes with the ownership decisions that depend on them
+    private final ReentrantLock relayLock = new ReentrantLock();
+    private long nextSequence = 1;
+    private volatile HashRing ring;
+    // Peers that have not yet handed over the names we now own
+    private final Set<String> awaitingTransfer = new HashSet<>();
+    private final List<Runnable> deferred = new ArrayList<>();
+    private ServerSocket serverSocket;
+    private ScheduledExecutorService dialer;
+    private ExecutorService blockingTasks;
+    private volatile boolean running = false;
+
+    public ClusterNode(ChatServer server, ServerConfig config) {
+        this.server = server;
+        this.metrics = server.getMetrics();
+        this.nodeId = config.getNodeId();
+        this.clusterPort = config.getClusterPort();
+        this.ring = HashRing.of(Collections.singleton(nodeId));
+        for (String peer : config.getPeers()) {
+            knownAddresses.put(peer, "");
+        }
+    }
+
+    /**
+     * Binds the cluster port and starts dialing the configured peers.
+     */
+    public void start() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(clusterPort));
+        running = true;
+
+        ServerSocket socket = serverSocket;
+        startThread(() -> acceptLoop(socket), "cluster-acceptor");
+        blockingTasks = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "cluster-blocking");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dialer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cluster-dialer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dialer.scheduleWithFixedDelay(() -> {
+            dialMissing();
+            expireRequests();
+        }, 0, REDIAL_MILLIS, TimeUnit.MILLISECONDS);
+        server.log("Cluster node " + nodeId + " listening on port " + clusterPort);
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            server.log("Error closing cluster socket: " + e.getMessage());
+        }
+        if (dialer != null) {
+            dialer.shutdownNow();
+        }
+        if (blockingTasks != null) {
+            blockingTasks.shutdownNow();
+        }
+        for (Link link : links.values()) {
+            link.close();
+        }
+        owned.clear();
+    }
+
+    private static Thread startThread(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Runs {@code task}, which may wait on another node, on a pool thread.
+     * Returns false if there are no peers to wait on, in which case the
+     * caller can run it directly.
+     */
+    public boolean runBlocking(Runnable task) {
+        if (links.isEmpty()) {
+            return false;
+        }
+        try {
+            blockingTasks.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private void acceptLoop(ServerSocket socket) {
+        while (!socket.isClosed()) {
+            try {
+                Socket peer = socket.accept();
+                peer.setTcpNoDelay(true);
+                Link link = new Link(peer, null);
+                startThread(() -> runLink(link), "cluster-link");
+            } catch (IOException e) {
+                if (running) {
+                    server.log("Error accepting cluster peer: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void dialMissing() {
+        for (String address : knownAddresses.keySet()) {
+            dial(address);
+        }
+    }
+
+    private void dial(String address) {
+        String id = knownAddresses.get(address);
+        if (!running || (id != null && (id.equals(nodeId) || links.containsKey(id))) || !dialing.add(address)) {
+            return;
+        }
+        int colon = address.lastIndexOf(':');
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(address.substring(0, colon),
+                    Integer.parseInt(address.substring(colon + 1))), CONNECT_TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            Link link = new Link(socket, address);
+            startThread(() -> runLink(link), "cluster-link");
+        } catch (IOException | RuntimeException e) {
+            // Not up yet; the next round tries again
+            dialing.remove(address);
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Never connected
+            }
+        }
+    }
+
+    /**
+     * Fails private messages and drops /users requests that never got an
+     * answer, e.g. because a link went down while they were in flight.
+     */
+    private void expireRequests() {
+        long now = System.nanoTime();
+        for (Map.Entry<Long, PendingMessage> entry : pendingMessages.entrySet()) {
+            if (now - entry.getValue().createdNanos > REQUEST_TIMEOUT_NANOS) {
+                completePrivateMessage(entry.getKey(), false);
+            }
+        }
+        pendingUsers.values().removeIf(request -> now - request.createdNanos > REQUEST_TIMEOUT_NANOS);
+    }
+
+    /**
+     * Runs on the link's reader thread: exchanges HELLOs, registers the link
+     * and then handles whatever the peer sends.
+     */
+    private void runLink(Link link) {
+        try {
+            link.out.write(encode(Kind.HELLO, nodeId, Long.toString(epoch), Integer.toString(clusterPort)));
+            link.out.flush();
+            link.socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            Message hello = read(link.in);
+            if (hello == null || hello.kind != Kind.HELLO) {
+                throw new IOException("expected HELLO");
+            }
+            link.socket.setSoTimeout(0);
+
+            String peerId = hello.fields[0];
+            String address = link.socket.getInetAddress().getHostAddress() + ":" + hello.fields[2];
+            knownAddresses.put(address, peerId);
+            if (link.dialedAddress != null) {
+                knownAddresses.put(link.dialedAddress, peerId);
+                dialing.remove(link.dialedAddress);
+            }
+            if (peerId.equals(nodeId) || !register(link, peerId, Long.parseLong(hello.fields[1]))) {
+                link.socket.close();
+                return;
+            }
+            Thread.currentThread().setName("cluster-reader-" + peerId);
+
+            Message message;
+            while ((message = read(link.in)) != null) {
+                handle(link, message);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (running && !link.closed) {
+                server.log("Cluster link " + (link.peerId != null ? "to node " + link.peerId : "")
+                        + " failed: " + e.getMessage());
+            }
+        } finally {
+            if (link.dialedAddress != null) {
+                dialing.remove(link.dialedAddress);
+            }
+            link.close();
+        }
+    }
+
+    /**
+     * Makes {@code link} the active link to {@code peerId}, adds the peer to
+     * the ring and hands it the names it now owns. If both nodes dialed each
+     * other, both keep the link dialed by the node with the smaller id.
+     * Returns false if the link is not wanted.
+     */
+    private boolean register(Link link, String peerId, long peerEpoch) {
+        int transferred = 0;
+        relayLock.lock();
+        try {
+            if (!running) {
+                return false;
+            }
+            link.peerId = peerId;
+            Link existing = links.get(peerId);
+            if (existing != null && existing.getDialer().compareTo(link.getDialer()) <= 0) {
+                return false;
+            }
+            origins.compute(peerId, (id, origin) ->
+                    origin != null && origin.epoch == peerEpoch ? origin : new Origin(peerEpoch));
+            links.put(peerId, link);
+            if (existing != null) {
+                existing.close();
+            }
+            link.startWriter();
+
+            StringBuilder peers = new StringBuilder();
+            for (Map.Entry<String, String> entry : knownAddresses.entrySet()) {
+                String id = entry.getValue();
+                if (!id.isEmpty() && !id.equals(peerId) && links.containsKey(id)) {
+                    peers.append(peers.length() > 0 ? "," : "").append(id).append('@').append(entry.getKey());
+                }
+            }
+            link.send(sequenced(encode(Kind.PEERS, peers.toString())));
+
+            ring = ring.with(peerId);
+            awaitingTransfer.add(peerId);
+            for (Map.Entry<String, Registration> entry : owned.entrySet()) {
+                String name = entry.getKey();
+                Registration registration = entry.getValue();
+                if (peerId.equals(ring.ownerOf(name)) && owned.remove(name, registration)) {
+                    link.send(sequenced(encode(Kind.REGISTER, name, registration.home, registration.status, "0")));
+                    transferred++;
+                }
+            }
+            link.send(sequenced(encode(Kind.TRANSFER_DONE)));
+        } finally {
+            relayLock.unlock();
+        }
+        server.log("Cluster link up to node " + peerId + " (" + links.size() + " peers, "
+                + transferred + " names handed over)");
+        return true;
+    }
+
+    /**
+     * Takes a lost peer off the ring. Users homed there are gone; users homed
+     * here whose names it owned are registered with their new owners.
+     */
+    private void linkClosed(Link link) {
+        String peerId = link.peerId;
+        int registered;
+        HashRing previous;
+        relayLock.lock();
+        try {
+            if (peerId == null || !links.remove(peerId, link)) {
+                return;
+            }
+            previous = ring;
+            ring = previous.without(peerId);
+            awaitingTransfer.remove(peerId);
+            owned.values().removeIf(registration -> registration.home.equals(peerId));
+            if (!running) {
+                return;
+            }
+            registered = registerAgain(previous, peerId);
+            runDeferredIfReady();
+        } finally {
+            relayLock.unlock();
+        }
+        server.log("Cluster link down to node " + peerId + "; " + registered + " names registered again");
+        // Peers that had not yet noticed the loss may have forwarded some of
+        // those registrations to it; by now they have, so repeat them
+        try {
+            dialer.schedule(() -> {
+                relayLock.lock();
+                try {
+                    registerAgain(previous, peerId);
+                } finally {
+                    relayLock.unlock();
+                }
+            }, REREGISTER_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopping
+        }
+    }
+
+    /**
+     * Registers the local users whose names {@code lost} owned in
+     * {@code previous} with their current owners. Must be called under the
+     * relay lock.
+     */
+    private int registerAgain(HashRing previous, String lost) {
+        int registered = 0;
+        for (Map.Entry<String, ClientHandler> user : server.getUsersByName().entrySet()) {
+            if (lost.equals(previous.ownerOf(user.getKey()))) {
+                handleRegister(user.getKey(), nodeId, user.getValue().getStatus().name(), 0);
+                registered++;
+            }
+        }
+        return registered;
+    }
+
+    private void handle(Link link, Message message) {
+        if (message.kind == Kind.BROADCAST) {
+            // Chat is not ownership state, and fanning it out locally must
+            // not hold up relaying
+            dispatch(link, message);
+            return;
+        }
+        relayLock.lock();
+        try {
+            // Once the link is down the peer's names have been purged; what
+            // is still buffered from it must not bring them back
+            if (links.get(link.peerId) == link) {
+                dispatch(link, message);
+            }
+        } finally {
+            relayLock.unlock();
+        }
+    }
+
+    private void dispatch(Link link, Message message) {
+        if (message.sequence > 0 && !origins.get(link.peerId).accept(message.sequence)) {
+            metrics.clusterDuplicate();
+            return;
+        }
+        metrics.clusterReceived();
+        String[] f = message.fields;
+        switch (message.kind) {
+            case PEERS:
+                for (String peer : f[0].split(",")) {
+                    int at = peer.indexOf('@');
+                    if (at > 0 && !peer.substring(0, at).equals(nodeId)) {
+                        String address = peer.substring(at + 1);
+                        knownAddresses.putIfAbsent(address, peer.substring(0, at));
+                        dialer.execute(() -> dial(address));
+                    }
+                }
+                break;
+            case BROADCAST:
+                server.deliverRemote(FrameCodec.Type.valueOf(f[0]), f[1], f[2], f[3]);
+                break;
+            case CLAIM:
+                handleClaim(Long.parseLong(f[0]), f[1], f[2], Integer.parseInt(f[3]));
+                break;
+            case CLAIM_RESULT: {
+                CompletableFuture<Boolean> claim = claims.get(Long.parseLong(f[0]));
+                if (claim != null) {
+                    claim.complete(Boolean.parseBoolean(f[1]));
+                }
+                break;
+            }
+            case REGISTER:
+                handleRegister(f[0], f[1], f[2], Integer.parseInt(f[3]));
+                break;
+            case TRANSFER_DONE:
+                relayLock.lock();
+                try {
+                    awaitingTransfer.remove(link.peerId);
+                    runDeferredIfReady();
+                } finally {
+                    relayLock.unlock();
+                }
+                break;
+            case RELEASE:
+                handleRelease(f[0], f[1], Integer.parseInt(f[2]));
+                break;
+            case STATUS:
+                handleStatus(f[0], f[1], f[2], Integer.parseInt(f[3]));
+                break;
+            case PM:
+                handlePrivateMessage(Long.parseLong(f[0]), f[1], f[2], f[3], f[4], Integer.parseInt(f[5]));
+                break;
+            case PM_DELIVER:
+                privateMessageResult(f[1], Long.parseLong(f[0]), server.deliverRemotePrivateMessage(f[2], f[3], f[4]));
+                break;
+            case PM_RESULT:
+                completePrivateMessage(Long.parseLong(f[0]), Boolean.parseBoolean(f[1]));
+                break;
+            case USERS:
+                sendUsers(link, f[0]);
+                break;
+            case USERS_REPLY: {
+                PendingUsers request = pendingUsers.get(Long.parseLong(f[0]));
+                if (request != null) {
+                    if (!f[2].isEmpty()) {
+                        request.client.sendSystemMessage("Online users on node " + f[1] + " (" + f[2] + "):");
+                    }
+                    for (String user : f[3].split("\n")) {
+                        int colon = user.lastIndexOf(':');
+                        if (colon > 0) {
+                            request.client.sendSystemMessage("- " + user.substring(0, colon)
+                                    + " (" + user.substring(colon + 1) + ") @" + f[1]);
+                        }
+                    }
+                }
+                break;
+            }
+            default:
+                throw new IllegalStateException("Unexpected " + message.kind + " from node " + link.peerId);
+        }
+    }
+
+    /**
+     * Sends a message about {@code name} on to its owner if, as far as this
+     * node can tell, that is someone else. Must be called under the relay
+     * lock. Returns false if this node should handle it itself.
+     */
+    private boolean forwardToOwner(String name, int hops, Kind kind, String... fields) {
+        String owner = ring.ownerOf(name);
+        if (owner.equals(nodeId) || hops >= MAX_HOPS) {
+            return false;
+        }
+        Link link = links.get(owner);
+        if (link == null) {
+            return false;
+        }
+        fields[fields.length - 1] = Integer.toString(hops + 1);
+        link.send(sequenced(encode(kind, fields)));
+        metrics.clusterRelayed();
+        return true;
+    }
+
+    /**
+     * Holds an ownership decision back while peers are still handing over
+     * names. Must be called under the relay lock.
+     */
+    private boolean deferWhileTransferring(Runnable decision) {
+        if (awaitingTransfer.isEmpty()) {
+            return false;
+        }
+        deferred.add(decision);
+        return true;
+    }
+
+    private void runDeferredIfReady() {
+        if (awaitingTransfer.isEmpty() && !deferred.isEmpty()) {
+            List<Runnable> ready = new ArrayList<>(deferred);
+            deferred.clear();
+            ready.forEach(Runnable::run);
+        }
+    }
+
+    /**
+     * Claims {@code name} for a user of this node, asking its owner if that
+     * is another node. Blocks for at most a round trip or two. If the owner
+     * does not answer in time the name is accepted when
+     * {@code acceptOnTimeout} is set, so a struggling peer cannot lock users
+     * out at login, and refused otherwise; either way the timeout is counted.
+     */
+    public boolean claim(String name, boolean acceptOnTimeout) {
+        long id = nextRequest.incrementAndGet();
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        claims.put(id, result);
+        long start = System.nanoTime();
+        try {
+            handleClaim(id, nodeId, name, 0);
+            return result.get(CLAIM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            metrics.clusterClaimTimedOut();
+            server.log("No answer from the owner of name " + name + "; " + (acceptOnTimeout ? "accepting" : "refusing")
+                    + " it");
+            return acceptOnTimeout;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        } finally {
+            claims.remove(id);
+            metrics.clusterClaim.recordSince(start);
+        }
+    }
+
+    private void handleClaim(long id, String requester, String name, int hops) {
+        relayLock.lock();
+        try {
+            if (forwardToOwner(name, hops, Kind.CLAIM, Long.toString(id), requester, name, "")
+                    || deferWhileTransferring(() -> handleClaim(id, requester, name, hops))) {
+                return;
+            }
+            // A node may claim a name again for another of its own users;
+            // which of them gets it is settled by that node's own registry
+            Registration registration = owned.computeIfAbsent(name,
+                    n -> new Registration(requester, ClientHandler.UserStatus.ONLINE.name()));
+            boolean granted = registration.home.equals(requester);
+            if (requester.equals(nodeId)) {
+                CompletableFuture<Boolean> claim = claims.get(id);
+                if (claim != null) {
+                    claim.complete(granted);
+                }
+            } else {
+                sendTo(requester, Kind.CLAIM_RESULT, Long.toString(id), Boolean.toString(granted));
+            }
+        } finally {
+            relayLock.unlock();
+        }
+    }
+
+    private void handleRegister(String name, String home, String status, int hops) {
+        relayLock.lock();
+        try {
+            if (forwardToOwner(name, hops, Kind.REGISTER, name, home, status, "")) {
+                return;
+            }
+            Registration existing = owned.putIfAbsent(name, new Registration(home, status));
+            if (existing != null && !existing.home.equals(home)) {
+                server.log("Username " + name + " is claimed on node " + existing.home + " and on node " + home);
+            } else if (existing != null) {
+                owned.put(name, new Registration(home, status));
+            }
+        } finally {
+            relayLock.unlock();
+        }
+    }
+
+    /**
+     * Gives up a name claimed by a user of this node.
+     */
+    public void release(String name) {
+        handleRelease(name, nodeId, 0);
+    }
+
+    private void handleRelease(String name, String home, int hops) {
+        relayLock.lock();
+        try {
+            if (forwardToOwner(name, hops, Kind.RELEASE, name, home, "")
+                    || deferWhileTransferring(() -> handleRelease(name, home, hops))) {
+                return;
+            }
+            owned.computeIfPresent(name, (n, registration) -> registration.home.equals(home) ? null : registration);
+        } finally {
+            relayLock.unlock();
+        }
+    }
+
+    public void statusChanged(String name, String status) {
+        handleStatus(name, nodeId, status, 0);
+    }
+
+    private void handleStatus(String name, String home, String status, int hops) {
+        relayLock.lock();
+        try {
+            if (forwardToOwner(name, hops, Kind.STATUS, name, home, status, "")
+                    || deferWhileTransferring(() -> handleStatus(name, home, status, hops))) {
+                return;
+            }
+            owned.computeIfPresent(name, (n, registration) ->
+                    registration.home.equals(home) ? new Registration(home, status) : registration);
+        } finally {
+            relayLock.unlock();
+        }
+    }
+
+    /**
+     * Routes a private message to a user who is not on this node, via the
+     * owner of its name. The outcome is reported to the server later, through
+     * {@link ChatServer#privateMessageRouted}. Returns false if there are no
+     * peers to route it to.
+     */
+    public boolean sendPrivateMessage(ClientHandler sender, String to, String text) {
+        if (links.isEmpty()) {
+            return false;
+        }
+        long id = nextRequest.incrementAndGet();
+        pendingMessages.put(id, new PendingMessage(sender, to, text));
+        handlePrivateMessage(id, nodeId, sender.getUsername(), to, text, 0);
+        return true;
+    }
+
+    private void handlePrivateMessage(long id, String origin, String from, String to, String text, int hops) {
+        relayLock.lock();
+        try {
+            if (forwardToOwner(to, hops, Kind.PM, Long.toString(id), origin, from, to, text, "")
+                    || deferWhileTransferring(() -> handlePrivateMessage(id, origin, from, to, text, hops))) {
+                return;
+            }
+            Registration registration = owned.get(to);
+            if (registration == null) {
+                privateMessageResult(origin, id, false);
+            } else if (registration.home.equals(nodeId)) {
+                privateMessageResult(origin, id, server.deliverRemotePrivateMessage(from, to, text));
+            } else if (!sendTo(registration.home, Kind.PM_DELIVER, Long.toString(id), origin, from, to, text)) {
+                privateMessageResult(origin, id, false);
+            }
+        } finally {
+            relayLock.unlock();
+        }
+    }
+
+    private void privateMessageResult(String origin, long id, boolean delivered) {
+        if (origin.equals(nodeId)) {
+            completePrivateMessage(id, delivered);
+        } else {
+            sendTo(origin, Kind.PM_RESULT, Long.toString(id), Boolean.toString(delivered));
+        }
+    }
+
+    private void completePrivateMessage(long id, boolean delivered) {
+        PendingMessage message = pendingMessages.remove(id);
+        if (message != null) {
+            server.privateMessageRouted(message.sender, message.to, message.text, delivered);
+        }
+    }
+
+    /**
+     * Asks every peer for its users; their replies are sent to
+     * {@code client} as they arrive.
+     */
+    public void requestUsers(ClientHandler client) {
+        if (links.isEmpty()) {
+            return;
+        }
+        long id = nextRequest.incrementAndGet();
+        pendingUsers.put(id, new PendingUsers(client));
+        relay(encode(Kind.USERS, Long.toString(id)));
+    }
+
+    private void sendUsers(Link link, String requestId) {
+        List<String> users = new ArrayList<>();
+        for (Map.Entry<String, ClientHandler> user : server.getUsersByName().entrySet()) {
+            users.add(user.getKey() + ":" + user.getValue().getStatus());
+        }
+        Collections.sort(users);
+        int chunks = Math.max(1, (users.size() + USERS_PER_REPLY - 1) / USERS_PER_REPLY);
+        relayLock.lock();
+        try {
+            for (int i = 0; i < chunks; i++) {
+                List<String> chunk = users.subList(i * USERS_PER_REPLY,
+                        Math.min(users.size(), (i + 1) * USERS_PER_REPLY));
+                link.send(sequenced(encode(Kind.USERS_REPLY, requestId, nodeId,
+                        i == 0 ? Integer.toString(users.size()) : "", String.join("\n", chunk))));
+            }
+        } finally {
+            relayLock.unlock();
+        }
+    }
+
+    /**
+     * Relays a broadcast to every peer node. {@code room} is null for a
+     * broadcast to everyone.
+     */
+    public void relayBroadcast(FrameCodec.Type type, String room, String sender, String text) {
+        if (!links.isEmpty()) {
+            relay(encode(Kind.BROADCAST, type.name(), room, sender, text));
+        }
+    }
+
+    /**
+     * Queues one copy of the same bytes to every link.
+     */
+    private void relay(byte[] message) {
+        if (message == null) {
+            return;
+        }
+        relayLock.lock();
+        try {
+            sequenced(message);
+            for (Link link : links.values()) {
+                link.send(message);
+                metrics.clusterRelayed();
+            }
+        } finally {
+            relayLock.unlock();
+        }
+    }
+
+    /**
+     * Sends one message to one node. Returns false if there is no link to it.
+     */
+    private boolean sendTo(String node, Kind kind, String... fields) {
+        Link link = links.get(node);
+        byte[] message = link != null ? encode(kind, fields) : null;
+        if (message == null) {
+            return false;
+        }
+        relayLock.lock();
+        try {
+            link.send(sequenced(message));
+            metrics.clusterRelayed();
+        } finally {
+            relayLock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Stamps the next sequence number into an encoded message. Must be called
+     * under the relay lock.
+     */
+    private byte[] sequenced(byte[] message) {
+        long sequence = nextSequence++;
+        for (int i = 0; i < 8; i++) {
+            message[5 + i] = (byte) (sequence >>> (56 - 8 * i));
+        }
+        return message;
+    }
+
+    private byte[] encode(Kind kind, String... fields) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0);
+            out.writeByte(kind.ordinal());
+            out.writeLong(0);
+            for (String field : fields) {
+                out.writeBoolean(field != null);
+                if (field != null) {
+                    byte[] utf8 = field.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(utf8.length);
+                    out.write(utf8);
+                }
+            }
+        } catch (IOException e) {
+            server.log("Cluster " + kind + " not sent: " + e.getMessage());
+            return null;
+        }
+        byte[] message = bytes.toByteArray();
+        int length = message.length - 4;
+        message[0] = (byte) (length >>> 24);
+        message[1] = (byte) (length >>> 16);
+        message[2] = (byte) (length >>> 8);
+        message[3] = (byte) length;
+        return message;
+    }
+
+    /**
+     * Reads one message, blocking. Returns null at end of stream.
+     */
+    private static Message read(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 9 || length > MAX_MESSAGE_LENGTH) {
+            throw new IOException("Invalid cluster message length: " + length);
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+
+        DataInputStream fields = new DataInputStream(new ByteArrayInputStream(body));
+        int code = fields.readUnsignedByte();
+        if (code >= Kind.values().length) {
+            throw new IOException("Unknown cluster message kind: " + code);
+        }
+        long sequence = fields.readLong();
+        List<String> values = new ArrayList<>(6);
+        while (fields.available() > 0) {
+            if (!fields.readBoolean()) {
+                values.add(null);
+                continue;
+            }
+            int fieldLength = fields.readInt();
+            if (fieldLength < 0 || fieldLength > fields.available()) {
+                throw new IOException("Invalid cluster field length: " + fieldLength);
+            }
+            byte[] utf8 = new byte[fieldLength];
+            fields.readFully(utf8);
+            values.add(new String(utf8, StandardCharsets.UTF_8));
+        }
+        return new Message(Kind.values()[code], sequence, values.toArray(new String[0]));
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Ids of the nodes with an active link, sorted.
+     */
+    public List<String> getPeers() {
+        List<String> peers = new ArrayList<>(links.keySet());
+        Collections.sort(peers);
+        return peers;
+    }
+
+    /**
+     * Number of usernames this node owns on the ring.
+     */
+    public int getOwnedNames() {
+        return owned.size();
+    }
+}
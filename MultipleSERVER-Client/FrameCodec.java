@@ -0,0 +1,286 @@
+package Hn;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The optional binary wire protocol.
+ *
+ * <p>A client opts in by sending {@value #BINARY_HANDSHAKE} followed by a
+ * space and its username as the first line, instead of the bare username. The
+ * server answers with the line {@value #BINARY_HANDSHAKE}; from then on both
+ * directions carry frames of the form
+ *
+ * <pre>
+ * | length u32 | type u8 | sender id u32 | payload ... |
+ * </pre>
+ *
+ * where {@code length} counts every byte after the length field itself. For
+ * private messages the payload is {@code | peer length u8 | peer | text |};
+ * for everything else it is the UTF-8 text. Payloads may contain newlines.
+ *
+ * <p>Clients that send a bare username keep the newline-delimited text
+ * protocol; {@link #toTextLine} renders each frame type the way those clients
+ * expect it.
+ *
+ * <p>Either protocol can also ask for compression by putting
+ * {@value #DEFLATE_HANDSHAKE} and a space before the username (after
+ * {@value #BINARY_HANDSHAKE}, if both). A server that agrees includes
+ * {@value #DEFLATE_HANDSHAKE} in its answer line, which for the text protocol
+ * is then sent too, and everything after that line is a raw deflate stream
+ * (see {@link StreamCompressor}). Only the server's side is compressed; what
+ * clients send is short and stays as it is.
+ *
+ * <p>A client that keeps a user list puts {@value #PRESENCE_HANDSHAKE} and a
+ * space right before the username. It is then sent a {@code USERLIST} frame
+ * with everyone online and {@code PRESENCE} frames with what changed (see
+ * {@link Presence}); there is no answer to it in the handshake reply.
+ *
+ * <p>A client that reconnects on its own puts {@value #SESSION_HANDSHAKE},
+ * a space, {@code token/count} and a space right before the username (after
+ * {@value #PRESENCE_HANDSHAKE}, if both). The token is the one it was last
+ * given, or {@code -} for none, and the count the number of frames it has
+ * received after the {@code SESSION} frame that gave it. It is then sent a
+ * {@code SESSION} frame with its token and the count that the frames after it
+ * continue from (see {@link Session}); 0 for a new session, the client's own
+ * count if the old one was resumed, in which case nothing is repeated or
+ * left out. The username is ignored on resume. A {@code SESSION} frame with
+ * {@code -} for the token says that the session is over, e.g. because the
+ * user logged out or was kicked, and that the client should not reconnect.
+ */
+public final class FrameCodec {
+
+    public static final String BINARY_HANDSHAKE = "#BINARY1";
+    public static final int HEADER_LENGTH = 9;
+    public static final int MAX_FRAME_LENGTH = 64 * 1024;
+    /**
+     * The longest line, in bytes of UTF-8, that a client may send, as a text
+     * line or in a {@code TEXT} frame. What the server wraps around it on the
+     * way out, such as a peer name of up to 255 bytes or a timestamp and
+     * username, must still fit in {@link #MAX_FRAME_LENGTH}.
+     */
+    public static final int MAX_LINE_LENGTH = MAX_FRAME_LENGTH - (HEADER_LENGTH - 4) - (1 + 255) - 256;
+    /** The longest {@code TEXT} frame a client may send, after the length field. */
+    public static final int MAX_TEXT_FRAME_LENGTH = HEADER_LENGTH - 4 + MAX_LINE_LENGTH;
+    public static final String DEFLATE_HANDSHAKE = "#DEFLATE1";
+    public static final String PRESENCE_HANDSHAKE = "#PRESENCE1";
+    public static final String SESSION_HANDSHAKE = "#SESSION1";
+    static final byte[] BINARY_ACK = (BINARY_HANDSHAKE + "\n").getBytes(StandardCharsets.UTF_8);
+    static final byte[] BINARY_DEFLATE_ACK = (BINARY_HANDSHAKE + " " + DEFLATE_HANDSHAKE + "\n")
+            .getBytes(StandardCharsets.UTF_8);
+    static final byte[] DEFLATE_ACK = (DEFLATE_HANDSHAKE + "\n").getBytes(StandardCharsets.UTF_8);
+
+    public enum Type {
+        /** Client to server: a chat line or a /command. */
+        TEXT(1),
+        CHAT(2),
+        SYSTEM(3),
+        PM_FROM(4),
+        PM_TO(5),
+        CLEAR(6),
+        USERLIST(7),
+        /** Users who joined, left or changed status since the last one. */
+        PRESENCE(8),
+        /** The session token and the number of frames sent before this one. */
+        SESSION(9);
+
+        private static final Type[] BY_CODE = new Type[10];
+
+        static {
+            for (Type type : values()) {
+                BY_CODE[type.code] = type;
+            }
+        }
+
+        private final int code;
+
+        Type(int code) {
+            this.code = code;
+        }
+
+        public int getCode() {
+            return code;
+        }
+
+        public static Type fromCode(int code) {
+            if (code <= 0 || code >= BY_CODE.length || BY_CODE[code] == null) {
+                throw new IllegalArgumentException("Unknown frame type: " + code);
+            }
+            return BY_CODE[code];
+        }
+
+        boolean hasPeer() {
+            return this == PM_FROM || this == PM_TO;
+        }
+    }
+
+    /**
+     * A decoded frame.
+     */
+    public static final class Frame {
+        public final Type type;
+        public final int senderId;
+        public final String peer;
+        public final String text;
+
+        Frame(Type type, int senderId, String peer, String text) {
+            this.type = type;
+            this.senderId = senderId;
+            this.peer = peer;
+            this.text = text;
+        }
+    }
+
+    private FrameCodec() {
+    }
+
+    /**
+     * The server's answer to a handshake, or null if the plain text protocol
+     * was agreed, which has none.
+     */
+    static byte[] handshakeAck(boolean binary, boolean deflate) {
+        if (binary) {
+            return deflate ? BINARY_DEFLATE_ACK : BINARY_ACK;
+        }
+        return deflate ? DEFLATE_ACK : null;
+    }
+
+    /**
+     * Encodes a frame. Throws {@link IllegalArgumentException} rather than
+     * produce one that {@link #read} would reject.
+     */
+    public static byte[] encode(Type type, int senderId, String peer, String text) {
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        byte[] peerBytes = type.hasPeer() ? peer.getBytes(StandardCharsets.UTF_8) : null;
+        if (peerBytes != null && peerBytes.length > 255) {
+            throw new IllegalArgumentException("Peer name too long: " + peer);
+        }
+        int payloadLength = textBytes.length + (peerBytes != null ? 1 + peerBytes.length : 0);
+        if (HEADER_LENGTH - 4 + payloadLength > MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("Frame too long: " + (HEADER_LENGTH - 4 + payloadLength));
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + payloadLength);
+        buffer.putInt(HEADER_LENGTH - 4 + payloadLength);
+        buffer.put((byte) type.getCode());
+        buffer.putInt(senderId);
+        if (peerBytes != null) {
+            buffer.put((byte) peerBytes.length);
+            buffer.put(peerBytes);
+        }
+        buffer.put(textBytes);
+        return buffer.array();
+    }
+
+    /**
+     * Decodes the body of a frame, i.e. everything after the length field.
+     */
+    public static Frame decode(byte[] body, int offset, int length) throws IOException {
+        if (length < HEADER_LENGTH - 4) {
+            throw new IOException("Frame too short: " + length);
+        }
+        Type type;
+        try {
+            type = Type.fromCode(body[offset] & 0xFF);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+        int senderId = ((body[offset + 1] & 0xFF) << 24) | ((body[offset + 2] & 0xFF) << 16)
+                | ((body[offset + 3] & 0xFF) << 8) | (body[offset + 4] & 0xFF);
+
+        int position = offset + 5;
+        int end = offset + length;
+        String peer = null;
+        if (type.hasPeer()) {
+            int peerLength = body[position++] & 0xFF;
+            if (position + peerLength > end) {
+                throw new IOException("Peer name overruns frame");
+            }
+            peer = new String(body, position, peerLength, StandardCharsets.UTF_8);
+            position += peerLength;
+        }
+        String text = new String(body, position, end - position, StandardCharsets.UTF_8);
+        return new Frame(type, senderId, peer, text);
+    }
+
+    /**
+     * Reads one frame, blocking. Returns null at end of stream.
+     */
+    public static Frame read(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return decode(body, 0, length);
+    }
+
+    /**
+     * Whether {@code line} is at most {@link #MAX_LINE_LENGTH} bytes in
+     * UTF-8, without encoding it.
+     */
+    public static boolean fitsLine(String line) {
+        // At most 3 bytes per char, and at least 1
+        if (line.length() <= MAX_LINE_LENGTH / 3) {
+            return true;
+        }
+        if (line.length() > MAX_LINE_LENGTH) {
+            return false;
+        }
+        int bytes = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            // A surrogate pair is 4 bytes, 2 for each half
+            bytes += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+        }
+        return bytes <= MAX_LINE_LENGTH;
+    }
+
+    public static void write(OutputStream out, Type type, int senderId, String peer, String text) throws IOException {
+        out.write(encode(type, senderId, peer, text));
+    }
+
+    /**
+     * Renders a frame as a line of the legacy text protocol, without the line
+     * terminator. Line breaks in the text become spaces since that protocol
+     * cannot carry them.
+     */
+    public static String toTextLine(Type type, String peer, String text) {
+        String line;
+        switch (type) {
+            case SYSTEM:
+                line = "[System] " + text;
+                break;
+            case PM_FROM:
+                line = "[PM from " + peer + "] " + text;
+                break;
+            case PM_TO:
+                line = "[PM to " + peer + "] " + text;
+                break;
+            case CLEAR:
+                line = "CLEAR_CHAT";
+                break;
+            case USERLIST:
+                line = "USERLIST:" + text;
+                break;
+            case PRESENCE:
+                line = "PRESENCE:" + text;
+                break;
+            case SESSION:
+                line = "SESSION:" + text;
+                break;
+            default:
+                line = text;
+        }
+        return line.indexOf('\n') >= 0 || line.indexOf('\r') >= 0
+                ? line.replace("\r\n", " ").replace('\n', ' ').replace('\r', ' ')
+                : line;
+    }
+}
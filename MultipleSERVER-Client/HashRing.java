@@ -0,0 +1,105 @@
+package Hn;
+
+import java.util.*;
+
+/**
+ * Immutable consistent-hash ring mapping keys, such as usernames, to the
+ * cluster node that owns them.
+ *
+ * <p>Each node is placed at {@value #POINTS_PER_NODE} pseudo-random points on
+ * a 64-bit circle, and a key belongs to the node at the first point at or
+ * after the key's hash. Adding or removing a node therefore only moves the
+ * keys between that node's points and their predecessors, about 1/N of
+ * them, and spreads them over all the other nodes. Lookups are a binary
+ * search over a sorted array; membership changes build a new ring.
+ */
+public final class HashRing {
+
+    static final int POINTS_PER_NODE = 128;
+
+    private static final HashRing EMPTY = new HashRing(Collections.emptySortedSet());
+
+    private final SortedSet<String> nodes;
+    private final long[] points;
+    private final String[] owners;
+
+    private HashRing(SortedSet<String> nodes) {
+        this.nodes = nodes;
+        this.points = new long[nodes.size() * POINTS_PER_NODE];
+        this.owners = new String[points.length];
+
+        // Sort the points of every node together; the node names break ties
+        // so every member builds the identical ring
+        long[][] placed = new long[points.length][];
+        String[] names = nodes.toArray(new String[0]);
+        int i = 0;
+        for (int n = 0; n < names.length; n++) {
+            for (int p = 0; p < POINTS_PER_NODE; p++) {
+                placed[i++] = new long[] {hash(names[n] + "#" + p), n};
+            }
+        }
+        Arrays.sort(placed, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        for (i = 0; i < placed.length; i++) {
+            points[i] = placed[i][0];
+            owners[i] = names[(int) placed[i][1]];
+        }
+    }
+
+    public static HashRing of(Collection<String> nodes) {
+        return nodes.isEmpty() ? EMPTY : new HashRing(Collections.unmodifiableSortedSet(new TreeSet<>(nodes)));
+    }
+
+    public HashRing with(String node) {
+        if (nodes.contains(node)) {
+            return this;
+        }
+        Set<String> changed = new TreeSet<>(nodes);
+        changed.add(node);
+        return of(changed);
+    }
+
+    public HashRing without(String node) {
+        if (!nodes.contains(node)) {
+            return this;
+        }
+        Set<String> changed = new TreeSet<>(nodes);
+        changed.remove(node);
+        return of(changed);
+    }
+
+    /**
+     * The node that owns {@code key}, or null if the ring is empty.
+     */
+    public String ownerOf(String key) {
+        if (points.length == 0) {
+            return null;
+        }
+        int at = Arrays.binarySearch(points, hash(key));
+        if (at < 0) {
+            at = -at - 1;
+        }
+        return owners[at == points.length ? 0 : at];
+    }
+
+    public SortedSet<String> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * 64-bit FNV-1a over the characters, finished with the MurmurHash3 mix
+     * so that similar names land far apart. Allocates nothing.
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,139 @@
+package Hn;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent log-linear histogram of non-negative values, such as latencies
+ * in nanoseconds or sizes in bytes.
+ *
+ * <p>Every power of two is split into {@value #SUB_BUCKETS} linear buckets,
+ * so a reported percentile is within 12.5% of the true value over the whole
+ * {@code long} range. Buckets are {@link LongAdder}s: recording is a bucket
+ * computation plus a striped add, never allocates once a bucket's stripes
+ * exist, and threads recording concurrently do not contend on one cache line.
+ */
+public class Histogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final String name;
+    private final String unit;
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public Histogram(String name, String unit) {
+        this.name = name;
+        this.unit = unit;
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(0, value);
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS + 1;
+        int sub = (int) (value >>> (magnitude - 1)) & (SUB_BUCKETS - 1);
+        return magnitude * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * The largest value that falls into {@code bucket}.
+     */
+    private static long upperBound(int bucket) {
+        int magnitude = bucket / SUB_BUCKETS;
+        int sub = bucket % SUB_BUCKETS;
+        if (magnitude == 0) {
+            return sub;
+        }
+        long lower = (long) (SUB_BUCKETS + sub) << (magnitude - 1);
+        return lower + (1L << (magnitude - 1)) - 1;
+    }
+
+    public void record(long value) {
+        buckets[bucketOf(value)].increment();
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Records the time elapsed since {@code startNanos}.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * The value below which {@code percentile} percent of recordings fall,
+     * to bucket precision. Concurrent recording may make it slightly stale.
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getUnit() {
+        return unit;
+    }
+
+    /**
+     * One line: count, mean, p50, p90, p99, p99.9 and max.
+     */
+    public String summary() {
+        boolean nanos = "ns".equals(unit);
+        return String.format("%-16s n=%d mean=%s p50=%s p90=%s p99=%s p99.9=%s max=%s",
+                name, getCount(), format((long) getMean(), nanos), format(getPercentile(50), nanos),
+                format(getPercentile(90), nanos), format(getPercentile(99), nanos),
+                format(getPercentile(99.9), nanos), format(getMax(), nanos));
+    }
+
+    private String format(long value, boolean nanos) {
+        if (!nanos) {
+            return value + unit;
+        }
+        if (value >= 1_000_000) {
+            return String.format("%.1fms", value / 1e6);
+        }
+        return String.format("%.1fus", value / 1e3);
+    }
+}
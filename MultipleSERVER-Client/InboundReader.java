@@ -0,0 +1,218 @@
+package Hn;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads lines of the text protocol or frames of the binary one from a
+ * blocking stream, for the threaded and virtual-thread transports.
+ *
+ * <p>Unlike a {@link BufferedReader}, which keeps 24 KB or more of buffers
+ * for the life of the connection, this holds a buffer from a shared
+ * {@link BufferPool} only while bytes are on hand. Waiting for input is
+ * done with a one-byte read; when it returns, a buffer is borrowed and
+ * filled with whatever else has already arrived, and given back once it has
+ * all been taken. A line or frame cut off at the end of a burst is copied
+ * into a small array of its own, so a connection never waits holding a
+ * pooled buffer.
+ *
+ * <p>Lines and frames may follow each other on the same reader, as they do
+ * after the handshake line. Not thread-safe; the connection's reader thread
+ * owns it.
+ */
+public final class InboundReader {
+
+    private static final byte[] EMPTY = new byte[0];
+    // A partial line or frame larger than this is not kept once it is done
+    private static final int MAX_IDLE_PENDING = 4096;
+
+    private final InputStream in;
+    private final BufferPool pool;
+    private final int bufferSize;
+    // Unread bytes between position and limit; null when there are none
+    private ByteBuffer buffer;
+    // Bytes of a line or frame that a burst ended in the middle of
+    private byte[] pending = EMPTY;
+    private int pendingLength = 0;
+
+    public InboundReader(InputStream in, BufferPool pool, int bufferSize) {
+        this.in = in;
+        this.pool = pool;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Reads a line without its terminator, blocking. Returns null at end of
+     * stream, or what was left of an unterminated last line.
+     */
+    public String readLine() throws IOException {
+        while (true) {
+            if (buffer != null) {
+                byte[] array = buffer.array();
+                int start = buffer.arrayOffset() + buffer.position();
+                int end = buffer.arrayOffset() + buffer.limit();
+                for (int i = start; i < end; i++) {
+                    if (array[i] == '\n') {
+                        checkLineLength(pendingLength + i - start);
+                        String line;
+                        if (pendingLength == 0) {
+                            line = toLine(array, start, i - start);
+                        } else {
+                            keep(array, start, i - start);
+                            line = toLine(pending, 0, pendingLength);
+                            consumePending(pendingLength);
+                        }
+                        buffer.position(i + 1 - buffer.arrayOffset());
+                        releaseIfEmpty();
+                        return line;
+                    }
+                }
+                checkLineLength(pendingLength + end - start);
+                keep(array, start, end - start);
+                buffer = release(buffer);
+            }
+            if (!fill()) {
+                if (pendingLength == 0) {
+                    return null;
+                }
+                String line = toLine(pending, 0, pendingLength);
+                consumePending(pendingLength);
+                return line;
+            }
+        }
+    }
+
+    /**
+     * Fails a line of {@code length} bytes, not counting its terminator, that
+     * is over {@link FrameCodec#MAX_LINE_LENGTH}, so that nothing sent on
+     * from it can outgrow a frame.
+     */
+    private static void checkLineLength(int length) throws IOException {
+        if (length > FrameCodec.MAX_LINE_LENGTH + 1) {
+            throw new IOException("Line too long");
+        }
+    }
+
+    private static String toLine(byte[] bytes, int offset, int length) {
+        if (length > 0 && bytes[offset + length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, offset, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads one frame, blocking. Returns null at end of stream.
+     */
+    public FrameCodec.Frame readFrame() throws IOException {
+        while (true) {
+            if (pendingLength >= 4) {
+                int length = frameLength(pending, 0);
+                if (pendingLength >= 4 + length) {
+                    FrameCodec.Frame frame = FrameCodec.decode(pending, 4, length);
+                    consumePending(4 + length);
+                    return frame;
+                }
+            }
+            if (buffer != null) {
+                if (pendingLength == 0 && buffer.remaining() >= 4) {
+                    // The usual case: the whole frame arrived in this burst
+                    int offset = buffer.arrayOffset() + buffer.position();
+                    int length = frameLength(buffer.array(), offset);
+                    if (buffer.remaining() >= 4 + length) {
+                        FrameCodec.Frame frame = FrameCodec.decode(buffer.array(), offset + 4, length);
+                        buffer.position(buffer.position() + 4 + length);
+                        releaseIfEmpty();
+                        return frame;
+                    }
+                }
+                keep(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                buffer = release(buffer);
+                continue;
+            }
+            if (!fill()) {
+                if (pendingLength > 0) {
+                    throw new EOFException("Connection closed inside a frame");
+                }
+                return null;
+            }
+        }
+    }
+
+    private static int frameLength(byte[] bytes, int offset) throws IOException {
+        int length = ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+        if (length < 0 || length > FrameCodec.MAX_TEXT_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Waits for input without holding a buffer, then borrows one and fills it
+     * with what has arrived. Returns false at end of stream.
+     */
+    private boolean fill() throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return false;
+        }
+        buffer = pool.acquire(bufferSize);
+        byte[] array = buffer.array();
+        int offset = buffer.arrayOffset();
+        array[offset] = (byte) first;
+        int length = 1;
+        int available = Math.min(in.available(), buffer.capacity() - length);
+        while (available > 0) {
+            int read = in.read(array, offset + length, available);
+            if (read <= 0) {
+                break;
+            }
+            length += read;
+            available = Math.min(in.available(), buffer.capacity() - length);
+        }
+        buffer.limit(length);
+        return true;
+    }
+
+    private void keep(byte[] bytes, int offset, int length) throws IOException {
+        if (pendingLength + length > FrameCodec.MAX_FRAME_LENGTH + 4) {
+            throw new IOException("Line or frame too long");
+        }
+        if (pendingLength + length > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pendingLength + length, Math.max(256, pending.length * 2)));
+        }
+        System.arraycopy(bytes, offset, pending, pendingLength, length);
+        pendingLength += length;
+    }
+
+    private void consumePending(int count) {
+        System.arraycopy(pending, count, pending, 0, pendingLength - count);
+        pendingLength -= count;
+        if (pendingLength == 0 && pending.length > MAX_IDLE_PENDING) {
+            pending = EMPTY;
+        }
+    }
+
+    private void releaseIfEmpty() {
+        if (!buffer.hasRemaining()) {
+            buffer = release(buffer);
+        }
+    }
+
+    private ByteBuffer release(ByteBuffer buffer) {
+        pool.release(buffer);
+        return null;
+    }
+
+    /**
+     * Gives back a buffer still held. Call it from the reading thread once it
+     * is done reading; the stream is left to the caller.
+     */
+    public void release() {
+        if (buffer != null) {
+            buffer = release(buffer);
+        }
+    }
+}
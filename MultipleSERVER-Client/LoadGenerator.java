@@ -0,0 +1,444 @@
+package Hn;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Headless load generator. Opens many {@link ChatConnection}s to a running
+ * server, drives a mix of chat lines, private messages and commands at a
+ * target rate, and measures end-to-end delivery latency and throughput.
+ *
+ * <p>Run with {@code java Hn.LoadGenerator --clients=2000 --rooms=20
+ * --rate=5000 --duration=30}. Every option is a {@code --key=value} flag; see
+ * {@link Options}. Results are printed and written as JSON to
+ * {@code --report}. The exit status is 2 if a {@code --max-p99-ms} or
+ * {@code --min-delivery} gate fails, so a release script can check it.
+ *
+ * <p>With {@code --ports=5001,5002,...} the clients are spread round-robin
+ * over the nodes of a {@link ClusterNode} cluster, so runs with one, two and
+ * three nodes at the same load show how the cluster scales.
+ *
+ * <p>With {@code --tls} every client connects over TLS, trusting
+ * {@code --truststore} or the JVM's default trust, so the connect phase
+ * shows what full handshakes cost the server.
+ *
+ * <p>Each message carries the time it was scheduled to be sent, not the time
+ * it was actually written, so a stalled sender shows up as latency instead
+ * of silently lowering the offered load.
+ */
+public class LoadGenerator {
+
+    private static final String MARKER = "~lg:";
+
+    /**
+     * Command line options.
+     */
+    static final class Options {
+        String host = "localhost";
+        int port = 5000;
+        // Several ports spread the clients round-robin over cluster nodes
+        int[] ports;
+        int clients = 100;
+        int rooms = 1;
+        int rate = 1000;
+        int durationSeconds = 30;
+        int warmupSeconds = 5;
+        int drainSeconds = 2;
+        int connectRate = 500;
+        int chatWeight = 80;
+        int pmWeight = 15;
+        int commandWeight = 5;
+        int messageSize = 64;
+        boolean text = false;
+        boolean compress = false;
+        boolean tls = false;
+        // PKCS#12 truststore for --tls; the JVM's default trust if unset
+        String truststore;
+        String truststorePassword = "";
+        String prefix = "lg";
+        String report = "load-report.json";
+        double maxP99Millis = 0;
+        double minDelivery = 0;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                if (!arg.startsWith("--")) {
+                    throw new IllegalArgumentException("Invalid option: " + arg);
+                }
+                String[] parts = arg.contains("=") ? arg.substring(2).split("=", 2)
+                        : new String[] {arg.substring(2), "true"};
+                options.set(parts[0], parts[1]);
+            }
+            return options;
+        }
+
+        private void set(String key, String value) {
+            switch (key) {
+                case "host":
+                    host = value;
+                    break;
+                case "port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "ports":
+                    ports = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+                    port = ports[0];
+                    break;
+                case "clients":
+                    clients = Math.max(2, Integer.parseInt(value));
+                    break;
+                case "rooms":
+                    rooms = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "rate":
+                    rate = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "duration":
+                    durationSeconds = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "warmup":
+                    warmupSeconds = Math.max(0, Integer.parseInt(value));
+                    break;
+                case "drain":
+                    drainSeconds = Math.max(0, Integer.parseInt(value));
+                    break;
+                case "connect-rate":
+                    connectRate = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "mix": {
+                    // chat:pm:command weights, e.g. 80:15:5
+                    String[] weights = value.split(":");
+                    chatWeight = Integer.parseInt(weights[0]);
+                    pmWeight = Integer.parseInt(weights[1]);
+                    commandWeight = Integer.parseInt(weights[2]);
+                    break;
+                }
+                case "size":
+                    messageSize = Math.max(MARKER.length() + 20, Integer.parseInt(value));
+                    break;
+                case "text":
+                    text = Boolean.parseBoolean(value);
+                    break;
+                case "compress":
+                    compress = Boolean.parseBoolean(value);
+                    break;
+                case "tls":
+                    tls = Boolean.parseBoolean(value);
+                    break;
+                case "truststore":
+                    truststore = value;
+                    break;
+                case "truststore-password":
+                    truststorePassword = value;
+                    break;
+                case "prefix":
+                    prefix = value;
+                    break;
+                case "report":
+                    report = value;
+                    break;
+                case "max-p99-ms":
+                    maxP99Millis = Double.parseDouble(value);
+                    break;
+                case "min-delivery":
+                    minDelivery = Double.parseDouble(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: --" + key);
+            }
+        }
+    }
+
+    /**
+     * One simulated user.
+     */
+    private final class Chatter implements ChatConnection.Listener {
+        final int index;
+        final String name;
+        final ChatConnection connection;
+        int room;
+
+        Chatter(int index, String name, ChatConnection connection) {
+            this.index = index;
+            this.name = name;
+            this.connection = connection;
+        }
+
+        @Override
+        public void onFrame(FrameCodec.Frame frame) {
+            if (frame.type == FrameCodec.Type.CHAT) {
+                received(frame.text, chatLatency, chatDelivered);
+            } else if (frame.type == FrameCodec.Type.PM_FROM) {
+                received(frame.text, pmLatency, pmDelivered);
+            }
+        }
+
+        @Override
+        public void onLine(String line) {
+            if (line.startsWith("[PM from ")) {
+                received(line, pmLatency, pmDelivered);
+            } else if (!line.startsWith("[System]") && !line.startsWith("[PM to ")) {
+                received(line, chatLatency, chatDelivered);
+            }
+        }
+
+        void listen() {
+            try {
+                connection.listen(this);
+            } catch (IOException e) {
+                // Counted below
+            }
+            if (!stopping) {
+                disconnected.incrementAndGet();
+            }
+        }
+    }
+
+    private final Options options;
+    // Null unless --tls; one context and session cache for all clients
+    private final SSLContext tlsContext;
+    private final List<Chatter> chatters = new ArrayList<>();
+    private int[] roomSizes;
+    private volatile boolean stopping = false;
+    private volatile long measureFromNanos = Long.MAX_VALUE;
+
+    private final Histogram chatLatency = new Histogram("chat", "ns");
+    private final Histogram pmLatency = new Histogram("pm", "ns");
+    private final LongAdder chatDelivered = new LongAdder();
+    private final LongAdder pmDelivered = new LongAdder();
+    private final AtomicInteger disconnected = new AtomicInteger();
+    private int failedConnects;
+    private long chatSent;
+    private long pmSent;
+    private long commandsSent;
+    private long sendErrors;
+    private long expectedDeliveries;
+
+    LoadGenerator(Options options) throws IOException {
+        this.options = options;
+        this.tlsContext = options.tls
+                ? TlsConfig.forClient(options.truststore, options.truststorePassword.toCharArray()) : null;
+    }
+
+    /**
+     * Records a delivery if the message carries our marker and was scheduled
+     * inside the measurement window.
+     */
+    private void received(String text, Histogram latency, LongAdder delivered) {
+        long now = System.nanoTime();
+        int at = text.indexOf(MARKER);
+        if (at < 0) {
+            return;
+        }
+        int start = at + MARKER.length();
+        int end = text.indexOf(' ', start);
+        long scheduled;
+        try {
+            scheduled = Long.parseLong(end < 0 ? text.substring(start) : text.substring(start, end));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (scheduled >= measureFromNanos) {
+            latency.record(now - scheduled);
+            delivered.increment();
+        }
+    }
+
+    void connectAll() throws InterruptedException {
+        long intervalNanos = 1_000_000_000L / options.connectRate;
+        long start = System.nanoTime();
+        for (int i = 0; i < options.clients; i++) {
+            long due = start + i * intervalNanos;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            }
+            String name = String.format("%s%05d", options.prefix, i);
+            try {
+                int port = options.ports != null ? options.ports[i % options.ports.length] : options.port;
+                ChatConnection connection = ChatConnection.open(options.host, port, name, new ChatConnection.Options()
+                        .binary(!options.text).compress(options.compress).tls(tlsContext).timeoutMillis(10000));
+                Chatter chatter = new Chatter(i, name, connection);
+                // Small stacks: thousands of these are mostly parked in read()
+                Thread reader = new Thread(null, chatter::listen, "lg-reader-" + i, 256 * 1024);
+                reader.setDaemon(true);
+                reader.start();
+                chatters.add(chatter);
+            } catch (IOException e) {
+                failedConnects++;
+            }
+        }
+
+        roomSizes = new int[options.rooms];
+        for (Chatter chatter : chatters) {
+            chatter.room = chatter.index % options.rooms;
+            roomSizes[chatter.room]++;
+            if (options.rooms > 1) {
+                send(chatter, "/join load-" + chatter.room);
+            }
+        }
+    }
+
+    private boolean send(Chatter chatter, String line) {
+        try {
+            chatter.connection.sendLine(line);
+            return true;
+        } catch (IOException e) {
+            sendErrors++;
+            return false;
+        }
+    }
+
+    /**
+     * Sends at the target rate for the warmup plus the measured duration,
+     * from this thread.
+     */
+    void drive() throws InterruptedException {
+        if (chatters.size() < 2) {
+            return;
+        }
+        int totalWeight = options.chatWeight + options.pmWeight + options.commandWeight;
+        String padding = "x".repeat(options.messageSize);
+        long intervalNanos = 1_000_000_000L / options.rate;
+        long start = System.nanoTime();
+        measureFromNanos = start + options.warmupSeconds * 1_000_000_000L;
+        long end = measureFromNanos + options.durationSeconds * 1_000_000_000L;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        for (long k = 0; ; k++) {
+            long scheduled = start + k * intervalNanos;
+            if (scheduled >= end) {
+                break;
+            }
+            // Never early, or latencies would come out too low
+            long wait;
+            while ((wait = scheduled - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            boolean measured = scheduled >= measureFromNanos;
+            Chatter sender = chatters.get(random.nextInt(chatters.size()));
+            String body = MARKER + scheduled + " " + padding;
+            body = body.substring(0, Math.min(body.length(), options.messageSize));
+
+            int pick = random.nextInt(totalWeight);
+            if (pick < options.chatWeight) {
+                if (send(sender, body) && measured) {
+                    chatSent++;
+                    expectedDeliveries += roomSizes[sender.room] - 1;
+                }
+            } else if (pick < options.chatWeight + options.pmWeight) {
+                Chatter target;
+                do {
+                    target = chatters.get(random.nextInt(chatters.size()));
+                } while (target == sender);
+                if (send(sender, "/msg " + target.name + " " + body) && measured) {
+                    pmSent++;
+                    expectedDeliveries++;
+                }
+            } else if (send(sender, (k & 1) == 0 ? "/info" : "/rooms") && measured) {
+                commandsSent++;
+            }
+        }
+        Thread.sleep(options.drainSeconds * 1000L);
+    }
+
+    void stop() {
+        stopping = true;
+        for (Chatter chatter : chatters) {
+            try {
+                chatter.connection.close();
+            } catch (IOException e) {
+                // Shutting down anyway
+            }
+        }
+    }
+
+    long getDelivered() {
+        return chatDelivered.sum() + pmDelivered.sum();
+    }
+
+    double getDeliveryRatio() {
+        return expectedDeliveries == 0 ? 1 : (double) getDelivered() / expectedDeliveries;
+    }
+
+    double getP99Millis() {
+        return Math.max(chatLatency.getPercentile(99), pmLatency.getPercentile(99)) / 1e6;
+    }
+
+    boolean gatesPassed() {
+        return (options.maxP99Millis <= 0 || getP99Millis() <= options.maxP99Millis)
+                && (options.minDelivery <= 0 || getDeliveryRatio() >= options.minDelivery);
+    }
+
+    String toJson() {
+        double seconds = options.durationSeconds;
+        StringBuilder sb = new StringBuilder("{\n");
+        sb.append(String.format(Locale.ROOT, "  \"config\": {\"host\": \"%s\", \"ports\": %s, \"clients\": %d, "
+                        + "\"rooms\": %d, \"rate\": %d, \"duration_s\": %d, \"warmup_s\": %d, \"mix\": \"%d:%d:%d\", "
+                        + "\"size\": %d, \"protocol\": \"%s\", \"compress\": %b, \"tls\": %b},%n",
+                options.host, Arrays.toString(options.ports != null ? options.ports : new int[] {options.port}),
+                options.clients, options.rooms, options.rate,
+                options.durationSeconds, options.warmupSeconds, options.chatWeight, options.pmWeight,
+                options.commandWeight, options.messageSize, options.text ? "text" : "binary", options.compress,
+                options.tls));
+        sb.append(String.format(Locale.ROOT, "  \"connections\": {\"connected\": %d, \"failed\": %d, "
+                + "\"disconnected\": %d},%n", chatters.size(), failedConnects, disconnected.get()));
+        sb.append(String.format(Locale.ROOT, "  \"sent\": {\"chat\": %d, \"pm\": %d, \"command\": %d, "
+                + "\"errors\": %d},%n", chatSent, pmSent, commandsSent, sendErrors));
+        sb.append(String.format(Locale.ROOT, "  \"delivered\": {\"chat\": %d, \"pm\": %d, \"expected\": %d, "
+                        + "\"ratio\": %.4f},%n", chatDelivered.sum(), pmDelivered.sum(), expectedDeliveries,
+                getDeliveryRatio()));
+        sb.append(String.format(Locale.ROOT, "  \"throughput_per_s\": {\"sent\": %.1f, \"delivered\": %.1f},%n",
+                (chatSent + pmSent + commandsSent) / seconds, getDelivered() / seconds));
+        sb.append("  \"latency_ms\": {\n");
+        sb.append("    \"chat\": ").append(latencyJson(chatLatency)).append(",\n");
+        sb.append("    \"pm\": ").append(latencyJson(pmLatency)).append("\n  },\n");
+        sb.append(String.format(Locale.ROOT, "  \"gates\": {\"max_p99_ms\": %.3f, \"min_delivery\": %.4f, "
+                + "\"passed\": %b}%n", options.maxP99Millis, options.minDelivery, gatesPassed()));
+        return sb.append("}\n").toString();
+    }
+
+    private static String latencyJson(Histogram histogram) {
+        return String.format(Locale.ROOT, "{\"count\": %d, \"mean\": %.3f, \"p50\": %.3f, \"p90\": %.3f, "
+                        + "\"p99\": %.3f, \"p999\": %.3f, \"max\": %.3f}",
+                histogram.getCount(), histogram.getMean() / 1e6, histogram.getPercentile(50) / 1e6,
+                histogram.getPercentile(90) / 1e6, histogram.getPercentile(99) / 1e6,
+                histogram.getPercentile(99.9) / 1e6, histogram.getMax() / 1e6);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        LoadGenerator generator = new LoadGenerator(options);
+
+        System.out.printf("Connecting %d clients to %s:%s...%n", options.clients, options.host,
+                options.ports != null ? Arrays.toString(options.ports) : options.port);
+        generator.connectAll();
+        System.out.printf("Connected %d (%d failed); sending %d msg/s for %ds after %ds warmup%n",
+                generator.chatters.size(), generator.failedConnects, options.rate,
+                options.durationSeconds, options.warmupSeconds);
+
+        generator.drive();
+        generator.stop();
+
+        System.out.println(generator.chatLatency.summary());
+        System.out.println(generator.pmLatency.summary());
+        System.out.printf(Locale.ROOT, "delivered %d of %d expected (%.2f%%), %d disconnects%n",
+                generator.getDelivered(), generator.expectedDeliveries, generator.getDeliveryRatio() * 100,
+                generator.disconnected.get());
+
+        Files.write(Paths.get(options.report), generator.toJson().getBytes(StandardCharsets.UTF_8));
+        System.out.println("Report written to " + options.report);
+        if (!generator.gatesPassed()) {
+            System.out.println("FAILED release gates");
+            System.exit(2);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package Hn;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-capacity, lock-free ring of log lines. Writers never block and never
+ * allocate beyond the line itself; once full, each new line overwrites the
+ * oldest, so memory stays constant however long the server runs.
+ *
+ * <p>Every line gets a sequence number. Readers keep a cursor and pick up
+ * everything appended since, which lets a view flush in batches at its own
+ * pace and skip whatever was overwritten in between.
+ */
+public class LogRingBuffer {
+
+    private static final class Entry {
+        final long sequence;
+        final String line;
+
+        Entry(long sequence, String line) {
+            this.sequence = sequence;
+            this.line = line;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final AtomicLong nextSequence = new AtomicLong();
+    // Lines before this sequence were cleared and are no longer returned
+    private volatile long floor;
+
+    /**
+     * @param capacity number of lines retained, rounded up to a power of two
+     */
+    public LogRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    public void add(String line) {
+        long sequence = nextSequence.getAndIncrement();
+        slots.set((int) (sequence & mask), new Entry(sequence, line));
+    }
+
+    /**
+     * Appends to {@code out} the retained lines from sequence {@code from}
+     * on, oldest first, and returns the cursor to pass next time. A line
+     * whose writer has not finished yet ends the batch; it is picked up by
+     * the next call.
+     */
+    public long drainTo(long from, List<String> out) {
+        long end = nextSequence.get();
+        long sequence = Math.max(Math.max(from, floor), end - slots.length());
+        for (; sequence < end; sequence++) {
+            Entry entry = slots.get((int) (sequence & mask));
+            if (entry == null || entry.sequence < sequence) {
+                break;
+            }
+            if (entry.sequence == sequence) {
+                out.add(entry.line);
+            }
+            // Otherwise it was overwritten while we were reading; skip it
+        }
+        return sequence;
+    }
+
+    /**
+     * Every line still retained, oldest first.
+     */
+    public List<String> snapshot() {
+        List<String> lines = new ArrayList<>();
+        drainTo(0, lines);
+        return lines;
+    }
+
+    public void clear() {
+        floor = nextSequence.get();
+    }
+
+    /**
+     * The sequence number the next line will get, i.e. a cursor positioned
+     * after everything appended so far.
+     */
+    public long getSequence() {
+        return nextSequence.get();
+    }
+
+    public int getCapacity() {
+        return slots.length();
+    }
+}
@@ -0,0 +1,173 @@
+package Hn;
+
+import javax.swing.*;
+import javax.swing.text.*;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The chat transcript of {@link ChatClient}: lines are posted from any
+ * thread and drawn on the event dispatch thread in batches.
+ *
+ * <p>Posting formats the line, timestamp included, on the caller's thread
+ * (for incoming messages the connection's reader) and queues it. At most
+ * once per frame interval the EDT takes everything queued, appends it to
+ * the text area in one edit, trims the document to the scrollback and
+ * moves the caret once. A busy room therefore costs the EDT one layout per
+ * frame instead of one per line, and memory stays bounded: lines beyond
+ * the scrollback are dropped from the document, and from the queue before
+ * they are ever drawn if the EDT falls that far behind.
+ */
+public final class MessageFeed {
+
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss");
+    // Queued by clear() so that it happens in order with the lines around it;
+    // it drops what was queued before it, so it is only ever first in line
+    private static final String CLEAR = new String("");
+
+    private final JTextArea area;
+    private final int scrollbackLines;
+    private final long frameNanos;
+    // Guarded by itself
+    private final ArrayDeque<String> queued = new ArrayDeque<>();
+    private final AtomicBoolean renderScheduled = new AtomicBoolean(false);
+    private final Timer renderTimer;
+    // EDT only
+    private long lastRenderNanos = System.nanoTime();
+    // Immutable; replaced once a second
+    private volatile Stamp stamp = new Stamp(-1, "");
+
+    private static final class Stamp {
+        final long second;
+        final String text;
+
+        Stamp(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
+    /**
+     * @param scrollbackLines lines kept in the text area
+     * @param framesPerSecond how often the text area is redrawn at most
+     */
+    public MessageFeed(JTextArea area, int scrollbackLines, int framesPerSecond) {
+        this.area = area;
+        this.scrollbackLines = Math.max(1, scrollbackLines);
+        this.frameNanos = 1_000_000_000L / Math.max(1, framesPerSecond);
+        this.renderTimer = new Timer(0, e -> render());
+        this.renderTimer.setRepeats(false);
+    }
+
+    /**
+     * Queues {@code message} with the current time in front of it. Safe to
+     * call from any thread.
+     */
+    public void post(String message) {
+        enqueue(timestamp() + message + "\n");
+    }
+
+    /**
+     * Empties the transcript once the lines posted before are drawn (or
+     * dropped).
+     */
+    public void clear() {
+        synchronized (queued) {
+            // Lines not drawn yet would only be cleared again
+            queued.clear();
+            queued.add(CLEAR);
+        }
+        scheduleRenderLater();
+    }
+
+    private void enqueue(String line) {
+        synchronized (queued) {
+            queued.add(line);
+            // The EDT is too far behind to show these anyway; keep the newest,
+            // and the clear in front of them
+            if (queued.size() - (queued.peek() == CLEAR ? 1 : 0) > scrollbackLines
+                    && queued.poll() == CLEAR) {
+                queued.poll();
+                queued.addFirst(CLEAR);
+            }
+        }
+        scheduleRenderLater();
+    }
+
+    private void scheduleRenderLater() {
+        if (renderScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::scheduleRender);
+        }
+    }
+
+    private String timestamp() {
+        long second = System.currentTimeMillis() / 1000;
+        Stamp current = stamp;
+        if (current.second != second) {
+            current = new Stamp(second, "[" + LocalTime.now().format(TIME) + "] ");
+            stamp = current;
+        }
+        return current.text;
+    }
+
+    /**
+     * On the EDT: renders now if a frame interval has passed since the last
+     * render, or once it has.
+     */
+    private void scheduleRender() {
+        long wait = lastRenderNanos + frameNanos - System.nanoTime();
+        if (wait <= 0) {
+            render();
+        } else {
+            renderTimer.setInitialDelay((int) ((wait + 999_999) / 1_000_000));
+            renderTimer.restart();
+        }
+    }
+
+    private void render() {
+        // Lines posted from here on schedule the next render
+        renderScheduled.set(false);
+        lastRenderNanos = System.nanoTime();
+        StringBuilder text = new StringBuilder();
+        boolean cleared;
+        synchronized (queued) {
+            cleared = queued.peek() == CLEAR;
+            if (cleared) {
+                queued.poll();
+            }
+            for (String line : queued) {
+                text.append(line);
+            }
+            queued.clear();
+        }
+        if (cleared) {
+            area.setText("");
+        }
+        if (text.length() == 0) {
+            return;
+        }
+        area.append(text.toString());
+        trim();
+        area.setCaretPosition(area.getDocument().getLength());
+    }
+
+    /**
+     * Removes the oldest lines beyond the scrollback, in one edit.
+     */
+    private void trim() {
+        Document document = area.getDocument();
+        Element root = document.getDefaultRootElement();
+        // The text ends with a newline, so the last element is empty
+        int excess = root.getElementCount() - 1 - scrollbackLines;
+        if (excess <= 0) {
+            return;
+        }
+        try {
+            document.remove(0, root.getElement(excess - 1).getEndOffset());
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
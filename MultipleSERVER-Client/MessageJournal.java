@@ -0,0 +1,347 @@
+package Hn;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Append-only journal of chat traffic, kept in fixed-size memory-mapped
+ * segment files.
+ *
+ * <p>An append copies the encoded record into the current segment's mapping;
+ * it makes no system call. A background thread forces dirty pages to disk
+ * every few milliseconds, so one {@code msync} commits every record appended
+ * in that window (group commit). Records are already in the page cache when
+ * {@link #append} returns, so they survive a crash of the server process; an
+ * OS crash can lose at most the last flush interval.
+ *
+ * <p>Each record is
+ *
+ * <pre>
+ * | length u32 | sequence u64 | time millis u64 | type u8 | room | sender | peer | text | length u32 |
+ * </pre>
+ *
+ * where room, sender and peer are each a u8 byte count followed by UTF-8
+ * (count 0 for none) and {@code length} covers the bytes between the two
+ * length fields. The trailing length lets {@link #recent} walk backwards. A
+ * zero length marks the end of the written part of a segment, since new
+ * segments are zero-filled.
+ *
+ * <p>When a record does not fit, a new segment is started; only the newest
+ * {@code retainedSegments} segments are kept.
+ */
+public class MessageJournal implements Closeable {
+
+    private static final String SUFFIX = ".journal";
+    private static final int FIXED_LENGTH = 8 + 8 + 1 + 3;
+    private static final int FRAMING = 4 + 4;
+
+    /**
+     * One journaled message.
+     */
+    public static final class Entry {
+        public final long sequence;
+        public final long timeMillis;
+        public final FrameCodec.Type type;
+        public final String room;
+        public final String sender;
+        public final String peer;
+        public final String text;
+
+        Entry(long sequence, long timeMillis, FrameCodec.Type type, String room, String sender,
+                String peer, String text) {
+            this.sequence = sequence;
+            this.timeMillis = timeMillis;
+            this.type = type;
+            this.room = room;
+            this.sender = sender;
+            this.peer = peer;
+            this.text = text;
+        }
+    }
+
+    private static final class Segment {
+        final long index;
+        final Path path;
+        final MappedByteBuffer buffer;
+        // End of the last complete record; readers never look past it
+        volatile int committed;
+        volatile boolean dirty;
+
+        Segment(long index, Path path, MappedByteBuffer buffer) {
+            this.index = index;
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int retainedSegments;
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService flusher;
+    private long nextSequence = 1;
+    private volatile boolean closed = false;
+
+    private MessageJournal(Path directory, int segmentBytes, int retainedSegments) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retainedSegments = retainedSegments;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "journal-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Opens the journal in {@code directory}, creating it if needed, and
+     * resumes appending after the last complete record found there.
+     */
+    public static MessageJournal open(Path directory, int segmentBytes, int retainedSegments,
+            long flushIntervalMillis) throws IOException {
+        Files.createDirectories(directory);
+        MessageJournal journal = new MessageJournal(directory, segmentBytes, Math.max(1, retainedSegments));
+        journal.recover();
+        journal.flusher.scheduleWithFixedDelay(journal::flush,
+                flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        return journal;
+    }
+
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        files.sort(Comparator.naturalOrder());
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long index = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+            Segment segment = map(index, file, (int) Math.max(Files.size(file), segmentBytes));
+            segment.committed = scanEnd(segment);
+            segments.add(segment);
+        }
+        if (segments.isEmpty()) {
+            segments.add(createSegment(0));
+        }
+    }
+
+    /**
+     * Finds the end of the last complete record in a segment and picks up
+     * the sequence numbering from it. A torn record at the end is ignored and
+     * later overwritten.
+     */
+    private int scanEnd(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int position = 0;
+        while (position + 4 <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            int end = position + 4 + length + 4;
+            if (length < FIXED_LENGTH || end > buffer.capacity() || buffer.getInt(end - 4) != length) {
+                break;
+            }
+            nextSequence = Math.max(nextSequence, buffer.getLong(position + 4) + 1);
+            position = end;
+        }
+        return position;
+    }
+
+    private Segment createSegment(long index) throws IOException {
+        Path path = directory.resolve(String.format("%020d%s", index, SUFFIX));
+        return map(index, path, segmentBytes);
+    }
+
+    private static Segment map(long index, Path path, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed
+            return new Segment(index, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    /**
+     * Appends one record and returns its sequence number.
+     */
+    public long append(FrameCodec.Type type, String room, String sender, String peer, String text)
+            throws IOException {
+        byte[] roomBytes = field(room);
+        byte[] senderBytes = field(sender);
+        byte[] peerBytes = field(peer);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        int length = FIXED_LENGTH + roomBytes.length + senderBytes.length + peerBytes.length + textBytes.length;
+        if (length + FRAMING > segmentBytes) {
+            throw new IOException("Record of " + length + " bytes exceeds the segment size");
+        }
+        long now = System.currentTimeMillis();
+
+        appendLock.lock();
+        try {
+            if (closed) {
+                throw new IOException("Journal is closed");
+            }
+            Segment segment = segments.get(segments.size() - 1);
+            int position = segment.committed;
+            if (position + length + FRAMING > segment.buffer.capacity()) {
+                segment = rotate(segment);
+                position = 0;
+            }
+            long sequence = nextSequence++;
+
+            ByteBuffer buffer = segment.buffer;
+            int at = position + 4;
+            buffer.putLong(at, sequence);
+            buffer.putLong(at + 8, now);
+            buffer.put(at + 16, (byte) type.getCode());
+            at = putField(buffer, at + 17, roomBytes);
+            at = putField(buffer, at, senderBytes);
+            at = putField(buffer, at, peerBytes);
+            buffer.put(at, textBytes);
+            at += textBytes.length;
+            buffer.putInt(at, length);
+            // Written last, so a record is never seen with a valid header but a torn body
+            buffer.putInt(position, length);
+
+            segment.committed = at + 4;
+            segment.dirty = true;
+            return sequence;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private Segment rotate(Segment full) throws IOException {
+        full.buffer.force();
+        full.dirty = false;
+        Segment next = createSegment(full.index + 1);
+        segments.add(next);
+        while (segments.size() > retainedSegments) {
+            Segment expired = segments.remove(0);
+            // Readers still holding the mapping keep working; the file goes once they drop it
+            Files.deleteIfExists(expired.path);
+        }
+        return next;
+    }
+
+    private static byte[] field(String value) {
+        if (value == null) {
+            return new byte[0];
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 255) {
+            throw new IllegalArgumentException("Field too long: " + value);
+        }
+        return bytes;
+    }
+
+    private static int putField(ByteBuffer buffer, int at, byte[] bytes) {
+        buffer.put(at, (byte) bytes.length);
+        buffer.put(at + 1, bytes);
+        return at + 1 + bytes.length;
+    }
+
+    /**
+     * Returns up to {@code limit} of the newest entries accepted by
+     * {@code filter}, oldest first. Only the newest {@code maxBytes} of
+     * records are looked at, so that a filter that rarely matches does not
+     * walk the whole journal. Runs concurrently with appends and never
+     * blocks them.
+     */
+    public List<Entry> recent(int limit, long maxBytes, Predicate<Entry> filter) {
+        Deque<Entry> found = new ArrayDeque<>();
+        List<Segment> snapshot = new ArrayList<>(segments);
+        long scanned = 0;
+        for (int s = snapshot.size() - 1; s >= 0 && found.size() < limit && scanned < maxBytes; s--) {
+            Segment segment = snapshot.get(s);
+            ByteBuffer buffer = segment.buffer.duplicate();
+            int end = segment.committed;
+            while (end > 0 && found.size() < limit && scanned < maxBytes) {
+                int length = buffer.getInt(end - 4);
+                int start = end - 4 - length - 4;
+                Entry entry = decode(buffer, start + 4);
+                if (filter.test(entry)) {
+                    found.addFirst(entry);
+                }
+                scanned += end - start;
+                end = start;
+            }
+        }
+        return new ArrayList<>(found);
+    }
+
+    private static Entry decode(ByteBuffer buffer, int at) {
+        long sequence = buffer.getLong(at);
+        long timeMillis = buffer.getLong(at + 8);
+        FrameCodec.Type type = FrameCodec.Type.fromCode(buffer.get(at + 16) & 0xFF);
+        int length = buffer.getInt(at - 4);
+        int end = at + length;
+        at += 17;
+        String[] fields = new String[3];
+        for (int i = 0; i < fields.length; i++) {
+            int size = buffer.get(at) & 0xFF;
+            fields[i] = size == 0 ? null : string(buffer, at + 1, size);
+            at += 1 + size;
+        }
+        return new Entry(sequence, timeMillis, type, fields[0], fields[1], fields[2],
+                string(buffer, at, end - at));
+    }
+
+    private static String string(ByteBuffer buffer, int at, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(at, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Forces every segment with unflushed records to disk.
+     */
+    public void flush() {
+        for (Segment segment : segments) {
+            if (segment.dirty) {
+                segment.dirty = false;
+                segment.buffer.force();
+            }
+        }
+    }
+
+    public long getLastSequence() {
+        appendLock.lock();
+        try {
+            return nextSequence - 1;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public void close() {
+        appendLock.lock();
+        try {
+            closed = true;
+        } finally {
+            appendLock.unlock();
+        }
+        flusher.shutdownNow();
+        flush();
+    }
+}
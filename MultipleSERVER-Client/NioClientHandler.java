@@ -0,0 +1,574 @@
+package Hn;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * A {@link ClientHandler} driven by a {@link NioServerCore} event loop instead
+ * of its own thread. Bytes are read non-blocking, split into lines here and
+ * dispatched through the same handshake and command logic as the blocking
+ * handler; outgoing lines are queued and written when the channel is writable.
+ *
+ * <p>The read buffer is borrowed from the server's pool of direct buffers for
+ * each read and given back once everything in it has been dispatched, so an
+ * idle connection holds no buffer, only the bytes of a line or frame that has
+ * not fully arrived.
+ *
+ * <p>When the server runs with TLS, a {@link TlsSession} sits between the
+ * channel and the buffers here, and the handshake's expensive steps run on
+ * the server's TLS task threads with reading paused, as the chat handshake
+ * does when it is offloaded.
+ *
+ * <p>A line held back by a rate limit pauses reading the same way, for as
+ * long as the limit asks; the loop resumes it from a timer.
+ */
+public class NioClientHandler extends ClientHandler {
+
+    private static final int READ_BUFFER_SIZE = 4096;
+    // Plus a carriage return
+    private static final int MAX_LINE_LENGTH = FrameCodec.MAX_LINE_LENGTH + 1;
+    private static final byte[] EMPTY = new byte[0];
+    // A partial line or frame larger than this is not kept once it is done
+    private static final int MAX_IDLE_PENDING = 4096;
+
+    private final ChatServer server;
+    private final SocketChannel channel;
+    private final NioServerCore.EventLoop loop;
+    private SelectionKey key;
+    // Null unless the server runs with TLS
+    private final TlsSession tls;
+    // Set while the TLS handshake's tasks run off the loop; reading is paused meanwhile
+    private boolean tlsTasksRunning = false;
+
+    private final BufferPool buffers;
+    // Null unless bytes have been read and not yet dispatched
+    private ByteBuffer readBuffer;
+    // Bytes of an incomplete line (text protocol) or frame (binary protocol)
+    private byte[] pending = EMPTY;
+    private int pendingLength = 0;
+    private boolean handshakeDone = false;
+    // Set while a name claim (the handshake or a rename) runs off the loop;
+    // reading is paused meanwhile
+    private boolean claimPending = false;
+    private ByteBuffer handshakeReply;
+    // A line held back by a rate limit; reading is paused until it is handled
+    private String throttledLine;
+
+    private final OutboundQueue<SharedFrame> outbound;
+    // Frames are copied out of the queue into a batch before they are
+    // written, so that DROP_OLDEST can never evict one half on the wire
+    private OutboundBatch batch;
+    // The part of the batch not yet written, or null
+    private ByteBuffer unsent;
+    // Taken off the queue but did not fit the last batch; starts the next
+    private SharedFrame carried;
+    private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+
+    public NioClientHandler(SocketChannel channel, ChatServer server, NioServerCore.EventLoop loop)
+            throws IOException {
+        super(server, channel.socket());
+        this.server = server;
+        this.channel = channel;
+        this.loop = loop;
+        this.buffers = server.getChannelBuffers();
+        this.outbound = OutboundQueue.forFrames(server.getConfig());
+        this.tls = server.newTlsSession(channel);
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Called by the event loop when the channel is readable.
+     */
+    void handleRead() throws IOException {
+        if (tls != null) {
+            readTls();
+            return;
+        }
+        int read = channel.read(readBuffer());
+        if (read < 0) {
+            endOfInput();
+            return;
+        }
+
+        readBuffer.flip();
+        processInput();
+    }
+
+    private ByteBuffer readBuffer() {
+        if (readBuffer == null) {
+            readBuffer = buffers.acquire(READ_BUFFER_SIZE);
+        }
+        return readBuffer;
+    }
+
+    private void releaseReadBuffer() {
+        if (readBuffer != null) {
+            buffers.release(readBuffer);
+            readBuffer = null;
+        }
+    }
+
+    private void endOfInput() throws IOException {
+        if (!handshakeDone) {
+            dispatch(null);
+        }
+        disconnect();
+    }
+
+    /**
+     * Reads and dispatches plaintext until the TLS session has no more
+     * without waiting. The session may hold more than one read buffer's
+     * worth, and the selector will not report that, hence the loop.
+     */
+    private void readTls() throws IOException {
+        while (isConnected() && !claimPending && !tlsTasksRunning && throttledLine == null) {
+            int read = tls.read(readBuffer());
+            if (read < 0) {
+                endOfInput();
+                return;
+            }
+            if (read == 0) {
+                if (readBuffer.position() == 0) {
+                    releaseReadBuffer();
+                }
+                break;
+            }
+            readBuffer.flip();
+            processInput();
+        }
+        if (!isConnected() || !key.isValid()) {
+            return;
+        }
+        if (tls.needsTasks() && !tlsTasksRunning) {
+            tlsTasksRunning = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            server.runTlsTasks(() -> {
+                try {
+                    tls.runTasks();
+                } finally {
+                    loop.execute(this, this::resumeAfterTlsTasks);
+                }
+            });
+        }
+        if (tls.hasPendingOutput()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Back on the loop: resumes reading and moves the TLS handshake along
+     * with whatever the tasks left to send or unwrap.
+     */
+    private void resumeAfterTlsTasks() {
+        tlsTasksRunning = false;
+        if (!isConnected() || key == null || !key.isValid()) {
+            return;
+        }
+        try {
+            if (!claimPending && throttledLine == null) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+            readTls();
+        } catch (IOException | CancelledKeyException e) {
+            disconnect();
+        }
+    }
+
+    /**
+     * Dispatches what is in the read buffer. If that claims a name on
+     * another thread, or a line is throttled, the rest stays in the buffer
+     * until reading resumes.
+     */
+    private void processInput() throws IOException {
+        // Checked in this order since a disconnect gives the buffer back
+        while (isConnected() && !claimPending && throttledLine == null && readBuffer.hasRemaining()) {
+            if (handshakeDone && isBinary()) {
+                readFrames();
+                break;
+            }
+            byte b = readBuffer.get();
+            if (b == '\n') {
+                int length = pendingLength;
+                if (length > 0 && pending[length - 1] == '\r') {
+                    length--;
+                }
+                String line = new String(pending, 0, length, StandardCharsets.UTF_8);
+                pendingLength = 0;
+                dispatch(line);
+            } else {
+                if (pendingLength == MAX_LINE_LENGTH) {
+                    System.err.println("Line too long from " + getUsername() + ", disconnecting");
+                    disconnect();
+                    return;
+                }
+                ensureCapacity(pendingLength + 1);
+                pending[pendingLength++] = b;
+            }
+        }
+        if (pendingLength == 0 && pending.length > MAX_IDLE_PENDING) {
+            pending = EMPTY;
+        }
+        if (readBuffer == null) {
+            return;
+        }
+        if ((claimPending || throttledLine != null) && readBuffer.hasRemaining()) {
+            readBuffer.compact();
+        } else {
+            releaseReadBuffer();
+        }
+    }
+
+    /**
+     * Appends what is left in the read buffer and dispatches every complete
+     * frame; a trailing partial frame stays in {@code pending}.
+     */
+    private void readFrames() throws IOException {
+        int count = readBuffer.remaining();
+        ensureCapacity(pendingLength + count);
+        readBuffer.get(pending, pendingLength, count);
+        pendingLength += count;
+        dispatchFrames();
+    }
+
+    /**
+     * Dispatches the complete frames in {@code pending}, up to the first
+     * throttled one or the first that claims a name off the loop.
+     */
+    private void dispatchFrames() throws IOException {
+        int position = 0;
+        while (pendingLength - position >= 4 && isConnected() && !claimPending && throttledLine == null) {
+            int length = ((pending[position] & 0xFF) << 24) | ((pending[position + 1] & 0xFF) << 16)
+                    | ((pending[position + 2] & 0xFF) << 8) | (pending[position + 3] & 0xFF);
+            if (length < 0 || length > FrameCodec.MAX_TEXT_FRAME_LENGTH) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+            if (pendingLength - position - 4 < length) {
+                break;
+            }
+            FrameCodec.Frame frame = FrameCodec.decode(pending, position + 4, length);
+            position += 4 + length;
+            if (frame.type == FrameCodec.Type.TEXT) {
+                dispatch(frame.text);
+            }
+        }
+        System.arraycopy(pending, position, pending, 0, pendingLength - position);
+        pendingLength -= position;
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(needed, Math.max(256, pending.length * 2)));
+        }
+    }
+
+    private void dispatch(String line) throws IOException {
+        if (!handshakeDone) {
+            String requestedName = parseHandshake(line);
+            byte[] ack = FrameCodec.handshakeAck(isBinary(), getCompressor() != null);
+            if (ack != null) {
+                handshakeReply = ByteBuffer.wrap(ack);
+            }
+            handshakeDone = true;
+            // Claiming the name may wait for another cluster node, which the
+            // loop must not do; its other channels would stall meanwhile
+            if (line != null && server.offloadNameClaim(() -> handshakeOffLoop(requestedName))) {
+                claimPending = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                return;
+            }
+            onHandshake(requestedName);
+            // Frames queued before the handshake were held back; send them now
+            handleWrite();
+        } else {
+            long wait = throttle(line);
+            if (wait > 0) {
+                // Not reading meanwhile lets TCP slow the client down
+                throttledLine = line;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                loop.schedule(this, this::resumeAfterThrottle, wait);
+                return;
+            }
+            onLine(line);
+        }
+    }
+
+    /**
+     * Back from a throttle: handles the held line and what arrived behind
+     * it, then resumes reading unless another line was held back.
+     */
+    private void resumeAfterThrottle() {
+        String line = throttledLine;
+        throttledLine = null;
+        if (!isConnected() || key == null || !key.isValid()) {
+            return;
+        }
+        try {
+            onLine(line);
+            if (isBinary()) {
+                dispatchFrames();
+            } else if (readBuffer != null) {
+                readBuffer.flip();
+                processInput();
+            }
+            if (throttledLine == null && isConnected() && key.isValid()) {
+                if (!claimPending && !tlsTasksRunning) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+                if (tls != null) {
+                    readTls();
+                }
+            }
+        } catch (IOException | CancelledKeyException e) {
+            disconnect();
+        }
+    }
+
+    private void handshakeOffLoop(String requestedName) {
+        try {
+            onHandshake(requestedName);
+        } finally {
+            loop.execute(this, this::resumeAfterClaim);
+        }
+    }
+
+    /**
+     * Runs a rename's claim off the loop when it may wait for another cluster
+     * node, the way the handshake's is, and finishes it back on the loop. The
+     * lines behind the rename wait until then, so they keep their order.
+     */
+    @Override
+    protected void claimName(BooleanSupplier claim, Consumer<Boolean> then) {
+        if (!server.offloadNameClaim(() -> {
+            boolean claimed = false;
+            try {
+                claimed = claim.getAsBoolean();
+            } finally {
+                boolean outcome = claimed;
+                loop.execute(this, () -> {
+                    then.accept(outcome);
+                    resumeAfterClaim();
+                });
+            }
+        })) {
+            then.accept(claim.getAsBoolean());
+            return;
+        }
+        claimPending = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    /**
+     * Back on the loop: dispatches whatever arrived behind the claim,
+     * resumes reading and sends the replies.
+     */
+    private void resumeAfterClaim() {
+        claimPending = false;
+        if (!isConnected() || key == null || !key.isValid()) {
+            return;
+        }
+        try {
+            if (readBuffer != null) {
+                readBuffer.flip();
+                processInput();
+            } else if (handshakeDone && isBinary()) {
+                dispatchFrames();
+            }
+            if (!tlsTasksRunning && throttledLine == null) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+            if (tls != null) {
+                readTls();
+            }
+            handleWrite();
+        } catch (IOException | CancelledKeyException e) {
+            disconnect();
+        }
+    }
+
+    /**
+     * Called by the event loop when the channel is writable, or when a write
+     * was scheduled from another thread.
+     */
+    void handleWrite() throws IOException {
+        writeScheduled.set(false);
+        if (key == null || !key.isValid()) {
+            // Nothing goes out after close(), which has ended the compressor
+            return;
+        }
+        if (tls != null) {
+            if (!tls.flush()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            if (tls.isHandshaking()) {
+                // Only the TLS handshake had something to send; what it
+                // needs next comes from reading
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                readTls();
+                return;
+            }
+        }
+        if (!handshakeDone) {
+            // Nothing goes out until we know which protocol the client speaks
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            return;
+        }
+        if (handshakeReply != null) {
+            write(handshakeReply);
+            if (handshakeReply.hasRemaining()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            handshakeReply = null;
+        }
+        while (unsent != null || fillBatch()) {
+            long start = System.nanoTime();
+            write(unsent);
+            getMetrics().recipientWrite.recordSince(start);
+            if (unsent.hasRemaining()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            unsent = null;
+            batch.release();
+        }
+        if (tls != null && tls.hasPendingOutput()) {
+            // The frame is encrypted but its last record is not all sent
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            return;
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    private void write(ByteBuffer src) throws IOException {
+        if (tls != null) {
+            // Counts its own writes; one batch may take several records
+            tls.write(src);
+        } else {
+            channel.write(src);
+            getMetrics().socketWrite();
+        }
+    }
+
+    /**
+     * Moves as many queued frames as fit into the batch and makes it the
+     * next thing to write. Returns false if nothing is queued.
+     */
+    private boolean fillBatch() {
+        if (batch == null) {
+            batch = new OutboundBatch(buffers, getMetrics(), isBinary(), getCompressor());
+        }
+        SharedFrame frame = carried;
+        if (frame == null) {
+            taken(frame = outbound.poll());
+        }
+        carried = null;
+        while (frame != null) {
+            if (!batch.add(frame)) {
+                carried = frame;
+                break;
+            }
+            taken(frame = outbound.poll());
+        }
+        if (batch.isEmpty()) {
+            return false;
+        }
+        unsent = batch.finish();
+        return true;
+    }
+
+    @Override
+    public void sendMessage(String message) {
+        sendFrame(SharedFrame.chat(0, message));
+    }
+
+    @Override
+    protected void enqueue(SharedFrame frame) {
+        boolean resumable = getSession() != null;
+        if (!isConnected() && !resumable) {
+            frame.release();
+            return;
+        }
+        OutboundQueue.OfferResult result = outbound.offer(frame);
+        if (result == OutboundQueue.OfferResult.DISCONNECT) {
+            onSlowConsumer();
+            return;
+        }
+        if (result == OutboundQueue.OfferResult.DROPPED) {
+            getMetrics().frameDropped();
+        }
+        if (!isConnected()) {
+            // Raced with disconnect(); the loop may already have closed us.
+            // With a session, close() has yet to log what is queued.
+            if (!resumable) {
+                loop.execute(this, outbound::clear);
+            }
+            return;
+        }
+        if (writeScheduled.compareAndSet(false, true)) {
+            loop.scheduleWrite(this);
+        }
+    }
+
+    @Override
+    protected void onSlowConsumer() {
+        System.err.println("Disconnecting slow consumer " + getUsername()
+                + " (queue depth " + outbound.getDepth() + ")");
+        loop.execute(this, this::disconnect);
+    }
+
+    /**
+     * Closing happens on the event loop, after one last non-blocking attempt
+     * to write what is queued (e.g. a kick notice).
+     */
+    @Override
+    public void close() {
+        if (Thread.currentThread() != loop) {
+            loop.execute(this, this::close);
+            return;
+        }
+        try {
+            if (key != null && key.isValid()) {
+                handleWrite();
+            }
+        } catch (IOException | CancelledKeyException e) {
+            // Closing anyway
+        }
+        if (tls != null) {
+            tls.close();
+        }
+        releaseReadBuffer();
+        // Before super.close(), which would drop what a session must log
+        drainQueue(outbound);
+        super.close();
+        if (carried != null) {
+            carried.release();
+            carried = null;
+        }
+        if (batch != null) {
+            batch.release();
+            unsent = null;
+        }
+        if (getCompressor() != null) {
+            getCompressor().end();
+        }
+    }
+
+    @Override
+    protected OutboundQueue<?> getOutboundQueue() {
+        return outbound;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+}
@@ -0,0 +1,298 @@
+package Hn;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Selector based server core: one acceptor thread hands new connections
+ * round-robin to a small fixed set of event loops, each multiplexing many
+ * {@link NioClientHandler}s on its own {@link Selector}.
+ */
+public class NioServerCore {
+
+    private final ChatServer server;
+    private final int port;
+    private final EventLoop[] loops;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running = false;
+
+    public NioServerCore(ChatServer server, int port, int loopCount) {
+        this.server = server;
+        this.port = port;
+        this.loops = new EventLoop[loopCount];
+    }
+
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.bind(new InetSocketAddress(port));
+        running = true;
+
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+            loops[i].start();
+        }
+
+        Thread acceptor = new Thread(this::acceptLoop, "nio-acceptor");
+        acceptor.start();
+    }
+
+    private void acceptLoop() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                if (!server.admit(channel.socket())) {
+                    continue;
+                }
+                channel.configureBlocking(false);
+                channel.socket().setKeepAlive(true);
+                channel.socket().setTcpNoDelay(true);
+
+                EventLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+
+                NioClientHandler handler;
+                try {
+                    handler = new NioClientHandler(channel, server, loop);
+                } catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+                server.clientAccepted(handler);
+                loop.register(handler);
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Error accepting client: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    public void stop() throws IOException {
+        running = false;
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+    }
+
+    /**
+     * A single selector thread. Other threads never touch its selector
+     * directly; they queue a task and wake it up. Every task and timer
+     * belongs to a connection, and whatever one throws closes that
+     * connection only, never the loop.
+     */
+    public class EventLoop extends Thread {
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Handlers that frames were queued for during this pass; loop only
+        private final List<NioClientHandler> flushAfterPass = new ArrayList<>();
+        // Tasks waiting for their time, soonest first; loop only
+        private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+
+        EventLoop(int index) throws IOException {
+            super("nio-loop-" + index);
+            this.selector = Selector.open();
+        }
+
+        void register(NioClientHandler handler) {
+            execute(handler, () -> {
+                try {
+                    SelectionKey key = handler.getChannel().register(selector, SelectionKey.OP_READ, handler);
+                    handler.setKey(key);
+                } catch (ClosedChannelException e) {
+                    handler.disconnect();
+                }
+            });
+        }
+
+        /**
+         * Flushes the handler's queue soon. On the loop itself that is at the
+         * end of the current pass, so that everything the pass queues for a
+         * connection, such as all the replies to one command, goes out in
+         * one write.
+         */
+        void scheduleWrite(NioClientHandler handler) {
+            if (Thread.currentThread() == this) {
+                flushAfterPass.add(handler);
+            } else {
+                execute(handler, () -> flush(handler));
+            }
+        }
+
+        /**
+         * Runs {@code task} for {@code handler} on this loop.
+         */
+        void execute(NioClientHandler handler, Runnable task) {
+            tasks.add(() -> runFor(handler, task));
+            selector.wakeup();
+        }
+
+        /**
+         * Runs {@code task} for {@code handler} on this loop once
+         * {@code delayNanos} have passed. Call it on the loop itself.
+         */
+        void schedule(NioClientHandler handler, Runnable task, long delayNanos) {
+            timers.add(new Timer(System.nanoTime() + delayNanos, handler, task));
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    select();
+                    runTasks();
+                    runTimers();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioClientHandler handler = (NioClientHandler) key.attachment();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        try {
+                            if (key.isReadable()) {
+                                handler.handleRead();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                handler.handleWrite();
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            handler.disconnect();
+                        } catch (RuntimeException e) {
+                            failed(handler, e);
+                        }
+                    }
+                    flushQueued();
+                } catch (IOException e) {
+                    System.err.println("Event loop error: " + e.getMessage());
+                }
+            }
+            runTasks();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                System.err.println("Error closing selector: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Waits for ready channels, tasks, or the next timer to come due.
+         */
+        private void select() throws IOException {
+            Timer next = timers.peek();
+            if (next == null) {
+                selector.select();
+                return;
+            }
+            long wait = next.due - System.nanoTime();
+            if (wait <= 0) {
+                selector.selectNow();
+            } else {
+                // Rounded up; waking early would only spin until it is due
+                selector.select((wait + 999_999) / 1_000_000);
+            }
+        }
+
+        private void runTimers() {
+            long now = System.nanoTime();
+            Timer timer;
+            while ((timer = timers.peek()) != null && timer.due - now <= 0) {
+                timers.poll();
+                runFor(timer.handler, timer.task);
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        private void flushQueued() {
+            // Flushing may queue more, e.g. a reply to a closing connection
+            for (int i = 0; i < flushAfterPass.size(); i++) {
+                flush(flushAfterPass.get(i));
+            }
+            flushAfterPass.clear();
+        }
+
+        private void flush(NioClientHandler handler) {
+            try {
+                handler.handleWrite();
+            } catch (IOException | CancelledKeyException e) {
+                handler.disconnect();
+            } catch (RuntimeException e) {
+                failed(handler, e);
+            }
+        }
+
+        private void runFor(NioClientHandler handler, Runnable task) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                failed(handler, e);
+            }
+        }
+
+        /**
+         * A bug, not an I/O error: logs it and closes the connection it came
+         * from, or at least its channel if closing it properly fails too.
+         */
+        private void failed(NioClientHandler handler, RuntimeException e) {
+            System.err.println("Closing " + handler.getUsername() + " after an error on " + getName() + ": " + e);
+            e.printStackTrace();
+            try {
+                handler.disconnect();
+            } catch (RuntimeException again) {
+                System.err.println("Error disconnecting " + handler.getUsername() + ": " + again);
+                try {
+                    handler.getChannel().close();
+                } catch (IOException ignored) {
+                    // Nothing more to do
+                }
+            }
+        }
+
+        void shutdown() {
+            selector.wakeup();
+        }
+    }
+
+    private static final class Timer implements Comparable<Timer> {
+
+        final long due;
+        final NioClientHandler handler;
+        final Runnable task;
+
+        Timer(long due, NioClientHandler handler, Runnable task) {
+            this.due = due;
+            this.handler = handler;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            // nanoTime values are only comparable by difference
+            return Long.signum(due - other.due);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package Hn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Collects the frames queued for one connection into a single pooled
+ * buffer, so that they reach the socket in one write instead of one each.
+ *
+ * <p>A writer adds frames as it takes them off the {@link OutboundQueue}
+ * until {@link #add} refuses one, then calls {@link #finish} and writes the
+ * result. The buffer is borrowed for the first frame and given back by
+ * {@link #release} once written, so an idle connection holds none. On a
+ * compressed connection every frame of the batch goes into the deflate
+ * stream before a single sync flush, which also compresses better than
+ * flushing each frame.
+ *
+ * <p>Not thread-safe; each connection's writer owns its batch.
+ */
+public final class OutboundBatch {
+
+    /** Uncompressed bytes per batch; a larger frame goes out on its own. */
+    static final int MAX_BATCH_BYTES = 16 * 1024;
+
+    private final BufferPool pool;
+    private final ServerMetrics metrics;
+    private final boolean binary;
+    private final StreamCompressor compressor;
+    private ByteBuffer buffer;
+    private int frames = 0;
+    private int rawBytes = 0;
+
+    /**
+     * @param compressor the connection's compressor, or null
+     */
+    public OutboundBatch(BufferPool pool, ServerMetrics metrics, boolean binary, StreamCompressor compressor) {
+        this.pool = pool;
+        this.metrics = metrics;
+        this.binary = binary;
+        this.compressor = compressor;
+    }
+
+    /**
+     * Adds and releases {@code frame}, unless the batch is not empty and the
+     * frame would take it over {@link #MAX_BATCH_BYTES}. A refused frame is
+     * left to the caller for the next batch.
+     */
+    public boolean add(SharedFrame frame) {
+        byte[] bytes = frame.bytes(binary);
+        if (frames > 0 && rawBytes + bytes.length > MAX_BATCH_BYTES) {
+            return false;
+        }
+        if (frame.getCreatedNanos() != 0) {
+            metrics.queueWait.recordSince(frame.getCreatedNanos());
+        }
+        if (compressor != null) {
+            if (frames == 0) {
+                compressor.clear();
+            }
+            compressor.write(frame, binary);
+        } else {
+            if (buffer == null) {
+                buffer = pool.acquire(Math.max(MAX_BATCH_BYTES, bytes.length));
+            }
+            buffer.put(bytes);
+        }
+        frame.release();
+        frames++;
+        rawBytes += bytes.length;
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return frames == 0;
+    }
+
+    /**
+     * Ends the batch and returns its bytes, ready to be written.
+     */
+    public ByteBuffer finish() {
+        if (compressor != null) {
+            compressor.flush();
+            metrics.bytesCompressed(compressor.getRawLength(), compressor.getLength());
+            buffer = pool.acquire(compressor.getLength());
+            buffer.put(compressor.output());
+        }
+        metrics.framesBatched(frames);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Gives the buffer back once its bytes have been written, and starts a
+     * new batch.
+     */
+    public void release() {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+        }
+        frames = 0;
+        rawBytes = 0;
+    }
+}
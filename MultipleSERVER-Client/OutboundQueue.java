@@ -0,0 +1,179 @@
+package Hn;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Bounded per-client queue of outgoing frames. Producers (broadcasts, PMs,
+ * command replies) only ever enqueue; the connection's writer drains it. What
+ * happens when a consumer falls behind is decided by the configured
+ * {@link SlowConsumerPolicy}.
+ */
+public class OutboundQueue<T> {
+
+    public enum SlowConsumerPolicy {
+        /** Evict the oldest queued frame to make room for the new one. */
+        DROP_OLDEST,
+        /** Discard the frame being offered. */
+        DROP_NEW,
+        /**
+         * Discard the frame being offered and ask for the client to be
+         * disconnected once the queue has stayed over the threshold for the
+         * configured time.
+         */
+        DISCONNECT
+    }
+
+    public enum OfferResult {
+        QUEUED, DROPPED, DISCONNECT
+    }
+
+    private final ArrayBlockingQueue<T> queue;
+    private final SlowConsumerPolicy policy;
+    private final int threshold;
+    private final long disconnectAfterNanos;
+    private final Consumer<? super T> onDiscard;
+
+    private volatile long overThresholdSince = 0;
+    private volatile int maxDepth = 0;
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param onDiscard called for every frame the queue drops instead of
+     *                  handing to the writer, e.g. to release shared buffers
+     */
+    public OutboundQueue(int capacity, SlowConsumerPolicy policy, int threshold,
+            long disconnectAfterMillis, Consumer<? super T> onDiscard) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+        this.threshold = Math.min(threshold, capacity);
+        this.disconnectAfterNanos = disconnectAfterMillis * 1_000_000L;
+        this.onDiscard = onDiscard;
+    }
+
+    public static OutboundQueue<SharedFrame> forFrames(ServerConfig config) {
+        return new OutboundQueue<>(config.getQueueCapacity(), config.getSlowConsumerPolicy(),
+                config.getSlowConsumerThreshold(), config.getSlowConsumerTimeoutMillis(),
+                SharedFrame::release);
+    }
+
+    public OfferResult offer(T item) {
+        boolean queued = queue.offer(item);
+        if (!queued && policy == SlowConsumerPolicy.DROP_OLDEST) {
+            // Another producer may refill the slot; one retry is enough, the
+            // frame is dropped otherwise like any other overflow
+            discard(queue.poll());
+            queued = queue.offer(item);
+        }
+        if (!queued) {
+            discard(item);
+        }
+
+        int depth = queue.size();
+        if (depth > maxDepth) {
+            maxDepth = depth;
+        }
+
+        if (depth >= threshold) {
+            long now = System.nanoTime();
+            if (overThresholdSince == 0) {
+                overThresholdSince = now;
+            } else if (policy == SlowConsumerPolicy.DISCONNECT
+                    && now - overThresholdSince >= disconnectAfterNanos) {
+                return OfferResult.DISCONNECT;
+            }
+        }
+        return queued ? OfferResult.QUEUED : OfferResult.DROPPED;
+    }
+
+    /**
+     * Enqueues regardless of the policy, evicting queued frames if needed.
+     * Used for end-of-stream markers that must not be lost.
+     */
+    public void forceOffer(T item) {
+        while (!queue.offer(item)) {
+            discard(queue.poll());
+        }
+    }
+
+    /**
+     * Lets go of everything still queued, e.g. once the connection is gone.
+     * Unlike overflow, this is not counted as dropped.
+     */
+    public void clear() {
+        T item;
+        while ((item = queue.poll()) != null) {
+            onDiscard.accept(item);
+        }
+    }
+
+    private void discard(T item) {
+        if (item != null) {
+            dropped.incrementAndGet();
+            onDiscard.accept(item);
+        }
+    }
+
+    /**
+     * Blocks until a frame is available. Used by thread-per-client writers.
+     */
+    public T take() throws InterruptedException {
+        T item = queue.take();
+        onDrained();
+        return item;
+    }
+
+    /**
+     * Waits up to {@code timeout} for a frame; null if none came.
+     */
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        T item = queue.poll(timeout, unit);
+        if (item != null) {
+            onDrained();
+        }
+        return item;
+    }
+
+    public T peek() {
+        return queue.peek();
+    }
+
+    /**
+     * Removes the head after a non-blocking writer has finished with it.
+     */
+    public T poll() {
+        T item = queue.poll();
+        if (item != null) {
+            onDrained();
+        }
+        return item;
+    }
+
+    private void onDrained() {
+        if (overThresholdSince != 0 && queue.size() < threshold) {
+            overThresholdSince = 0;
+        }
+    }
+
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    public int getDepth() {
+        return queue.size();
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public int getCapacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+}
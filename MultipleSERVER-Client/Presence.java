@@ -0,0 +1,161 @@
+package Hn;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Who is online on this node and with what status, pushed to the clients
+ * that ask for it with {@value FrameCodec#PRESENCE_HANDSHAKE}.
+ *
+ * <p>A subscriber gets the whole list once, when it connects, as a
+ * {@code USERLIST} frame (followed by {@code PRESENCE} frames if the list is
+ * long), and from then on a {@code PRESENCE} frame per {@link #flush} with
+ * only the users who joined, left or changed status since the last one.
+ * Changes are recorded as they happen, keeping each user's latest state
+ * only, so a user who goes away and comes back between two flushes costs
+ * nothing; every subscriber is sent the same frame, and the snapshot is
+ * built once per change rather than once per connect. Presence traffic
+ * follows the rate of change, not the number of users.
+ *
+ * <p>A snapshot lists {@code name} or {@code name:status} entries, and a
+ * delta {@code +name}, {@code +name:status} or {@code -name} entries,
+ * separated by commas; the status is left out while it is online. Users on
+ * other cluster nodes are not included; {@code /users} still asks for them.
+ */
+public final class Presence {
+
+    // Keeps even a long list's frames well under the frame size limit
+    static final int ENTRIES_PER_FRAME = 500;
+    private static final String ONLINE = "online";
+    // Recorded in changes for a user who left
+    private static final String OFFLINE = "";
+
+    private final ServerMetrics metrics;
+    private final int compressOnceAbove;
+    // Latest state of each user changed since the last flush
+    private final ConcurrentHashMap<String, String> changes = new ConcurrentHashMap<>();
+    private final ClientRegistry<ClientHandler> subscribers = new ClientRegistry<>();
+    // What subscribers have been told; guarded by this
+    private final TreeMap<String, String> published = new TreeMap<>();
+    // The published list as frames, or null until it is next asked for;
+    // guarded by this
+    private SharedFrame snapshot;
+
+    /**
+     * @param compressOnceAbove subscribers above which a delta is compressed
+     *        once for all compressed connections
+     */
+    Presence(ServerMetrics metrics, int compressOnceAbove) {
+        this.metrics = metrics;
+        this.compressOnceAbove = compressOnceAbove;
+    }
+
+    /** Records that {@code name} is online with {@code status}. */
+    void online(String name, ClientHandler.UserStatus status) {
+        changes.put(name, status.name().toLowerCase(Locale.ROOT));
+    }
+
+    void offline(String name) {
+        changes.put(name, OFFLINE);
+    }
+
+    /**
+     * Sends {@code client} the current list and the deltas from now on.
+     */
+    synchronized void subscribe(ClientHandler client) {
+        if (snapshot == null) {
+            snapshot = buildSnapshot();
+        }
+        client.sendFrame(snapshot.retain());
+        subscribers.add(client);
+    }
+
+    /**
+     * Sends a subscriber the current list again, e.g. after it may have
+     * missed deltas.
+     */
+    synchronized void resend(ClientHandler client) {
+        if (snapshot == null) {
+            snapshot = buildSnapshot();
+        }
+        client.sendFrame(snapshot.retain());
+    }
+
+    void unsubscribe(ClientHandler client) {
+        subscribers.remove(client);
+    }
+
+    /**
+     * Publishes what changed since the last flush to every subscriber.
+     */
+    synchronized void flush() {
+        if (changes.isEmpty()) {
+            return;
+        }
+        List<String> entries = new ArrayList<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String name = change.getKey();
+            String state = change.getValue();
+            // A newer change stays for the next flush
+            changes.remove(name, state);
+            String before = state.equals(OFFLINE) ? published.remove(name) : published.put(name, state);
+            if (state.equals(before) || (before == null && state.equals(OFFLINE))) {
+                continue;
+            }
+            entries.add(state.equals(OFFLINE) ? "-" + name : "+" + entry(name, state));
+        }
+        if (entries.isEmpty()) {
+            return;
+        }
+        if (snapshot != null) {
+            snapshot.release();
+            snapshot = null;
+        }
+        metrics.presenceDelta(entries.size());
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        SharedFrame frame = frames(FrameCodec.Type.PRESENCE, entries);
+        if (subscribers.size() > compressOnceAbove) {
+            frame.markBroadcast();
+        }
+        try {
+            subscribers.forEach(client -> client.sendFrame(frame.retain()));
+        } finally {
+            frame.release();
+        }
+    }
+
+    private SharedFrame buildSnapshot() {
+        List<String> entries = new ArrayList<>(published.size());
+        for (Map.Entry<String, String> user : published.entrySet()) {
+            entries.add(entry(user.getKey(), user.getValue()));
+        }
+        return frames(FrameCodec.Type.USERLIST, entries);
+    }
+
+    private static String entry(String name, String state) {
+        return state.equals(ONLINE) ? name : name + ":" + state;
+    }
+
+    /**
+     * The entries as one frame of {@code type}, or as a batch of them if
+     * there are many; frames after the first of a snapshot are deltas that
+     * add the rest.
+     */
+    private static SharedFrame frames(FrameCodec.Type type, List<String> entries) {
+        if (entries.size() <= ENTRIES_PER_FRAME) {
+            return SharedFrame.of(type, 0, null, String.join(",", entries));
+        }
+        List<SharedFrame> parts = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i += ENTRIES_PER_FRAME) {
+            List<String> chunk = entries.subList(i, Math.min(entries.size(), i + ENTRIES_PER_FRAME));
+            if (i == 0 || type == FrameCodec.Type.PRESENCE) {
+                parts.add(SharedFrame.of(type, 0, null, String.join(",", chunk)));
+            } else {
+                parts.add(SharedFrame.of(FrameCodec.Type.PRESENCE, 0, null, "+" + String.join(",+", chunk)));
+            }
+        }
+        return SharedFrame.batch(parts);
+    }
+}
@@ -0,0 +1,95 @@
+package Hn;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Ring of the last few frames sent to a room, replayed to whoever joins it.
+ *
+ * <p>Appending allocates nothing: the ring stores a reference to the frame
+ * that was just broadcast, already encoded, and releases the one it
+ * overwrites. Writers take a lock, so a sequence number is assigned and its
+ * slot filled before the next writer starts, and only then is the sequence
+ * made visible to readers. Readers never lock or block writers. Every slot
+ * carries the sequence of the frame in it, cleared while the slot is being
+ * replaced, so a reader can tell a stable slot from one that was overwritten
+ * under it and simply skips the latter.
+ */
+public class RecentFrames {
+
+    private final AtomicReferenceArray<SharedFrame> frames;
+    private final AtomicLongArray sequences;
+    /** Every sequence below this one is in its slot or already overwritten. */
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final Object writeLock = new Object();
+
+    public RecentFrames(int capacity) {
+        this.frames = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, -1);
+        }
+    }
+
+    /**
+     * Keeps a reference to {@code frame}; the caller's own reference is
+     * unaffected.
+     */
+    public void add(SharedFrame frame) {
+        frame.retain();
+        SharedFrame evicted;
+        synchronized (writeLock) {
+            long sequence = nextSequence.get();
+            int slot = (int) (sequence % frames.length());
+            sequences.set(slot, -1);
+            evicted = frames.getAndSet(slot, frame);
+            sequences.set(slot, sequence);
+            nextSequence.set(sequence + 1);
+        }
+        if (evicted != null) {
+            evicted.release();
+        }
+    }
+
+    /**
+     * The retained frames, oldest first. The caller owns one reference to
+     * each.
+     */
+    public List<SharedFrame> snapshot() {
+        long end = nextSequence.get();
+        long start = Math.max(0, end - frames.length());
+        List<SharedFrame> result = new ArrayList<>((int) (end - start));
+        for (long sequence = start; sequence < end; sequence++) {
+            int slot = (int) (sequence % frames.length());
+            if (sequences.get(slot) != sequence) {
+                continue;
+            }
+            SharedFrame frame = frames.get(slot);
+            if (sequences.get(slot) == sequence && frame != null && frame.tryRetain()) {
+                result.add(frame);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Releases every retained frame.
+     */
+    public void clear() {
+        synchronized (writeLock) {
+            for (int slot = 0; slot < frames.length(); slot++) {
+                sequences.set(slot, -1);
+                SharedFrame evicted = frames.getAndSet(slot, null);
+                if (evicted != null) {
+                    evicted.release();
+                }
+            }
+        }
+    }
+
+    public int getCapacity() {
+        return frames.length();
+    }
+}
@@ -0,0 +1,103 @@
+package Hn;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A chat room. Chat lines are fanned out to its members only, so the cost of
+ * a message depends on the size of the room and not on the server population.
+ * Each room has its own lock-free member registry; busy rooms never contend
+ * with each other.
+ */
+public class Room {
+
+    private final String name;
+    private final boolean permanent;
+    private final ClientRegistry<ClientHandler> members = new ClientRegistry<>();
+    // Number of members, or -1 once the room has been emptied and retired
+    private final AtomicInteger occupancy = new AtomicInteger();
+    // Null when the backlog is disabled
+    private final RecentFrames recent;
+    // Chat lines all members together may send; null for no limit
+    private final TokenBucket chatLimit;
+
+    Room(String name, boolean permanent, int backlog) {
+        this(name, permanent, backlog, null);
+    }
+
+    Room(String name, boolean permanent, int backlog, TokenBucket chatLimit) {
+        this.name = name;
+        this.permanent = permanent;
+        this.recent = backlog > 0 ? new RecentFrames(backlog) : null;
+        this.chatLimit = chatLimit;
+    }
+
+    /**
+     * Adds {@code client}, unless the room has already been retired, in
+     * which case the caller must look the room up again.
+     */
+    boolean tryJoin(ClientHandler client) {
+        int count;
+        do {
+            count = occupancy.get();
+            if (count < 0) {
+                return false;
+            }
+        } while (!occupancy.compareAndSet(count, count + 1));
+        members.add(client);
+        return true;
+    }
+
+    /**
+     * Removes {@code client}. Returns true if that retired the room.
+     */
+    boolean leave(ClientHandler client) {
+        if (!members.remove(client)) {
+            return false;
+        }
+        int remaining = occupancy.decrementAndGet();
+        if (remaining == 0 && !permanent && occupancy.compareAndSet(0, -1)) {
+            if (recent != null) {
+                recent.clear();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds a chat frame to the backlog replayed to joiners.
+     */
+    void remember(SharedFrame frame) {
+        if (recent != null) {
+            recent.add(frame);
+        }
+    }
+
+    /**
+     * The backlog, oldest first; the caller owns a reference to each frame.
+     */
+    public List<SharedFrame> getRecentFrames() {
+        return recent != null ? recent.snapshot() : new ArrayList<>();
+    }
+
+    /**
+     * The room's share of chat lines across all its members, or null if
+     * rooms are not limited.
+     */
+    TokenBucket getChatLimit() {
+        return chatLimit;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public ClientRegistry<ClientHandler> getMembers() {
+        return members;
+    }
+
+    public int getMemberCount() {
+        return Math.max(0, occupancy.get());
+    }
+}
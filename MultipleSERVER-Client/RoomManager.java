@@ -0,0 +1,89 @@
+package Hn;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Directory of rooms, sharded by name so that creating and retiring rooms in
+ * one shard never touches the others. Rooms are created on first join and
+ * retired when their last member leaves; the lobby is permanent.
+ */
+public class RoomManager {
+
+    public static final String LOBBY = "lobby";
+
+    private static final int SHARDS = 16;
+    private static final Pattern VALID_NAME = Pattern.compile("[a-z0-9_-]{1,20}");
+
+    private final List<ConcurrentHashMap<String, Room>> shards = new ArrayList<>(SHARDS);
+    private final int backlog;
+    private final double chatRate;
+    private final int chatBurst;
+
+    /**
+     * @param backlog number of recent chat lines each room replays to joiners
+     * @param chatRate chat lines per second each room takes from all its
+     *        members together, or 0 for no limit
+     * @param chatBurst chat lines a quiet room takes at once
+     */
+    public RoomManager(int backlog, double chatRate, int chatBurst) {
+        this.backlog = backlog;
+        this.chatRate = chatRate;
+        this.chatBurst = chatBurst;
+        for (int i = 0; i < SHARDS; i++) {
+            shards.add(new ConcurrentHashMap<>());
+        }
+        shardOf(LOBBY).put(LOBBY, new Room(LOBBY, true, backlog, TokenBucket.of(chatRate, chatBurst)));
+    }
+
+    private ConcurrentHashMap<String, Room> shardOf(String name) {
+        int h = name.hashCode();
+        return shards.get((h ^ (h >>> 16)) & (SHARDS - 1));
+    }
+
+    /**
+     * Normalizes a user-supplied room name, or returns null if it is invalid.
+     */
+    public static String normalize(String name) {
+        String normalized = name.trim().toLowerCase();
+        if (normalized.startsWith("#")) {
+            normalized = normalized.substring(1);
+        }
+        return VALID_NAME.matcher(normalized).matches() ? normalized : null;
+    }
+
+    /**
+     * Adds {@code client} to the named room, creating it if needed.
+     */
+    public Room join(String name, ClientHandler client) {
+        ConcurrentHashMap<String, Room> shard = shardOf(name);
+        while (true) {
+            Room room = shard.computeIfAbsent(name, n -> new Room(n, false, backlog, TokenBucket.of(chatRate, chatBurst)));
+            if (room.tryJoin(client)) {
+                return room;
+            }
+            // Retired between lookup and join; drop the stale entry and retry
+            shard.remove(name, room);
+        }
+    }
+
+    public void leave(Room room, ClientHandler client) {
+        if (room.leave(client)) {
+            shardOf(room.getName()).remove(room.getName(), room);
+        }
+    }
+
+    public Room get(String name) {
+        return shardOf(name).get(name);
+    }
+
+    public List<Room> list() {
+        List<Room> rooms = new ArrayList<>();
+        for (ConcurrentHashMap<String, Room> shard : shards) {
+            rooms.addAll(shard.values());
+        }
+        rooms.sort(Comparator.comparing(Room::getName));
+        return rooms;
+    }
+}
@@ -0,0 +1,645 @@
+package Hn;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Micro-benchmarks for server hot paths. Run with
+ * {@code java Hn.ServerBenchmark [options] [scenario...]}; with no scenarios
+ * every one runs. Each prints time and heap allocation per operation.
+ *
+ * <p>Every scenario runs in a fresh JVM of its own, started with the same
+ * class path and the {@code -X}, {@code -XX} and {@code -D} options of this
+ * one, so the JIT profile, heap and threads one scenario leaves behind cannot
+ * skew the next. A scenario builds its fixtures only when it runs.
+ * {@code --in-process} runs the selected scenarios in this JVM instead.
+ *
+ * <p>Options: {@code --warmup=N} and {@code --rounds=N} rounds of
+ * {@code --round-ms=N} each, and {@code --csv} for machine-readable output
+ * that can be diffed between commits. The header records the JVM, OS and CPU
+ * count; for stable numbers run on an otherwise idle machine with a fixed
+ * heap, e.g. {@code java -Xms1g -Xmx1g Hn.ServerBenchmark --csv}.
+ *
+ * <p>Scenarios that drive real {@link ClientHandler}s give them
+ * {@link StubSocket}s, so they exercise the server code without a network.
+ */
+public class ServerBenchmark {
+
+    private static int warmupRounds = 5;
+    private static int measuredRounds = 10;
+    private static long roundNanos = 200_000_000L;
+    private static boolean csv = false;
+    private static boolean inProcess = false;
+    // Set in forked JVMs, whose parent has already printed the header
+    private static boolean header = true;
+
+    private interface Scenario {
+        /** Runs one operation and returns something to keep it from being optimized away. */
+        long run() throws Exception;
+
+        /** Builds the fixtures, if that has not happened yet; never timed. */
+        default void setUp() throws Exception {
+        }
+    }
+
+    private static final Map<String, Scenario> scenarios = new LinkedHashMap<>();
+    // Optional extra line printed after a scenario's timings
+    private static final Map<String, java.util.function.Supplier<String>> summaries = new HashMap<>();
+    private static long sink;
+
+    /**
+     * Defers a scenario's setup until it is measured, so only the selected
+     * scenarios build their fixtures.
+     */
+    private static Scenario lazy(java.util.concurrent.Callable<Scenario> setup) {
+        return new Scenario() {
+            private Scenario scenario;
+
+            @Override
+            public void setUp() throws Exception {
+                if (scenario == null) {
+                    scenario = setup.call();
+                }
+            }
+
+            @Override
+            public long run() throws Exception {
+                setUp();
+                return scenario.run();
+            }
+        };
+    }
+
+    /**
+     * An unconnected socket that accepts and discards all output.
+     */
+    static final class StubSocket extends Socket {
+        @Override
+        public OutputStream getOutputStream() {
+            return OutputStream.nullOutputStream();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return InputStream.nullInputStream();
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return InetAddress.getLoopbackAddress();
+        }
+
+        @Override
+        public void setKeepAlive(boolean on) {
+        }
+    }
+
+    private static final ServerConfig STUB_CONFIG = ServerConfig.parse(new String[] {
+            "--journal-dir=none", "--queue-capacity=16", "--slow-policy=drop-oldest"});
+
+    /**
+     * Writes out and releases everything queued for {@code client}, the way
+     * its writer would.
+     */
+    private static long drain(ClientHandler client) throws IOException {
+        OutboundQueue<?> queue = client.getOutboundQueue();
+        long written = 0;
+        Object item;
+        while ((item = queue.poll()) != null) {
+            SharedFrame frame = (SharedFrame) item;
+            byte[] bytes = frame.bytes(false);
+            written += bytes.length;
+            frame.release();
+        }
+        return written;
+    }
+
+    private static ClientHandler stubClient(ChatServer server, String name) {
+        ClientHandler client = new ClientHandler(new StubSocket(), server);
+        server.clientAccepted(client);
+        client.onHandshake(name);
+        return client;
+    }
+
+    static {
+        String message = "[12:00] someone: " + "x".repeat(1000);
+        int recipients = 5000;
+
+        // Before: every recipient encodes the same String through its own writer
+        scenarios.put("broadcast-encode-per-recipient", lazy(() -> {
+            List<PrintWriter> writers = new ArrayList<>();
+            for (int i = 0; i < recipients; i++) {
+                writers.add(new PrintWriter(new BufferedWriter(
+                        new OutputStreamWriter(OutputStream.nullOutputStream(), StandardCharsets.UTF_8)), true));
+            }
+            return () -> {
+                for (PrintWriter writer : writers) {
+                    writer.println(message);
+                }
+                return writers.size();
+            };
+        }));
+
+        // After: encode once, each recipient writes the shared bytes
+        scenarios.put("broadcast-encode-once", lazy(() -> {
+            List<OutputStream> streams = new ArrayList<>();
+            for (int i = 0; i < recipients; i++) {
+                streams.add(new BufferedOutputStream(OutputStream.nullOutputStream()));
+            }
+            return () -> {
+                SharedFrame frame = SharedFrame.chat(1, message);
+                for (OutputStream stream : streams) {
+                    frame.retain();
+                    frame.writeTo(stream, false);
+                    stream.flush();
+                    frame.release();
+                }
+                frame.release();
+                return streams.size();
+            };
+        }));
+    }
+
+    static {
+        // Sustained journal appends of a typical chat line, with small
+        // segments so rotation and retention are part of the measurement
+        String line = "[12:00] someone: " + "x".repeat(180);
+        AtomicLong appended = new AtomicLong();
+        MessageJournal[] journal = new MessageJournal[1];
+        scenarios.put("journal-append", () -> {
+            if (journal[0] == null) {
+                Path directory = Files.createTempDirectory("journal-bench");
+                journal[0] = MessageJournal.open(directory, 4 * 1024 * 1024, 4, 50);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    journal[0].close();
+                    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                        for (Path file : files) {
+                            Files.delete(file);
+                        }
+                        Files.delete(directory);
+                    } catch (IOException e) {
+                        System.err.println("Could not remove " + directory + ": " + e.getMessage());
+                    }
+                }));
+            }
+            appended.incrementAndGet();
+            return journal[0].append(FrameCodec.Type.CHAT, "lobby", "someone", null, line);
+        });
+        summaries.put("journal-append", () -> appended.get() + " records of " + line.length()
+                + " bytes, " + (journal[0] != null ? journal[0].getSegmentCount() : 0) + " segments retained");
+    }
+
+    static {
+        // Appending to a room's backlog ring must not allocate
+        scenarios.put("backlog-append", lazy(() -> {
+            RecentFrames recent = new RecentFrames(20);
+            SharedFrame frame = SharedFrame.chat(1, "[12:00] someone: hello");
+            return () -> {
+                recent.add(frame);
+                return recent.getCapacity();
+            };
+        }));
+    }
+
+    static {
+        // Metrics recording sits on every hot path and must not allocate
+        scenarios.put("histogram-record", lazy(() -> {
+            Histogram histogram = new Histogram("bench", "ns");
+            return () -> {
+                long start = System.nanoTime();
+                histogram.recordSince(start);
+                return histogram.getMax();
+            };
+        }));
+    }
+
+    static {
+        // A chat line fanned out through ChatServer.broadcastToRoom to rooms
+        // of stub clients, each recipient's queue then drained like a writer
+        String line = "[12:00] someone: a typical chat message of about sixty characters";
+        for (int recipients : new int[] {10, 1000, 10000}) {
+            scenarios.put("broadcast-fanout-" + recipients, lazy(() -> {
+                ChatServer server = new ChatServer(STUB_CONFIG);
+                Room room = new Room("bench", false, 0);
+                List<ClientHandler> members = new ArrayList<>();
+                for (int i = 0; i < recipients; i++) {
+                    ClientHandler member = new ClientHandler(new StubSocket(), server);
+                    room.tryJoin(member);
+                    members.add(member);
+                }
+                ClientHandler sender = new ClientHandler(new StubSocket(), server);
+                return () -> {
+                    server.broadcastToRoom(room, line, sender);
+                    long written = 0;
+                    for (ClientHandler member : members) {
+                        written += drain(member);
+                    }
+                    return written;
+                };
+            }));
+        }
+
+        scenarios.put("format-message", lazy(() -> {
+            ClientHandler client = stubClient(new ChatServer(STUB_CONFIG), "alice");
+            drain(client);
+            return () -> client.formatMessage("hello there, how is everyone doing today?").length();
+        }));
+
+        scenarios.put("validate-username", lazy(() -> {
+            ClientHandler client = new ClientHandler(new StubSocket(), new ChatServer(STUB_CONFIG));
+            return () -> client.validateUsername("Some User!name_with*junk").length();
+        }));
+
+        // Command parsing and dispatch, including the replies it queues
+        scenarios.put("command-info", lazy(() -> {
+            ClientHandler client = stubClient(new ChatServer(STUB_CONFIG), "alice");
+            drain(client);
+            return () -> {
+                client.onLine("/info");
+                return drain(client);
+            };
+        }));
+
+        scenarios.put("command-private-message", lazy(() -> {
+            ChatServer server = new ChatServer(STUB_CONFIG);
+            ClientHandler alice = stubClient(server, "alice");
+            ClientHandler bob = stubClient(server, "bob");
+            drain(alice);
+            drain(bob);
+            return () -> {
+                alice.onLine("/msg bob are you there?");
+                return drain(alice) + drain(bob);
+            };
+        }));
+
+        // Name lookups against 10,000 registered users, hits and misses
+        scenarios.put("username-lookup-10000", lazy(() -> {
+            ChatServer server = new ChatServer(STUB_CONFIG);
+            String[] names = new String[10000];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = "user" + i;
+                server.reserveUsername(names[i], new ClientHandler(server, null));
+            }
+            int[] next = new int[1];
+            return () -> {
+                int i = next[0]++ % names.length;
+                return (server.getLocalUser(names[i]) != null ? 1 : 0)
+                        + (server.getLocalUser("missing" + (i & 7)) != null ? 1 : 0);
+            };
+        }));
+
+        // Owner lookup for a name on a 16-node ring
+        scenarios.put("hash-ring-owner-16", lazy(() -> {
+            List<String> nodes = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                nodes.add("node-" + (5000 + i));
+            }
+            HashRing ring = HashRing.of(nodes);
+            String[] names = new String[1024];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = "user" + i;
+            }
+            int[] next = new int[1];
+            return () -> ring.ownerOf(names[next[0]++ & (names.length - 1)]).length();
+        }));
+        summaries.put("hash-ring-owner-16", ServerBenchmark::ringBalance);
+    }
+
+    /**
+     * Chat lines as a room sees them: a few dozen speakers, timestamps and
+     * ordinary words, generated from a fixed seed so runs compare.
+     */
+    private static List<String> sampleChat(int count) {
+        String[] words = ("the a to and is it you that of in for on have this what no yes ok lol well "
+                + "think know just like so about was be can we get will now here there meeting deploy build "
+                + "server client message works broken again later tomorrow thanks sure maybe").split(" ");
+        Random random = new Random(42);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "[%02d:%02d] user%d:",
+                    12 + i / 600, i / 10 % 60, random.nextInt(40)));
+            for (int w = 3 + random.nextInt(12); w > 0; w--) {
+                line.append(' ').append(words[random.nextInt(words.length)]);
+            }
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+
+    private static String compressionSummary(long[] bytes) {
+        return String.format(Locale.ROOT, "%.1f raw B -> %.1f wire B per op (ratio %.2f)",
+                (double) bytes[0] / Math.max(1, bytes[2]), (double) bytes[1] / Math.max(1, bytes[2]),
+                (double) bytes[1] / Math.max(1, bytes[0]));
+    }
+
+    static {
+        // What compression costs and saves per connection: one chat line at a
+        // time through a persistent deflate stream, and a 500-user /users
+        // reply, at the fastest level and the default one. The replies cycle
+        // through different users so the stream cannot just repeat the last.
+        for (int level : new int[] {1, 6}) {
+            long[] chatBytes = new long[3];
+            scenarios.put("deflate-stream-chat-l" + level, lazy(() -> {
+                List<SharedFrame> chat = new ArrayList<>();
+                for (String line : sampleChat(512)) {
+                    chat.add(SharedFrame.chat(0, line));
+                }
+                StreamCompressor compressor = new StreamCompressor(level);
+                return () -> {
+                    compressor.clear();
+                    compressor.write(chat.get((int) (chatBytes[2]++ & 511)), false);
+                    compressor.flush();
+                    chatBytes[0] += compressor.getRawLength();
+                    chatBytes[1] += compressor.getLength();
+                    return compressor.getLength();
+                };
+            }));
+            summaries.put("deflate-stream-chat-l" + level, () -> compressionSummary(chatBytes));
+
+            long[] usersBytes = new long[3];
+            scenarios.put("deflate-users-list-l" + level, lazy(() -> {
+                List<List<SharedFrame>> userLists = new ArrayList<>();
+                for (int list = 0; list < 8; list++) {
+                    List<SharedFrame> users = new ArrayList<>();
+                    users.add(SharedFrame.system("Online users (500):"));
+                    for (int i = 0; i < 500; i++) {
+                        users.add(SharedFrame.system("- user" + (list * 500 + i) + " ("
+                                + ClientHandler.UserStatus.values()[(list + i) % 3] + ")"));
+                    }
+                    userLists.add(users);
+                }
+                StreamCompressor compressor = new StreamCompressor(level);
+                return () -> {
+                    compressor.clear();
+                    for (SharedFrame line : userLists.get((int) (usersBytes[2] & 7))) {
+                        compressor.write(line, false);
+                    }
+                    compressor.flush();
+                    usersBytes[0] += compressor.getRawLength();
+                    usersBytes[1] += compressor.getLength();
+                    usersBytes[2]++;
+                    return compressor.getLength();
+                };
+            }));
+            summaries.put("deflate-users-list-l" + level, () -> compressionSummary(usersBytes));
+        }
+
+        // A chat line broadcast to 100 compressed connections: compressed
+        // once and spliced into each stream, against in each stream
+        for (boolean shared : new boolean[] {true, false}) {
+            String name = "deflate-broadcast-" + (shared ? "shared" : "per-recipient") + "-100";
+            long[] bytes = new long[3];
+            scenarios.put(name, lazy(() -> {
+                List<StreamCompressor> recipients = new ArrayList<>();
+                for (int i = 0; i < 100; i++) {
+                    recipients.add(new StreamCompressor(6));
+                }
+                List<String> lines = sampleChat(512);
+                return () -> {
+                    SharedFrame frame = SharedFrame.chat(0, lines.get((int) (bytes[2] & 511)));
+                    if (shared) {
+                        frame.markBroadcast();
+                    }
+                    for (StreamCompressor compressor : recipients) {
+                        compressor.clear();
+                        compressor.write(frame, false);
+                        compressor.flush();
+                        bytes[0] += compressor.getRawLength();
+                        bytes[1] += compressor.getLength();
+                    }
+                    frame.release();
+                    bytes[2] += recipients.size();
+                    return bytes[1];
+                };
+            }));
+            summaries.put(name, () -> compressionSummary(bytes) + " per recipient");
+        }
+    }
+
+    /**
+     * Replays one burst of bytes forever and reports the rest of the current
+     * burst as available, the way a socket reports what has arrived.
+     */
+    private static final class BurstStream extends InputStream {
+        private final byte[] burst;
+        private int position = 0;
+
+        BurstStream(byte[] burst) {
+            this.burst = burst;
+        }
+
+        @Override
+        public int read() {
+            if (position == burst.length) {
+                position = 0;
+            }
+            return burst[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position == burst.length) {
+                position = 0;
+            }
+            int count = Math.min(len, burst.length - position);
+            System.arraycopy(burst, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return burst.length - position;
+        }
+    }
+
+    static {
+        // Reading chat lines on a blocking connection: the long-lived
+        // BufferedReader the threaded transport used to keep, against an
+        // InboundReader that borrows a pooled buffer for each burst of 32
+        byte[] burst = (String.join("\n", sampleChat(32)) + "\n").getBytes(StandardCharsets.UTF_8);
+        scenarios.put("read-lines-buffered-reader", lazy(() -> {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new BurstStream(burst),
+                    StandardCharsets.UTF_8));
+            return () -> reader.readLine().length();
+        }));
+        BufferPool pool = new BufferPool("benchmark", false, 1 << 20, 4096);
+        scenarios.put("read-lines-pooled", lazy(() -> {
+            InboundReader reader = new InboundReader(new BurstStream(burst), pool, 4096);
+            return () -> reader.readLine().length();
+        }));
+        summaries.put("read-lines-pooled", () -> String.format(Locale.ROOT,
+                "pool hits %d, misses %d; nothing held between bursts", pool.getHits(), pool.getMisses()));
+    }
+
+    /**
+     * How evenly 100,000 names spread over the 16-node ring, and how many
+     * change owner when a 17th node joins (ideally 1/17).
+     */
+    private static String ringBalance() {
+        List<String> nodes = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            nodes.add("node-" + (5000 + i));
+        }
+        HashRing ring = HashRing.of(nodes);
+        HashRing grown = ring.with("node-5016");
+        Map<String, Integer> counts = new HashMap<>();
+        int moved = 0;
+        int names = 100_000;
+        for (int i = 0; i < names; i++) {
+            String owner = ring.ownerOf("user" + i);
+            counts.merge(owner, 1, Integer::sum);
+            if (!owner.equals(grown.ownerOf("user" + i))) {
+                moved++;
+            }
+        }
+        return String.format(Locale.ROOT, "names per node min %d max %d (ideal %d); adding a node moves %.1f%% (ideal %.1f%%)",
+                Collections.min(counts.values()), Collections.max(counts.values()), names / 16,
+                moved * 100.0 / names, 100.0 / 17);
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> selected = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--csv")) {
+                csv = true;
+            } else if (arg.startsWith("--warmup=")) {
+                warmupRounds = Integer.parseInt(arg.substring(9));
+            } else if (arg.startsWith("--rounds=")) {
+                measuredRounds = Math.max(1, Integer.parseInt(arg.substring(9)));
+            } else if (arg.startsWith("--round-ms=")) {
+                roundNanos = Long.parseLong(arg.substring(11)) * 1_000_000L;
+            } else if (arg.equals("--in-process")) {
+                inProcess = true;
+            } else if (arg.equals("--no-header")) {
+                header = false;
+            } else {
+                selected.add(arg);
+            }
+        }
+        if (selected.isEmpty()) {
+            selected.addAll(scenarios.keySet());
+        }
+        if (header) {
+            printHeader();
+        }
+
+        int failed = 0;
+        for (String name : selected) {
+            Scenario scenario = scenarios.get(name);
+            if (scenario == null) {
+                System.err.println("Unknown scenario: " + name + " (known: " + scenarios.keySet() + ")");
+                failed++;
+            } else if (!inProcess) {
+                failed += fork(name);
+            } else {
+                measure(name, scenario);
+                if (!csv && summaries.containsKey(name)) {
+                    System.out.println("    " + summaries.get(name).get());
+                }
+            }
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static void printHeader() {
+        String environment = String.format("java %s (%s), %s %s, %d cpus, max heap %d MB",
+                System.getProperty("java.version"), System.getProperty("java.vm.name"),
+                System.getProperty("os.name"), System.getProperty("os.arch"),
+                Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory() >> 20);
+        if (csv) {
+            System.out.println("# " + environment);
+            System.out.println("scenario,ns_per_op_median,ns_per_op_min,ns_per_op_max,bytes_per_op");
+        } else {
+            System.out.println(environment);
+        }
+    }
+
+    /**
+     * Runs one scenario in a JVM of its own and waits for it. Returns 1 if
+     * that JVM failed, 0 otherwise.
+     */
+    private static int fork(String name) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        for (String option : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            // Heap, GC and property settings; not agents, which may hold a port
+            if (option.startsWith("-X") || option.startsWith("-D")) {
+                command.add(option);
+            }
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ServerBenchmark.class.getName());
+        command.add("--in-process");
+        command.add("--no-header");
+        command.add("--warmup=" + warmupRounds);
+        command.add("--rounds=" + measuredRounds);
+        command.add("--round-ms=" + roundNanos / 1_000_000L);
+        if (csv) {
+            command.add("--csv");
+        }
+        command.add(name);
+
+        System.out.flush();
+        int status = new ProcessBuilder(command).inheritIO().start().waitFor();
+        if (status != 0) {
+            System.err.println("Scenario " + name + " failed with exit status " + status);
+            return 1;
+        }
+        return 0;
+    }
+
+    private static void measure(String name, Scenario scenario) throws Exception {
+        scenario.setUp();
+        for (int i = 0; i < warmupRounds; i++) {
+            runRound(scenario);
+        }
+        double[] nanosPerOp = new double[measuredRounds];
+        double bytesPerOp = 0;
+        for (int i = 0; i < measuredRounds; i++) {
+            double[] round = runRound(scenario);
+            nanosPerOp[i] = round[0];
+            bytesPerOp += round[1] / measuredRounds;
+        }
+        Arrays.sort(nanosPerOp);
+        String format = csv ? "%s,%.1f,%.1f,%.1f,%.1f%n" : "%-40s %12.1f ns/op (min %.1f, max %.1f) %12.1f B/op%n";
+        System.out.printf(Locale.ROOT, format, name, nanosPerOp[measuredRounds / 2], nanosPerOp[0],
+                nanosPerOp[measuredRounds - 1], bytesPerOp);
+    }
+
+    /**
+     * Runs the scenario for one round and returns {ns/op, bytes allocated/op}.
+     */
+    private static double[] runRound(Scenario scenario) throws Exception {
+        long ops = 0;
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long deadline = start + roundNanos;
+        long now;
+        do {
+            sink += scenario.run();
+            ops++;
+        } while ((now = System.nanoTime()) < deadline);
+        long allocated = allocatedBytes() - allocatedBefore;
+        return new double[]{(double) (now - start) / ops, (double) allocated / ops};
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,429 @@
+package Hn;
+
+import java.util.*;
+
+/**
+ * Startup options for {@link ChatServer}, parsed from {@code --key=value}
+ * command line flags.
+ */
+public class ServerConfig {
+
+    public enum IoMode {
+        THREADED, VIRTUAL, NIO
+    }
+
+    private int port = 5000;
+    private IoMode ioMode = IoMode.THREADED;
+    private int eventLoops = Runtime.getRuntime().availableProcessors();
+    private int queueCapacity = 256;
+    private OutboundQueue.SlowConsumerPolicy slowConsumerPolicy = OutboundQueue.SlowConsumerPolicy.DISCONNECT;
+    private int slowConsumerThreshold = 192;
+    private long slowConsumerTimeoutMillis = 5000;
+    private boolean headless = false;
+    private boolean quiet = false;
+    private int statsIntervalSeconds = 0;
+    private int maxClients = 0;
+    private int logLines = 5000;
+    private int backlog = 20;
+    private String adminToken;
+    private String journalDir = "journal";
+    private int journalSegmentBytes = 16 * 1024 * 1024;
+    private int journalSegments = 8;
+    private long journalFlushMillis = 50;
+    private int historyScanBytes = 4 * 1024 * 1024;
+    private String nodeId;
+    private int clusterPort = 0;
+    private List<String> peers = Collections.emptyList();
+    private int compressionLevel = 6;
+    private String tlsKeystore;
+    private String tlsPassword;
+    private int writeLingerMicros = 500;
+    private double chatRate = 20;
+    private int chatBurst = 40;
+    private double pmRate = 10;
+    private int pmBurst = 20;
+    private double statusRate = 2;
+    private int statusBurst = 5;
+    private double roomChatRate = 0;
+    private int roomChatBurst = 200;
+    private int presenceIntervalMillis = 250;
+    private int sessionGraceSeconds = 30;
+    private int sessionFrames = 1000;
+
+    public static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            // Bare switches such as --headless mean --headless=true
+            String[] parts = arg.contains("=") ? arg.substring(2).split("=", 2)
+                    : new String[] {arg.substring(2), "true"};
+            config.set(parts[0], parts[1]);
+        }
+        return config;
+    }
+
+    private void set(String key, String value) {
+        switch (key) {
+            case "port":
+                port = Integer.parseInt(value);
+                break;
+            case "io":
+                ioMode = IoMode.valueOf(value.toUpperCase());
+                break;
+            case "loops":
+                eventLoops = Math.max(1, Integer.parseInt(value));
+                break;
+            case "queue-capacity":
+                queueCapacity = Math.max(1, Integer.parseInt(value));
+                break;
+            case "slow-policy":
+                slowConsumerPolicy = OutboundQueue.SlowConsumerPolicy.valueOf(value.toUpperCase().replace('-', '_'));
+                break;
+            case "slow-threshold":
+                slowConsumerThreshold = Math.max(1, Integer.parseInt(value));
+                break;
+            case "slow-timeout-ms":
+                slowConsumerTimeoutMillis = Long.parseLong(value);
+                break;
+            case "headless":
+                headless = Boolean.parseBoolean(value);
+                break;
+            case "quiet":
+                quiet = Boolean.parseBoolean(value);
+                break;
+            case "stats-interval":
+                statsIntervalSeconds = Math.max(0, Integer.parseInt(value));
+                break;
+            case "max-clients":
+                maxClients = Math.max(0, Integer.parseInt(value));
+                break;
+            case "admin-token":
+                adminToken = value;
+                break;
+            case "backlog":
+                backlog = Math.max(0, Integer.parseInt(value));
+                break;
+            case "log-lines":
+                logLines = Math.max(1, Integer.parseInt(value));
+                break;
+            case "journal-dir":
+                journalDir = value.isEmpty() || value.equals("none") ? null : value;
+                break;
+            case "journal-segment-mb":
+                journalSegmentBytes = Math.max(1, Integer.parseInt(value)) * 1024 * 1024;
+                break;
+            case "journal-segments":
+                journalSegments = Math.max(1, Integer.parseInt(value));
+                break;
+            case "journal-flush-ms":
+                journalFlushMillis = Math.max(1, Long.parseLong(value));
+                break;
+            case "history-scan-mb":
+                historyScanBytes = Math.max(1, Integer.parseInt(value)) * 1024 * 1024;
+                break;
+            case "node-id":
+                nodeId = value;
+                break;
+            case "cluster-port":
+                clusterPort = Math.max(0, Integer.parseInt(value));
+                break;
+            case "peers":
+                peers = new ArrayList<>();
+                for (String peer : value.split(",")) {
+                    if (!peer.trim().isEmpty()) {
+                        peers.add(peer.trim());
+                    }
+                }
+                break;
+            case "tls-keystore":
+                tlsKeystore = value.isEmpty() ? null : value;
+                break;
+            case "tls-password":
+                tlsPassword = value;
+                break;
+            case "write-linger-us":
+                writeLingerMicros = Math.max(0, Integer.parseInt(value));
+                break;
+            case "chat-rate":
+                chatRate = Double.parseDouble(value);
+                break;
+            case "chat-burst":
+                chatBurst = Math.max(1, Integer.parseInt(value));
+                break;
+            case "pm-rate":
+                pmRate = Double.parseDouble(value);
+                break;
+            case "pm-burst":
+                pmBurst = Math.max(1, Integer.parseInt(value));
+                break;
+            case "status-rate":
+                statusRate = Double.parseDouble(value);
+                break;
+            case "status-burst":
+                statusBurst = Math.max(1, Integer.parseInt(value));
+                break;
+            case "room-rate":
+                roomChatRate = Double.parseDouble(value);
+                break;
+            case "room-burst":
+                roomChatBurst = Math.max(1, Integer.parseInt(value));
+                break;
+            case "presence-ms":
+                presenceIntervalMillis = Math.max(0, Integer.parseInt(value));
+                break;
+            case "session-grace-s":
+                sessionGraceSeconds = Math.max(0, Integer.parseInt(value));
+                break;
+            case "session-frames":
+                sessionFrames = Math.max(1, Integer.parseInt(value));
+                break;
+            case "compression-level":
+                compressionLevel = Math.max(0, Math.min(9, Integer.parseInt(value)));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: --" + key);
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public IoMode getIoMode() {
+        return ioMode;
+    }
+
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public OutboundQueue.SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    public int getSlowConsumerThreshold() {
+        return slowConsumerThreshold;
+    }
+
+    public long getSlowConsumerTimeoutMillis() {
+        return slowConsumerTimeoutMillis;
+    }
+
+    public boolean isHeadless() {
+        return headless;
+    }
+
+    /**
+     * Whether headless mode suppresses per-event log lines.
+     */
+    public boolean isQuiet() {
+        return quiet;
+    }
+
+    /**
+     * Seconds between headless statistics lines, or 0 for none.
+     */
+    public int getStatsIntervalSeconds() {
+        return statsIntervalSeconds;
+    }
+
+    /**
+     * Maximum concurrent connections, or 0 for no limit.
+     */
+    public int getMaxClients() {
+        return maxClients;
+    }
+
+    /**
+     * The token a client gives with /admin to run admin commands such as
+     * /metrics, which clients on the server's own host may run without it.
+     * Taken from the {@code CHAT_ADMIN_TOKEN} environment variable when not
+     * given; null if neither is set, in which case only local clients are
+     * administrators.
+     */
+    public String getAdminToken() {
+        String token = adminToken != null ? adminToken : System.getenv("CHAT_ADMIN_TOKEN");
+        return token != null && !token.isEmpty() ? token : null;
+    }
+
+    /**
+     * Number of recent chat lines each room replays to joiners, or 0 for none.
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * Number of log lines the control panel retains.
+     */
+    public int getLogLines() {
+        return logLines;
+    }
+
+    /**
+     * Directory of the message journal, or null if journaling is disabled
+     * ({@code --journal-dir=none}).
+     */
+    public String getJournalDir() {
+        return journalDir;
+    }
+
+    public int getJournalSegmentBytes() {
+        return journalSegmentBytes;
+    }
+
+    /**
+     * Number of journal segments retained; older ones are deleted.
+     */
+    public int getJournalSegments() {
+        return journalSegments;
+    }
+
+    public long getJournalFlushMillis() {
+        return journalFlushMillis;
+    }
+
+    /**
+     * How much of the newest journal /history looks through for the
+     * caller's room; older lines are not found.
+     */
+    public int getHistoryScanBytes() {
+        return historyScanBytes;
+    }
+
+    /**
+     * This node's name in a cluster; defaults to {@code node-<port>}.
+     */
+    public String getNodeId() {
+        return nodeId != null ? nodeId : "node-" + port;
+    }
+
+    /**
+     * Port for links to other cluster nodes, or 0 to run standalone.
+     */
+    public int getClusterPort() {
+        return clusterPort;
+    }
+
+    /**
+     * Cluster ports of other nodes to join, as {@code host:port}. One live
+     * node is enough; the rest are discovered through it.
+     */
+    public List<String> getPeers() {
+        return peers;
+    }
+
+    /**
+     * Deflate level for clients that ask for compression, from 1 (fastest)
+     * to 9 (smallest), or 0 to refuse compression.
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * How long a blocking writer holds a batch open for more frames while its
+     * client's own line is still being handled, e.g. the replies to
+     * {@code /help}. Bounds the delay coalescing adds; 0 writes what is
+     * queued at once.
+     */
+    public int getWriteLingerMicros() {
+        return writeLingerMicros;
+    }
+
+    /**
+     * Chat lines per second one connection may send, or 0 for no limit.
+     * Beyond that the server stops reading from the connection until the
+     * lines are due, so a client pasting a file is slowed down rather than
+     * fanned out to the room at full speed.
+     */
+    public double getChatRate() {
+        return chatRate;
+    }
+
+    /** Chat lines a connection that has been quiet may send at once. */
+    public int getChatBurst() {
+        return chatBurst;
+    }
+
+    /** Private messages per second one connection may send, or 0 for no limit. */
+    public double getPmRate() {
+        return pmRate;
+    }
+
+    public int getPmBurst() {
+        return pmBurst;
+    }
+
+    /**
+     * Commands per second that announce something to other users
+     * ({@code /away}, {@code /back}, {@code /status}, {@code /nick},
+     * {@code /join}, {@code /part}) one connection may send, or 0 for no limit.
+     */
+    public double getStatusRate() {
+        return statusRate;
+    }
+
+    public int getStatusBurst() {
+        return statusBurst;
+    }
+
+    /**
+     * Chat lines per second one room takes from all its members together, or
+     * 0 (the default) for no limit.
+     */
+    public double getRoomChatRate() {
+        return roomChatRate;
+    }
+
+    public int getRoomChatBurst() {
+        return roomChatBurst;
+    }
+
+    /**
+     * How often user list changes are pushed to clients that keep a list,
+     * coalesced, or 0 to push none; such clients then get no list either.
+     */
+    public int getPresenceIntervalMillis() {
+        return presenceIntervalMillis;
+    }
+
+    /**
+     * How long a dropped client's session waits to be resumed before the
+     * user is logged out, or 0 to log users out as soon as they drop.
+     */
+    public int getSessionGraceSeconds() {
+        return sessionGraceSeconds;
+    }
+
+    /**
+     * Frames each session keeps for a client to resume from; a client that
+     * was sent more while it was away is told how many it missed.
+     */
+    public int getSessionFrames() {
+        return sessionFrames;
+    }
+
+    /**
+     * PKCS#12 keystore with the server's certificate and key, or null to
+     * accept clients without TLS.
+     */
+    public String getTlsKeystore() {
+        return tlsKeystore;
+    }
+
+    /**
+     * The keystore password; taken from the {@code CHAT_TLS_PASSWORD}
+     * environment variable when not given, to keep it off the command line.
+     */
+    public char[] getTlsPassword() {
+        String password = tlsPassword != null ? tlsPassword : System.getenv("CHAT_TLS_PASSWORD");
+        return password != null ? password.toCharArray() : new char[0];
+    }
+}
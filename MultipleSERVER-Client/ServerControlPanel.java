@@ -0,0 +1,487 @@
+package Hn;
+
+import javax.swing.*;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+import java.awt.*;
+import java.awt.event.*;
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The Swing control panel. It observes a {@link ChatServer} like any other
+ * {@link ServerListener}; the server runs the same with or without it.
+ *
+ * <p>Server threads never touch Swing directly. Log lines go into a bounded
+ * {@link LogRingBuffer} and client or statistics changes only set a flag; a
+ * Swing timer flushes all of it to the view at most
+ * {@value #REFRESH_INTERVAL_MS} ms apart, however busy the server is.
+ */
+public class ServerControlPanel extends JFrame implements ServerListener {
+
+    private static final int REFRESH_INTERVAL_MS = 100;
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+    private final ChatServer server;
+    private final LogRingBuffer logBuffer;
+    // Sequence of the next log line the view has not shown yet (EDT only)
+    private long logCursor;
+    private final AtomicBoolean clientsDirty = new AtomicBoolean();
+    private final AtomicBoolean statisticsDirty = new AtomicBoolean();
+
+    private JTextArea logArea;
+    private JTextArea clientListArea;
+    private JLabel statusLabel;
+    private JLabel clientCountLabel;
+    private JLabel uptimeLabel;
+    private JLabel versionLabel;
+    private JTextArea statsArea;
+
+    public ServerControlPanel(ChatServer server) {
+        this.server = server;
+        this.logBuffer = new LogRingBuffer(server.getConfig().getLogLines());
+        initializeGUI();
+        server.addListener(this);
+    }
+
+    private void initializeGUI() {
+        setTitle("Chat Server v" + server.getServerVersion());
+        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        setSize(1000, 700);
+        setLocationRelativeTo(null);
+
+        // Set look and feel
+        try {
+            UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        // Main panel
+        JPanel mainPanel = new JPanel(new BorderLayout(10, 10));
+        mainPanel.setBorder(BorderFactory.createEmptyBorder(15, 15, 15, 15));
+        mainPanel.setBackground(new Color(240, 242, 245));
+
+        // Header panel
+        JPanel headerPanel = new JPanel(new BorderLayout());
+        headerPanel.setBackground(new Color(59, 130, 246));
+        headerPanel.setBorder(BorderFactory.createEmptyBorder(15, 20, 15, 20));
+
+        JLabel titleLabel = new JLabel("Chat Server Control Panel");
+        titleLabel.setFont(new Font("Segoe UI", Font.BOLD, 24));
+        titleLabel.setForeground(Color.WHITE);
+        headerPanel.add(titleLabel, BorderLayout.WEST);
+
+        JPanel statusPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 15, 0));
+        statusPanel.setOpaque(false);
+
+        versionLabel = new JLabel("v" + server.getServerVersion());
+        versionLabel.setFont(new Font("Segoe UI", Font.PLAIN, 12));
+        versionLabel.setForeground(new Color(220, 220, 220));
+
+        uptimeLabel = new JLabel("Uptime: 00:00:00");
+        uptimeLabel.setFont(new Font("Segoe UI", Font.PLAIN, 12));
+        uptimeLabel.setForeground(new Color(220, 220, 220));
+
+        statusLabel = new JLabel("STOPPED");
+        statusLabel.setFont(new Font("Segoe UI", Font.BOLD, 14));
+        statusLabel.setForeground(new Color(255, 200, 200));
+
+        statusPanel.add(versionLabel);
+        statusPanel.add(uptimeLabel);
+        statusPanel.add(statusLabel);
+        headerPanel.add(statusPanel, BorderLayout.EAST);
+
+        mainPanel.add(headerPanel, BorderLayout.NORTH);
+
+        // Center panel with tabs
+        JTabbedPane tabbedPane = new JTabbedPane();
+        tabbedPane.setFont(new Font("Segoe UI", Font.BOLD, 13));
+        tabbedPane.setBackground(new Color(248, 250, 252));
+        tabbedPane.setForeground(new Color(59, 130, 246));
+
+        tabbedPane.addTab("📝 SERVER LOGS", createLogsPanel());
+        tabbedPane.addTab("👥 CONNECTED CLIENTS", createClientsPanel());
+        tabbedPane.addTab("📊 STATISTICS", createStatisticsPanel());
+
+        mainPanel.add(tabbedPane, BorderLayout.CENTER);
+        mainPanel.add(createControlPanel(), BorderLayout.SOUTH);
+
+        add(mainPanel);
+        setVisible(true);
+
+        // Start uptime timer
+        Timer uptimeTimer = new Timer(1000, e -> updateUptime());
+        uptimeTimer.start();
+
+        Timer refreshTimer = new Timer(REFRESH_INTERVAL_MS, e -> refresh());
+        refreshTimer.start();
+    }
+
+    private JPanel createLogsPanel() {
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.setBackground(Color.WHITE);
+        panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+
+        logArea = new JTextArea();
+        logArea.setEditable(false);
+        logArea.setFont(new Font("Consolas", Font.PLAIN, 13));
+        logArea.setBackground(new Color(255, 255, 255));
+        logArea.setForeground(new Color(50, 50, 50));
+        logArea.setMargin(new Insets(10, 10, 10, 10));
+
+        JScrollPane scrollPane = new JScrollPane(logArea);
+        scrollPane.setBorder(BorderFactory.createLineBorder(new Color(226, 232, 240), 2));
+        scrollPane.getVerticalScrollBar().setBackground(new Color(248, 250, 252));
+        panel.add(scrollPane, BorderLayout.CENTER);
+
+        return panel;
+    }
+
+    private JPanel createClientsPanel() {
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.setBackground(Color.WHITE);
+        panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+
+        JPanel headerPanel = new JPanel(new BorderLayout());
+        headerPanel.setBackground(new Color(248, 250, 252));
+        headerPanel.setBorder(BorderFactory.createEmptyBorder(15, 15, 15, 15));
+
+        JLabel clientsLabel = new JLabel("CONNECTED CLIENTS");
+        clientsLabel.setFont(new Font("Segoe UI", Font.BOLD, 16));
+        clientsLabel.setForeground(new Color(59, 130, 246));
+        headerPanel.add(clientsLabel, BorderLayout.WEST);
+
+        clientCountLabel = new JLabel("0");
+        clientCountLabel.setFont(new Font("Segoe UI", Font.BOLD, 18));
+        clientCountLabel.setForeground(new Color(34, 197, 94));
+        headerPanel.add(clientCountLabel, BorderLayout.EAST);
+
+        panel.add(headerPanel, BorderLayout.NORTH);
+
+        clientListArea = new JTextArea();
+        clientListArea.setEditable(false);
+        clientListArea.setFont(new Font("Segoe UI", Font.PLAIN, 13));
+        clientListArea.setBackground(Color.WHITE);
+        clientListArea.setForeground(new Color(50, 50, 50));
+        clientListArea.setMargin(new Insets(10, 10, 10, 10));
+
+        JScrollPane scrollPane = new JScrollPane(clientListArea);
+        scrollPane.setBorder(BorderFactory.createLineBorder(new Color(226, 232, 240), 1));
+        scrollPane.getVerticalScrollBar().setBackground(new Color(248, 250, 252));
+        panel.add(scrollPane, BorderLayout.CENTER);
+
+        return panel;
+    }
+
+    private JPanel createStatisticsPanel() {
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.setBackground(Color.WHITE);
+        panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+
+        statsArea = new JTextArea();
+        statsArea.setEditable(false);
+        statsArea.setFont(new Font("Consolas", Font.PLAIN, 13));
+        statsArea.setBackground(Color.WHITE);
+        statsArea.setForeground(new Color(50, 50, 50));
+        statsArea.setMargin(new Insets(10, 10, 10, 10));
+
+        JScrollPane scrollPane = new JScrollPane(statsArea);
+        scrollPane.setBorder(BorderFactory.createLineBorder(new Color(226, 232, 240), 2));
+        scrollPane.getVerticalScrollBar().setBackground(new Color(248, 250, 252));
+        panel.add(scrollPane, BorderLayout.CENTER);
+
+        return panel;
+    }
+
+    private JPanel createControlPanel() {
+        JPanel panel = new JPanel(new FlowLayout(FlowLayout.CENTER, 20, 15));
+        panel.setBackground(new Color(248, 250, 252));
+        panel.setBorder(BorderFactory.createEmptyBorder(15, 15, 15, 15));
+
+        JButton startButton = createStyledButton("▶ START SERVER", new Color(34, 197, 94));
+        JButton stopButton = createStyledButton("■ STOP SERVER", new Color(239, 68, 68));
+        JButton clearButton = createStyledButton("🗑 CLEAR LOGS", new Color(100, 150, 220));
+        JButton kickButton = createStyledButton("👢 KICK USER", new Color(245, 158, 11));
+        JButton saveButton = createStyledButton("💾 SAVE LOGS", new Color(139, 92, 246));
+
+        startButton.addActionListener(e -> startServer());
+        stopButton.addActionListener(e -> server.stop());
+        clearButton.addActionListener(e -> clearLogs());
+        kickButton.addActionListener(e -> showKickDialog());
+        saveButton.addActionListener(e -> saveLogs());
+
+        panel.add(startButton);
+        panel.add(stopButton);
+        panel.add(clearButton);
+        panel.add(kickButton);
+        panel.add(saveButton);
+
+        return panel;
+    }
+
+    private JButton createStyledButton(String text, Color bgColor) {
+        // Create a custom button that forces text to be visible
+        JButton button = new JButton(text) {
+            @Override
+            protected void paintComponent(Graphics g) {
+                // Always paint background first
+                Graphics2D g2d = (Graphics2D) g;
+                g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+                // Paint background
+                if (getModel().isPressed()) {
+                    g2d.setColor(bgColor.darker());
+                } else if (getModel().isRollover()) {
+                    g2d.setColor(new Color(
+                            Math.min(255, bgColor.getRed() + 30),
+                            Math.min(255, bgColor.getGreen() + 30),
+                            Math.min(255, bgColor.getBlue() + 30)
+                    ));
+                } else {
+                    g2d.setColor(bgColor);
+                }
+                g2d.fillRect(0, 0, getWidth(), getHeight());
+
+                // Paint border
+                g2d.setColor(bgColor.darker().darker());
+                g2d.setStroke(new BasicStroke(2));
+                g2d.drawRect(1, 1, getWidth() - 3, getHeight() - 3);
+
+                // Now paint the text
+                super.paintComponent(g);
+            }
+
+            @Override
+            public void paint(Graphics g) {
+                super.paint(g);
+                // Force all components to repaint
+                paintComponents(g);
+            }
+        };
+
+        button.setFont(new Font("Segoe UI", Font.BOLD, 13));
+        button.setForeground(Color.WHITE); // ALWAYS white text
+        button.setBackground(bgColor);
+        button.setBorder(BorderFactory.createEmptyBorder(15, 30, 15, 30));
+        button.setFocusPainted(false);
+        button.setCursor(new Cursor(Cursor.HAND_CURSOR));
+
+        // CRITICAL: Make button fully opaque
+        button.setOpaque(true);
+        button.setContentAreaFilled(false); // We paint our own background
+
+        // Remove any UI defaults
+        button.setUI(new javax.swing.plaf.basic.BasicButtonUI());
+
+        // Add mouse listener for hover effects
+        button.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseEntered(MouseEvent e) {
+                button.setForeground(Color.WHITE);
+                button.repaint();
+            }
+
+            @Override
+            public void mouseExited(MouseEvent e) {
+                button.setForeground(Color.WHITE);
+                button.repaint();
+            }
+
+            @Override
+            public void mousePressed(MouseEvent e) {
+                button.setForeground(Color.WHITE);
+                button.repaint();
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                button.setForeground(Color.WHITE);
+                button.repaint();
+            }
+        });
+
+        return button;
+    }
+
+    private void startServer() {
+        try {
+            server.start();
+        } catch (IOException e) {
+            onLog("Failed to start server: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void onStateChanged(boolean running) {
+        SwingUtilities.invokeLater(() -> {
+            if (running) {
+                statusLabel.setText("RUNNING");
+                statusLabel.setForeground(new Color(200, 255, 200));
+            } else {
+                statusLabel.setText("STOPPED");
+                statusLabel.setForeground(new Color(255, 200, 200));
+            }
+        });
+    }
+
+    @Override
+    public void onClientsChanged() {
+        clientsDirty.set(true);
+    }
+
+    @Override
+    public void onStatisticsChanged() {
+        statisticsDirty.set(true);
+    }
+
+    private void refresh() {
+        flushLog();
+        if (clientsDirty.getAndSet(false)) {
+            updateClientList();
+        }
+        if (statisticsDirty.getAndSet(false)) {
+            updateStatistics();
+        }
+    }
+
+    /**
+     * Appends everything logged since the last flush in one edit, then trims
+     * the oldest lines so the view never holds more than the buffer does.
+     */
+    private void flushLog() {
+        List<String> batch = new ArrayList<>();
+        logCursor = logBuffer.drainTo(logCursor, batch);
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (String line : batch) {
+            sb.append(line).append('\n');
+        }
+        if (batch.size() >= logBuffer.getCapacity()) {
+            logArea.setText(sb.toString());
+        } else {
+            logArea.append(sb.toString());
+            // The text ends with a newline, so the last "line" is empty
+            int excess = logArea.getLineCount() - 1 - logBuffer.getCapacity();
+            if (excess > 0) {
+                try {
+                    logArea.getDocument().remove(0, logArea.getLineStartOffset(excess));
+                } catch (BadLocationException e) {
+                    logArea.setText(sb.toString());
+                }
+            }
+        }
+        logArea.setCaretPosition(logArea.getDocument().getLength());
+    }
+
+    private void clearLogs() {
+        logBuffer.clear();
+        logCursor = logBuffer.getSequence();
+        logArea.setText("");
+    }
+
+    private void updateClientList() {
+        StringBuilder sb = new StringBuilder();
+        List<ClientHandler> snapshot = server.getConnectedUsers();
+        for (ClientHandler client : snapshot) {
+            Room room = client.getRoom();
+            sb.append("• ").append(client.getUsername())
+                    .append(" - ").append(client.getStatus())
+                    .append(room != null ? " in #" + room.getName() : "")
+                    .append("  [queue ").append(client.getQueueDepth())
+                    .append(", max ").append(client.getMaxQueueDepth())
+                    .append(", dropped ").append(client.getDroppedMessages())
+                    .append("]\n");
+        }
+        clientListArea.setText(sb.toString());
+        clientCountLabel.setText(String.valueOf(snapshot.size()));
+    }
+
+    private void updateStatistics() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Server Statistics\n");
+        sb.append("=================\n\n");
+        sb.append("Version: ").append(server.getServerVersion()).append("\n");
+        sb.append("Uptime: ").append(server.getUptime()).append("\n");
+        sb.append("I/O mode: ").append(server.getConfig().getIoMode()).append("\n");
+        sb.append("Current connections: ").append(server.getOnlineCount()).append("\n");
+        sb.append("Peak connections: ").append(server.getPeakConnections()).append("\n");
+        sb.append("Total connections: ").append(server.getTotalUsers()).append("\n");
+        sb.append("Total messages: ").append(server.getTotalMessages()).append("\n");
+        sb.append("Handler thread utilization: ").append(server.getUtilizationReport())
+                .append("\n\n");
+
+        sb.append("Message Statistics\n");
+        sb.append("==================\n");
+        server.getMessageStats().entrySet().stream()
+                .sorted((a, b) -> Long.compare(b.getValue().sum(), a.getValue().sum()))
+                .limit(10)
+                .forEach(entry -> sb.append(entry.getKey()).append(": ")
+                .append(entry.getValue().sum()).append(" messages\n"));
+
+        statsArea.setText(sb.toString());
+    }
+
+    private void updateUptime() {
+        uptimeLabel.setText("Uptime: " + server.getUptime());
+    }
+
+    @Override
+    public void onLog(String message) {
+        logBuffer.add("[" + LocalTime.now().format(TIME_FORMAT) + "] " + message);
+    }
+
+    private void showKickDialog() {
+        List<ClientHandler> snapshot = server.getConnectedUsers();
+        if (snapshot.isEmpty()) {
+            JOptionPane.showMessageDialog(this,
+                    "No users connected.",
+                    "Kick User",
+                    JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+
+        String[] userArray = new String[snapshot.size()];
+        for (int i = 0; i < snapshot.size(); i++) {
+            userArray[i] = snapshot.get(i).getUsername();
+        }
+
+        String selectedUser = (String) JOptionPane.showInputDialog(
+                this,
+                "Select user to kick:",
+                "Kick User",
+                JOptionPane.QUESTION_MESSAGE,
+                null,
+                userArray,
+                userArray[0]);
+
+        if (selectedUser != null) {
+            server.kick(selectedUser);
+        }
+    }
+
+    private void saveLogs() {
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setSelectedFile(new File("server_log_"
+                + new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date()) + ".txt"));
+
+        if (fileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+            try (PrintWriter writer = new PrintWriter(fileChooser.getSelectedFile())) {
+                for (String line : logBuffer.snapshot()) {
+                    writer.println(line);
+                }
+                onLog("Logs saved to: " + fileChooser.getSelectedFile().getPath());
+            } catch (IOException e) {
+                onLog("Error saving logs: " + e.getMessage());
+            }
+        }
+    }
+}
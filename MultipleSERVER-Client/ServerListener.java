@@ -0,0 +1,21 @@
+package Hn;
+
+/**
+ * Observer of a {@link ChatServer}. Callbacks arrive on whichever server
+ * thread caused the event, so implementations must be cheap and must hand
+ * any GUI work off to their own thread.
+ */
+public interface ServerListener {
+
+    default void onLog(String message) {
+    }
+
+    default void onClientsChanged() {
+    }
+
+    default void onStatisticsChanged() {
+    }
+
+    default void onStateChanged(boolean running) {
+    }
+}
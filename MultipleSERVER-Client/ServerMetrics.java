@@ -0,0 +1,448 @@
+package Hn;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import javax.management.*;
+
+/**
+ * Server-wide counters, gauges and latency histograms.
+ *
+ * <p>Counters are {@link LongAdder}s and the histograms are striped too, so
+ * handler threads recording at the same time do not contend, and nothing on
+ * the recording path allocates. Readers sum the stripes, which may be a
+ * moment stale under load but is never torn or lost.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+    static final String OBJECT_NAME = "Hn:type=ChatServer,name=Metrics";
+
+    /** The limit that held a throttled line back. */
+    enum Throttle {
+        CHAT, PM, STATUS, ROOM
+    }
+
+    private final IntSupplier online;
+    private final BufferPool[] bufferPools;
+    private final LongAdder totalConnections = new LongAdder();
+    private final LongAdder totalMessages = new LongAdder();
+    private final LongAdder droppedFrames = new LongAdder();
+    private final LongAdder clusterRelayed = new LongAdder();
+    private final LongAdder clusterReceived = new LongAdder();
+    private final LongAdder clusterDuplicates = new LongAdder();
+    private final LongAdder clusterClaimTimeouts = new LongAdder();
+    private final LongAdder compressedRawBytes = new LongAdder();
+    private final LongAdder compressedWireBytes = new LongAdder();
+    private final LongAdder tlsFullHandshakes = new LongAdder();
+    private final LongAdder tlsResumedHandshakes = new LongAdder();
+    private final LongAdder socketWrites = new LongAdder();
+    private final LongAdder framesWritten = new LongAdder();
+    private final LongAdder presenceDeltas = new LongAdder();
+    private final LongAdder presenceEntries = new LongAdder();
+    private final LongAdder sessionsResumed = new LongAdder();
+    private final LongAdder sessionsExpired = new LongAdder();
+    private final LongAdder framesReplayed = new LongAdder();
+    private final LongAdder framesMissed = new LongAdder();
+    private final LongAdder[] throttled = new LongAdder[Throttle.values().length];
+    private final LongAccumulator peakConnections = new LongAccumulator(Math::max, 0);
+
+    /** Time to hand one frame to every recipient's queue. */
+    final Histogram broadcastFanOut = new Histogram("broadcast-fanout", "ns");
+    /** Time to write one batch of frames to one recipient's socket. */
+    final Histogram recipientWrite = new Histogram("recipient-write", "ns");
+    /** Frames coalesced into one write. */
+    final Histogram writeBatch = new Histogram("write-batch", "");
+    /** Time from a frame's creation until a recipient's writer picks it up. */
+    final Histogram queueWait = new Histogram("queue-wait", "ns");
+    /** Size of incoming chat lines. */
+    final Histogram messageSize = new Histogram("message-size", "B");
+    /** Time to claim a username from the cluster node that owns it. */
+    final Histogram clusterClaim = new Histogram("cluster-claim", "ns");
+    /** Time from accepting a TLS connection until its handshake is done. */
+    final Histogram tlsHandshake = new Histogram("tls-handshake", "ns");
+    /** Time a throttled line waited, with its connection not being read. */
+    final Histogram throttleWait = new Histogram("throttle-wait", "ns");
+
+    private ObjectName registeredAs;
+
+    /**
+     * @param online supplies the current number of connections
+     * @param bufferPools the pools whose use is reported
+     */
+    public ServerMetrics(IntSupplier online, BufferPool... bufferPools) {
+        this.online = online;
+        this.bufferPools = bufferPools;
+        for (int i = 0; i < throttled.length; i++) {
+            throttled[i] = new LongAdder();
+        }
+    }
+
+    void connectionAccepted() {
+        totalConnections.increment();
+    }
+
+    void clientOnline() {
+        peakConnections.accumulate(online.getAsInt());
+    }
+
+    void messageBroadcast() {
+        totalMessages.increment();
+    }
+
+    void frameDropped() {
+        droppedFrames.increment();
+    }
+
+    /** One message queued to one peer node. */
+    void clusterRelayed() {
+        clusterRelayed.increment();
+    }
+
+    void clusterReceived() {
+        clusterReceived.increment();
+    }
+
+    void clusterDuplicate() {
+        clusterDuplicates.increment();
+    }
+
+    void clusterClaimTimedOut() {
+        clusterClaimTimeouts.increment();
+    }
+
+    /**
+     * Counts {@code raw} bytes sent to a compressed connection as
+     * {@code wire} bytes.
+     */
+    void bytesCompressed(long raw, long wire) {
+        compressedRawBytes.add(raw);
+        compressedWireBytes.add(wire);
+    }
+
+    void tlsHandshake(long nanos, boolean resumed) {
+        (resumed ? tlsResumedHandshakes : tlsFullHandshakes).increment();
+        tlsHandshake.record(nanos);
+    }
+
+    /**
+     * Records the UTF-8 size of an incoming chat line without encoding it.
+     */
+    void messageReceived(String text) {
+        long bytes = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        messageSize.record(bytes);
+    }
+
+    /**
+     * Registers the MBean with the platform MBean server. Failures are
+     * returned rather than thrown; metrics work the same without JMX.
+     */
+    synchronized String register() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            registeredAs = name;
+            return null;
+        } catch (JMException e) {
+            return e.getMessage();
+        }
+    }
+
+    synchronized void unregister() {
+        if (registeredAs != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredAs);
+            } catch (JMException e) {
+                // Already gone
+            }
+            registeredAs = null;
+        }
+    }
+
+    @Override
+    public int getOnlineConnections() {
+        return online.getAsInt();
+    }
+
+    @Override
+    public int getPeakConnections() {
+        return (int) peakConnections.get();
+    }
+
+    @Override
+    public long getTotalConnections() {
+        return totalConnections.sum();
+    }
+
+    @Override
+    public long getTotalMessages() {
+        return totalMessages.sum();
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return droppedFrames.sum();
+    }
+
+    @Override
+    public long getClusterRelayed() {
+        return clusterRelayed.sum();
+    }
+
+    @Override
+    public long getClusterReceived() {
+        return clusterReceived.sum();
+    }
+
+    @Override
+    public long getClusterDuplicates() {
+        return clusterDuplicates.sum();
+    }
+
+    @Override
+    public long getClusterClaimTimeouts() {
+        return clusterClaimTimeouts.sum();
+    }
+
+    @Override
+    public long getCompressedRawBytes() {
+        return compressedRawBytes.sum();
+    }
+
+    @Override
+    public long getCompressedWireBytes() {
+        return compressedWireBytes.sum();
+    }
+
+    @Override
+    public long getTlsFullHandshakes() {
+        return tlsFullHandshakes.sum();
+    }
+
+    @Override
+    public long getTlsResumedHandshakes() {
+        return tlsResumedHandshakes.sum();
+    }
+
+    /**
+     * Counts one write call on a client socket; each is one system call,
+     * give or take a short write.
+     */
+    void socketWrite() {
+        socketWrites.increment();
+    }
+
+    void framesBatched(int frames) {
+        framesWritten.add(frames);
+        writeBatch.record(frames);
+    }
+
+    @Override
+    public long getSocketWrites() {
+        return socketWrites.sum();
+    }
+
+    @Override
+    public long getFramesWritten() {
+        return framesWritten.sum();
+    }
+
+    /**
+     * Counts one published presence delta of {@code entries} users, however
+     * many subscribers it went to.
+     */
+    void presenceDelta(int entries) {
+        presenceDeltas.increment();
+        presenceEntries.add(entries);
+    }
+
+    @Override
+    public long getPresenceDeltas() {
+        return presenceDeltas.sum();
+    }
+
+    @Override
+    public long getPresenceEntries() {
+        return presenceEntries.sum();
+    }
+
+    /**
+     * Counts a session resumed by a new connection, which was sent
+     * {@code replayed} frames it had not seen and missed {@code missed} that
+     * were no longer kept.
+     */
+    void sessionResumed(int replayed, long missed) {
+        sessionsResumed.increment();
+        framesReplayed.add(replayed);
+        framesMissed.add(missed);
+    }
+
+    void sessionExpired() {
+        sessionsExpired.increment();
+    }
+
+    @Override
+    public long getSessionsResumed() {
+        return sessionsResumed.sum();
+    }
+
+    @Override
+    public long getSessionsExpired() {
+        return sessionsExpired.sum();
+    }
+
+    @Override
+    public long getFramesReplayed() {
+        return framesReplayed.sum();
+    }
+
+    @Override
+    public long getFramesMissed() {
+        return framesMissed.sum();
+    }
+
+    /**
+     * Counts a line held back for {@code waitNanos} by a rate limit.
+     */
+    void throttled(Throttle cause, long waitNanos) {
+        throttled[cause.ordinal()].increment();
+        throttleWait.record(waitNanos);
+    }
+
+    long getThrottled(Throttle cause) {
+        return throttled[cause.ordinal()].sum();
+    }
+
+    @Override
+    public long getThrottledLines() {
+        return Arrays.stream(throttled).mapToLong(LongAdder::sum).sum();
+    }
+
+    @Override
+    public long getBufferPoolHits() {
+        return Arrays.stream(bufferPools).mapToLong(BufferPool::getHits).sum();
+    }
+
+    @Override
+    public long getBufferPoolMisses() {
+        return Arrays.stream(bufferPools).mapToLong(BufferPool::getMisses).sum();
+    }
+
+    @Override
+    public long getBufferPoolBorrowedBytes() {
+        return Arrays.stream(bufferPools).mapToLong(BufferPool::getBorrowedBytes).sum();
+    }
+
+    @Override
+    public long getBufferPoolIdleBytes() {
+        return Arrays.stream(bufferPools).mapToLong(BufferPool::getIdleBytes).sum();
+    }
+
+    @Override
+    public double getTlsHandshakeP99Micros() {
+        return tlsHandshake.getPercentile(99) / 1e3;
+    }
+
+    @Override
+    public double getThrottleWaitP99Micros() {
+        return throttleWait.getPercentile(99) / 1e3;
+    }
+
+    @Override
+    public double getBroadcastFanOutP99Micros() {
+        return broadcastFanOut.getPercentile(99) / 1e3;
+    }
+
+    @Override
+    public double getRecipientWriteP99Micros() {
+        return recipientWrite.getPercentile(99) / 1e3;
+    }
+
+    @Override
+    public double getQueueWaitP99Micros() {
+        return queueWait.getPercentile(99) / 1e3;
+    }
+
+    @Override
+    public double getClusterClaimP99Micros() {
+        return clusterClaim.getPercentile(99) / 1e3;
+    }
+
+    @Override
+    public double getMessageSizeP99Bytes() {
+        return messageSize.getPercentile(99);
+    }
+
+    @Override
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("connections online=").append(getOnlineConnections())
+                .append(" peak=").append(getPeakConnections())
+                .append(" total=").append(getTotalConnections()).append('\n');
+        sb.append("messages total=").append(getTotalMessages())
+                .append(" dropped-frames=").append(getDroppedFrames())
+                .append(" live-frames=").append(SharedFrame.getLiveFrames()).append('\n');
+        sb.append("cluster relayed=").append(getClusterRelayed())
+                .append(" received=").append(getClusterReceived())
+                .append(" duplicates=").append(getClusterDuplicates())
+                .append(" claim-timeouts=").append(getClusterClaimTimeouts()).append('\n');
+        long raw = getCompressedRawBytes();
+        sb.append("compression raw-bytes=").append(raw)
+                .append(" wire-bytes=").append(getCompressedWireBytes())
+                .append(" ratio=").append(raw > 0 ? String.format(Locale.ROOT, "%.2f",
+                        (double) getCompressedWireBytes() / raw) : "-").append('\n');
+        sb.append("tls handshakes full=").append(getTlsFullHandshakes())
+                .append(" resumed=").append(getTlsResumedHandshakes()).append('\n');
+        long frames = getFramesWritten();
+        sb.append("writes syscalls=").append(getSocketWrites())
+                .append(" frames=").append(frames)
+                .append(" syscalls-per-frame=").append(frames > 0 ? String.format(Locale.ROOT, "%.3f",
+                        (double) getSocketWrites() / frames) : "-").append('\n');
+        sb.append("presence deltas=").append(getPresenceDeltas())
+                .append(" entries=").append(getPresenceEntries()).append('\n');
+        sb.append("sessions resumed=").append(getSessionsResumed())
+                .append(" expired=").append(getSessionsExpired())
+                .append(" replayed=").append(getFramesReplayed())
+                .append(" missed=").append(getFramesMissed()).append('\n');
+        sb.append("throttled");
+        for (Throttle cause : Throttle.values()) {
+            sb.append(' ').append(cause.name().toLowerCase(Locale.ROOT)).append('=').append(getThrottled(cause));
+        }
+        sb.append('\n');
+        for (BufferPool pool : bufferPools) {
+            long requests = pool.getHits() + pool.getMisses();
+            sb.append("buffers ").append(pool.getName())
+                    .append(" hits=").append(pool.getHits())
+                    .append(" misses=").append(pool.getMisses())
+                    .append(" hit-rate=").append(requests > 0 ? String.format(Locale.ROOT, "%.3f",
+                            (double) pool.getHits() / requests) : "-")
+                    .append(" borrowed=").append(pool.getBorrowed())
+                    .append(" borrowed-kb=").append(pool.getBorrowedBytes() / 1024)
+                    .append(" idle-kb=").append(pool.getIdleBytes() / 1024).append('\n');
+        }
+        for (Histogram histogram : new Histogram[] {broadcastFanOut, recipientWrite, writeBatch, queueWait,
+                messageSize, clusterClaim, tlsHandshake, throttleWait}) {
+            sb.append(histogram.summary()).append('\n');
+        }
+        return sb.toString();
+    }
+}
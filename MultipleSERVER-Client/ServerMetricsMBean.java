@@ -0,0 +1,100 @@
+package Hn;
+
+/**
+ * JMX view of {@link ServerMetrics}, registered as
+ * {@value ServerMetrics#OBJECT_NAME} while the server runs. Latencies are in
+ * microseconds.
+ */
+public interface ServerMetricsMBean {
+
+    int getOnlineConnections();
+
+    int getPeakConnections();
+
+    long getTotalConnections();
+
+    long getTotalMessages();
+
+    long getDroppedFrames();
+
+    /** Messages queued to peer nodes, counted once per peer. */
+    long getClusterRelayed();
+
+    long getClusterReceived();
+
+    /** Messages from peer nodes dropped as already seen. */
+    long getClusterDuplicates();
+
+    /** Username claims whose owner node did not answer in time. */
+    long getClusterClaimTimeouts();
+
+    /** Bytes sent to compressed connections, before compression. */
+    long getCompressedRawBytes();
+
+    /** The same bytes as they went on the wire. */
+    long getCompressedWireBytes();
+
+    /** TLS handshakes that created a new session. */
+    long getTlsFullHandshakes();
+
+    /** TLS handshakes that resumed a cached session. */
+    long getTlsResumedHandshakes();
+
+    double getTlsHandshakeP99Micros();
+
+    /** Write calls on client sockets, about one system call each. */
+    long getSocketWrites();
+
+    /** Frames written to client sockets, however many writes that took. */
+    long getFramesWritten();
+
+    /** User list deltas published, each sent to every subscribed client. */
+    long getPresenceDeltas();
+
+    /** Users listed in those deltas. */
+    long getPresenceEntries();
+
+    /** Sessions taken over by a reconnecting client within the grace period. */
+    long getSessionsResumed();
+
+    /** Sessions that ended because their client did not come back in time. */
+    long getSessionsExpired();
+
+    /** Frames sent again to resuming clients. */
+    long getFramesReplayed();
+
+    /** Frames resuming clients missed because they were no longer kept. */
+    long getFramesMissed();
+
+    /** Lines held back by a chat, private message, status or room rate limit. */
+    long getThrottledLines();
+
+    /** Buffer requests served from a pool's free list. */
+    long getBufferPoolHits();
+
+    /** Buffer requests that had to allocate. */
+    long getBufferPoolMisses();
+
+    /** Bytes of pooled buffers that connections hold right now. */
+    long getBufferPoolBorrowedBytes();
+
+    /** Bytes of pooled buffers waiting to be reused. */
+    long getBufferPoolIdleBytes();
+
+    double getThrottleWaitP99Micros();
+
+    double getBroadcastFanOutP99Micros();
+
+    double getRecipientWriteP99Micros();
+
+    double getQueueWaitP99Micros();
+
+    double getMessageSizeP99Bytes();
+
+    double getClusterClaimP99Micros();
+
+    /**
+     * Every counter, gauge and histogram, one per line.
+     */
+    String report();
+}
@@ -0,0 +1,630 @@
+package Hn;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Correctness checks for server behaviour that is hard to see from a client,
+ * such as races between threads. Run with
+ * {@code java Hn.ServerSelfTest [check...]}; with no checks every one runs.
+ * Prints a line per check and exits with 1 if any failed, so it can gate a
+ * build or a commit.
+ *
+ * <p>Like {@link ServerBenchmark}, checks drive real {@link ClientHandler}s
+ * on {@link ServerBenchmark.StubSocket}s, without a network; checks of what
+ * goes over the wire run a server on a free loopback port. Every thread and
+ * server a check starts is stopped before it returns.
+ */
+public class ServerSelfTest {
+
+    private interface Check {
+        /** Returns a short summary, or throws {@link AssertionError}. */
+        String run() throws Exception;
+    }
+
+    private static final Map<String, Check> checks = new LinkedHashMap<>();
+
+    private static void verify(boolean condition, String failure) {
+        if (!condition) {
+            throw new AssertionError(failure);
+        }
+    }
+
+    /**
+     * Stops {@code threads} through {@code stop} and waits for them, failing
+     * if any is still running after a few seconds.
+     */
+    private static void stopAll(AtomicBoolean stop, List<Thread> threads) throws InterruptedException {
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join(5000);
+            verify(!thread.isAlive(), thread.getName() + " did not stop");
+        }
+    }
+
+    static {
+        // Broadcasts through a ClientRegistry of real handlers while other
+        // threads keep joining, leaving and disconnecting handlers. Members
+        // that stay must get every broadcast exactly once and in order; a
+        // handler must never hold a frame once disconnect() has returned; the
+        // registry must end up with exactly the members that stayed; and no
+        // frame may be left unreleased.
+        checks.put("registry-broadcast-under-churn", () -> {
+            ChatServer server = new ChatServer(ServerConfig.parse(new String[] {
+                    "--journal-dir=none", "--quiet", "--queue-capacity=64", "--slow-policy=drop-new"}));
+            long liveBefore = SharedFrame.getLiveFrames();
+            ClientRegistry<ClientHandler> registry = new ClientRegistry<>();
+            List<ClientHandler> members = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                ClientHandler member = new ClientHandler(new ServerBenchmark.StubSocket(), server);
+                registry.add(member);
+                members.add(member);
+            }
+
+            AtomicBoolean stop = new AtomicBoolean();
+            AtomicLong churned = new AtomicLong();
+            AtomicReference<String> churnFailure = new AtomicReference<>();
+            // The most recent departures, checked once everything has stopped
+            Deque<ClientHandler> departed = new ArrayDeque<>();
+            List<Thread> churners = new ArrayList<>();
+            for (int t = 0; t < 2; t++) {
+                Thread churner = new Thread(() -> {
+                    while (!stop.get() && churnFailure.get() == null) {
+                        ClientHandler joiner = new ClientHandler(new ServerBenchmark.StubSocket(), server);
+                        registry.add(joiner);
+                        Thread.yield();
+                        if (!registry.remove(joiner)) {
+                            churnFailure.set("a joiner was missing from the registry");
+                        }
+                        // Broadcasters may still hold a snapshot with it in
+                        joiner.disconnect();
+                        synchronized (departed) {
+                            departed.addLast(joiner);
+                            if (departed.size() > 4000) {
+                                departed.removeFirst();
+                            }
+                        }
+                        churned.incrementAndGet();
+                    }
+                }, "self-test-churn-" + t);
+                churners.add(churner);
+            }
+
+            int broadcasts = 20000;
+            try {
+                churners.forEach(Thread::start);
+                for (int round = 0; round < broadcasts && churnFailure.get() == null; round++) {
+                    SharedFrame frame = SharedFrame.system("broadcast " + round);
+                    try {
+                        registry.forEach(client -> client.sendFrame(frame.retain()));
+                    } finally {
+                        frame.release();
+                    }
+                    for (ClientHandler member : members) {
+                        SharedFrame received = (SharedFrame) member.getOutboundQueue().poll();
+                        verify(received != null, "a member missed broadcast " + round);
+                        verify(received.getText().equals("broadcast " + round),
+                                "a member got " + received.getText() + " instead of broadcast " + round);
+                        received.release();
+                        verify(member.getOutboundQueue().isEmpty(), "a member got broadcast " + round + " twice");
+                    }
+                }
+            } finally {
+                stopAll(stop, churners);
+            }
+            verify(churnFailure.get() == null, churnFailure.get());
+            verify(churned.get() > 0, "the churn threads never ran");
+            for (ClientHandler joiner : departed) {
+                verify(joiner.getQueueDepth() == 0, "a frame was left queued after disconnect() returned");
+            }
+
+            verify(registry.size() == members.size(), "registry size " + registry.size()
+                    + " after churn, expected " + members.size());
+            Set<ClientHandler> left = Collections.newSetFromMap(new IdentityHashMap<>());
+            left.addAll(registry.snapshot());
+            verify(left.size() == members.size() && left.containsAll(members),
+                    "the registry does not hold exactly the members that stayed");
+            for (ClientHandler member : members) {
+                verify(registry.remove(member), "a member could not be removed");
+                member.disconnect();
+            }
+            verify(registry.isEmpty(), "registry not empty after removing every member");
+            verify(SharedFrame.getLiveFrames() == liveBefore,
+                    (SharedFrame.getLiveFrames() - liveBefore) + " frames never released");
+            return broadcasts + " broadcasts to " + members.size() + " members, "
+                    + churned.get() + " joins+leaves";
+        });
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    /**
+     * A text-protocol client on a plain socket, logged in as {@code name}.
+     */
+    private static Socket textClient(int port, String name) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setSoTimeout(5000);
+        socket.getOutputStream().write((name + "\n").getBytes(StandardCharsets.UTF_8));
+        return socket;
+    }
+
+    /**
+     * Waits until the server closes {@code socket}, discarding what it sends
+     * until then; false if it is still open after a few seconds.
+     */
+    private static boolean closedByServer(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        byte[] discard = new byte[8192];
+        try {
+            while (in.read(discard) >= 0) {
+                // Welcome lines and the like
+            }
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (SocketException e) {
+            // Reset by the server
+            return true;
+        }
+    }
+
+    static {
+        // A line longer than a binary recipient can read must never reach
+        // one: every transport drops the sender over it, as a text line or a
+        // TEXT frame, while the longest line allowed still reaches binary
+        // recipients with its timestamp and name around it, and lines that
+        // only grow too long once decoded are refused.
+        checks.put("oversized-line-to-binary-recipient", () -> {
+            StringBuilder summary = new StringBuilder();
+            for (String io : new String[] {"threaded", "nio", "virtual"}) {
+                int port = freePort();
+                ChatServer server = new ChatServer(ServerConfig.parse(new String[] {
+                        "--port=" + port, "--io=" + io, "--journal-dir=none", "--quiet", "--headless",
+                        "--chat-rate=0"}));
+                server.start();
+                ChatConnection bob = null;
+                Thread listener = null;
+                try {
+                    bob = ChatConnection.open("127.0.0.1", port, "bob", new ChatConnection.Options().binary(true));
+                    BlockingQueue<String> received = new LinkedBlockingQueue<>();
+                    AtomicReference<Exception> bobFailure = new AtomicReference<>();
+                    ChatConnection connection = bob;
+                    listener = new Thread(() -> {
+                        try {
+                            connection.listen(new ChatConnection.Listener() {
+                                @Override
+                                public void onFrame(FrameCodec.Frame frame) {
+                                    received.add(frame.text);
+                                }
+                            });
+                        } catch (IOException e) {
+                            if (!connection.isClosed()) {
+                                bobFailure.set(e);
+                            }
+                        }
+                    }, "self-test-bob");
+                    listener.start();
+
+                    try (Socket carol = textClient(port, "carol");
+                            Socket alice = textClient(port, "alice");
+                            Socket dave = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                        dave.setSoTimeout(5000);
+                        dave.getOutputStream().write((FrameCodec.BINARY_HANDSHAKE + " dave\n")
+                                .getBytes(StandardCharsets.UTF_8));
+                        Thread.sleep(300);
+
+                        // The longest line allowed goes through
+                        String longest = "x".repeat(FrameCodec.MAX_LINE_LENGTH);
+                        carol.getOutputStream().write((longest + "\n").getBytes(StandardCharsets.UTF_8));
+                        String line;
+                        do {
+                            line = received.poll(5, TimeUnit.SECONDS);
+                            verify(line != null, io + ": the longest line allowed never reached bob");
+                        } while (!line.endsWith(longest));
+
+                        // One byte over, as a text line and as a TEXT frame
+                        alice.getOutputStream().write(("y".repeat(65530) + "\n").getBytes(StandardCharsets.UTF_8));
+                        verify(closedByServer(alice), io + ": a text client sending an over-long line was kept");
+                        dave.getOutputStream().write(FrameCodec.encode(FrameCodec.Type.TEXT, 0, null,
+                                "z".repeat(FrameCodec.MAX_LINE_LENGTH + 1)));
+                        verify(closedByServer(dave), io + ": a binary client sending an over-long frame was kept");
+
+                        // Short in bytes, too long once each byte decodes to U+FFFD
+                        byte[] invalid = new byte[30000];
+                        Arrays.fill(invalid, (byte) 0xFF);
+                        carol.getOutputStream().write(invalid);
+                        carol.getOutputStream().write("\nstill here\n".getBytes(StandardCharsets.UTF_8));
+                        do {
+                            line = received.poll(5, TimeUnit.SECONDS);
+                            verify(line != null, io + ": bob stopped receiving after an over-long line");
+                            verify(line.indexOf('y') < 0 && line.indexOf('z') < 0 && line.indexOf('\uFFFD') < 0,
+                                    io + ": an over-long line reached bob");
+                        } while (!line.endsWith("carol: still here"));
+                    }
+                    verify(bobFailure.get() == null, io + ": bob failed: " + bobFailure.get());
+                    verify(!bob.isClosed(), io + ": bob was disconnected");
+                    summary.append(summary.length() > 0 ? ", " : "").append(io).append(" ok");
+                } finally {
+                    if (bob != null) {
+                        bob.close();
+                    }
+                    if (listener != null) {
+                        listener.join(5000);
+                    }
+                    server.stop();
+                }
+                verify(!listener.isAlive(), io + ": bob's listener did not stop");
+            }
+            return summary.toString();
+        });
+    }
+
+    /**
+     * Reads lines from {@code connection} into {@code received} on a thread
+     * of its own, which ends when the connection closes.
+     */
+    private static Thread listenInto(ChatConnection connection, BlockingQueue<String> received, String name) {
+        Thread listener = new Thread(() -> {
+            try {
+                connection.listen(new ChatConnection.Listener() {
+                    @Override
+                    public void onFrame(FrameCodec.Frame frame) {
+                        received.add(frame.text);
+                    }
+
+                    @Override
+                    public void onLine(String line) {
+                        received.add(line);
+                    }
+                });
+            } catch (IOException e) {
+                // Closed by the check
+            }
+        }, name);
+        listener.setDaemon(true);
+        listener.start();
+        return listener;
+    }
+
+    /**
+     * Waits for a line ending with {@code suffix}, skipping others; false if
+     * none comes within a few seconds.
+     */
+    private static boolean awaitLine(BlockingQueue<String> received, String suffix) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        String line;
+        do {
+            line = received.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } while (line != null && !line.endsWith(suffix));
+        return line != null;
+    }
+
+    static {
+        // A chat line broadcast over TLS, with a throwaway self-signed
+        // certificate, on the threaded and the NIO transport, in both the
+        // text and the binary protocol; a plaintext client gets nowhere
+        checks.put("tls-broadcast-round-trip", () -> {
+            Path directory = Files.createTempDirectory("self-test-tls");
+            Path keystore = directory.resolve("server.p12");
+            String password = "self-test";
+            try {
+                Process keytool = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "keytool")
+                        .toString(), "-genkeypair", "-alias", "chat", "-keyalg", "EC", "-groupname", "secp256r1",
+                        "-dname", "CN=localhost", "-ext", "san=ip:127.0.0.1", "-validity", "1",
+                        "-storetype", "PKCS12", "-keystore", keystore.toString(),
+                        "-storepass", password, "-keypass", password)
+                        .redirectErrorStream(true).start();
+                String output = new String(keytool.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+                verify(keytool.waitFor() == 0, "keytool failed: " + output.trim());
+                // The server's own certificate is the client's only trust anchor
+                SSLContext trust = TlsConfig.forClient(keystore.toString(), password.toCharArray());
+
+                StringBuilder summary = new StringBuilder();
+                for (String io : new String[] {"threaded", "nio"}) {
+                    int port = freePort();
+                    ChatServer server = new ChatServer(ServerConfig.parse(new String[] {
+                            "--port=" + port, "--io=" + io, "--journal-dir=none", "--quiet", "--headless",
+                            "--tls-keystore=" + keystore, "--tls-password=" + password}));
+                    server.start();
+                    List<ChatConnection> connections = new ArrayList<>();
+                    List<Thread> listeners = new ArrayList<>();
+                    try {
+                        BlockingQueue<String> toBob = new LinkedBlockingQueue<>();
+                        BlockingQueue<String> toCarol = new LinkedBlockingQueue<>();
+                        ChatConnection alice = ChatConnection.open("127.0.0.1", port, "alice",
+                                new ChatConnection.Options().tls(trust));
+                        connections.add(alice);
+                        listeners.add(listenInto(alice, new LinkedBlockingQueue<>(), "self-test-alice"));
+                        ChatConnection bob = ChatConnection.open("127.0.0.1", port, "bob",
+                                new ChatConnection.Options().binary(true).tls(trust));
+                        connections.add(bob);
+                        listeners.add(listenInto(bob, toBob, "self-test-bob"));
+                        ChatConnection carol = ChatConnection.open("127.0.0.1", port, "carol",
+                                new ChatConnection.Options().tls(trust));
+                        connections.add(carol);
+                        listeners.add(listenInto(carol, toCarol, "self-test-carol"));
+                        Thread.sleep(300);
+
+                        alice.sendLine("hello over tls");
+                        verify(awaitLine(toBob, "alice: hello over tls"), io + ": the broadcast never reached a binary TLS client");
+                        verify(awaitLine(toCarol, "alice: hello over tls"), io + ": the broadcast never reached a text TLS client");
+                        bob.sendLine("and back");
+                        verify(awaitLine(toCarol, "bob: and back"), io + ": a binary TLS client's line was not broadcast");
+                        verify(bob.isBinary(), io + ": the binary client fell back to text");
+
+                        try (Socket plain = textClient(port, "mallory")) {
+                            verify(closedByServer(plain), io + ": a plaintext client was kept on the TLS port");
+                        }
+                        summary.append(summary.length() > 0 ? ", " : "").append(io).append(" ok");
+                    } finally {
+                        for (ChatConnection connection : connections) {
+                            connection.close();
+                        }
+                        for (Thread listener : listeners) {
+                            listener.join(5000);
+                        }
+                        server.stop();
+                    }
+                    for (Thread listener : listeners) {
+                        verify(!listener.isAlive(), io + ": " + listener.getName() + " did not stop");
+                    }
+                }
+                return summary.toString();
+            } finally {
+                Files.deleteIfExists(keystore);
+                Files.delete(directory);
+            }
+        });
+    }
+
+    static {
+        // A resumable connection dropped in the middle of a stream of
+        // broadcasts, some of them already on the wire, while more are sent:
+        // reconnecting must resume the session and replay exactly the lines
+        // the old connection did not take in, none twice and in order
+        checks.put("session-resume-replays-missed", () -> {
+            StringBuilder summary = new StringBuilder();
+            for (String io : new String[] {"threaded", "nio"}) {
+                int port = freePort();
+                ChatServer server = new ChatServer(ServerConfig.parse(new String[] {
+                        "--port=" + port, "--io=" + io, "--journal-dir=none", "--quiet", "--headless",
+                        "--chat-rate=0", "--session-grace-s=30", "--session-frames=1000"}));
+                server.start();
+                int lines = 200;
+                List<String> seen = Collections.synchronizedList(new ArrayList<>());
+                AtomicBoolean resumed = new AtomicBoolean();
+                ChatConnection alice = null;
+                ChatConnection first = null;
+                ChatConnection second = null;
+                List<Thread> listeners = new ArrayList<>();
+                try {
+                    alice = ChatConnection.open("127.0.0.1", port, "alice", new ChatConnection.Options());
+                    listeners.add(listenInto(alice, new LinkedBlockingQueue<>(), "self-test-alice"));
+                    first = ChatConnection.open("127.0.0.1", port, "bob",
+                            new ChatConnection.Options().binary(true).resumable(true));
+                    ChatConnection dropped = first;
+                    CountDownLatch drop = new CountDownLatch(1);
+                    Thread firstListener = new Thread(() -> {
+                        try {
+                            dropped.listen(new ChatConnection.Listener() {
+                                @Override
+                                public void onFrame(FrameCodec.Frame frame) {
+                                    int at = frame.text.indexOf("alice: line ");
+                                    if (at < 0) {
+                                        return;
+                                    }
+                                    seen.add(frame.text.substring(at + 7));
+                                    if (seen.size() == lines / 4) {
+                                        // Whatever is still in flight is lost with the socket
+                                        try {
+                                            dropped.close();
+                                        } catch (IOException e) {
+                                            // Closed anyway
+                                        }
+                                        drop.countDown();
+                                    }
+                                }
+                            });
+                        } catch (IOException e) {
+                            // The drop
+                        }
+                    }, "self-test-bob-1");
+                    firstListener.start();
+                    listeners.add(firstListener);
+                    Thread.sleep(300);
+
+                    for (int i = 0; i < lines; i++) {
+                        alice.sendLine("line " + i);
+                        if (i == lines / 2) {
+                            verify(drop.await(5, TimeUnit.SECONDS), io + ": bob never got the first lines");
+                        }
+                    }
+                    // Lines already buffered are still dispatched, and counted
+                    firstListener.join(5000);
+                    int beforeDrop = seen.size();
+
+                    second = first.reconnect();
+                    ChatConnection resumedConnection = second;
+                    Thread secondListener = new Thread(() -> {
+                        try {
+                            resumedConnection.listen(new ChatConnection.Listener() {
+                                @Override
+                                public void onFrame(FrameCodec.Frame frame) {
+                                    int at = frame.text.indexOf("alice: line ");
+                                    if (at >= 0) {
+                                        seen.add(frame.text.substring(at + 7));
+                                    }
+                                }
+
+                                @Override
+                                public void onSession(String token, boolean carriedOn) {
+                                    resumed.set(carriedOn);
+                                }
+                            });
+                        } catch (IOException e) {
+                            // Closed by the check
+                        }
+                    }, "self-test-bob-2");
+                    secondListener.start();
+                    listeners.add(secondListener);
+                    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+                    while (seen.size() < lines && System.nanoTime() < deadline) {
+                        Thread.sleep(20);
+                    }
+                    Thread.sleep(200);
+
+                    verify(resumed.get(), io + ": the session was not resumed");
+                    List<String> expected = new ArrayList<>();
+                    for (int i = 0; i < lines; i++) {
+                        expected.add("line " + i);
+                    }
+                    synchronized (seen) {
+                        verify(seen.equals(expected), io + ": bob got " + seen.size() + " lines, "
+                                + new HashSet<>(seen).size() + " distinct, instead of each of " + lines
+                                + " once and in order");
+                    }
+                    summary.append(summary.length() > 0 ? ", " : "").append(io).append(" resumed after ")
+                            .append(beforeDrop).append(" lines");
+                } finally {
+                    for (ChatConnection connection : new ChatConnection[] {alice, first, second}) {
+                        if (connection != null) {
+                            connection.close();
+                        }
+                    }
+                    for (Thread listener : listeners) {
+                        listener.join(5000);
+                    }
+                    server.stop();
+                }
+                for (Thread listener : listeners) {
+                    verify(!listener.isAlive(), io + ": " + listener.getName() + " did not stop");
+                }
+            }
+            return summary.toString();
+        });
+    }
+
+    static {
+        // Two cluster nodes in this JVM: a broadcast on one reaches the
+        // other's users, including a line whose fields would not fit
+        // writeUTF; a private message finds a user on the other node; and a
+        // name held on one node cannot be taken on the other, at login or
+        // by /nick
+        checks.put("cluster-relay", () -> {
+            int[] ports = {freePort(), freePort()};
+            int[] clusterPorts = {freePort(), freePort()};
+            List<ChatServer> nodes = new ArrayList<>();
+            List<ChatConnection> connections = new ArrayList<>();
+            List<Thread> listeners = new ArrayList<>();
+            String summary;
+            try {
+                for (int n = 0; n < 2; n++) {
+                    ChatServer node = new ChatServer(ServerConfig.parse(new String[] {
+                            "--port=" + ports[n], "--io=" + (n == 0 ? "threaded" : "nio"), "--journal-dir=none",
+                            "--quiet", "--headless", "--chat-rate=0", "--status-rate=0",
+                            "--cluster-port=" + clusterPorts[n], "--node-id=self-test-" + n,
+                            n == 0 ? "--peers=" : "--peers=127.0.0.1:" + clusterPorts[0]}));
+                    node.start();
+                    nodes.add(node);
+                }
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+                while (!(nodes.get(0).getClusterStatus().contains(" 1 peers")
+                        && nodes.get(1).getClusterStatus().contains(" 1 peers"))) {
+                    verify(System.nanoTime() < deadline, "the nodes never linked: " + nodes.get(0).getClusterStatus());
+                    Thread.sleep(50);
+                }
+
+                BlockingQueue<String> toAlice = new LinkedBlockingQueue<>();
+                BlockingQueue<String> toBob = new LinkedBlockingQueue<>();
+                ChatConnection alice = ChatConnection.open("127.0.0.1", ports[0], "alice",
+                        new ChatConnection.Options().binary(true));
+                connections.add(alice);
+                listeners.add(listenInto(alice, toAlice, "self-test-alice"));
+                ChatConnection bob = ChatConnection.open("127.0.0.1", ports[1], "bob",
+                        new ChatConnection.Options().binary(true));
+                connections.add(bob);
+                listeners.add(listenInto(bob, toBob, "self-test-bob"));
+                Thread.sleep(500);
+
+                alice.sendLine("hello from node 0");
+                verify(awaitLine(toBob, "alice: hello from node 0"), "a broadcast did not cross the link");
+                // Six bytes each in modified UTF-8, four in UTF-8
+                String wide = "\uD83D\uDE00".repeat(FrameCodec.MAX_LINE_LENGTH / 4 - 100);
+                bob.sendLine(wide);
+                verify(awaitLine(toAlice, "bob: " + wide), "a long line of supplementary characters was not relayed");
+
+                bob.sendLine("/msg alice psst");
+                verify(awaitLine(toAlice, "psst"), "a private message did not reach the other node");
+
+                try (Socket impostor = textClient(ports[1], "alice")) {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(impostor.getInputStream(),
+                            StandardCharsets.UTF_8));
+                    String welcome = in.readLine();
+                    verify(welcome != null && welcome.contains("already taken"),
+                            "a name held on the other node was given out again: " + welcome);
+                }
+                bob.sendLine("/nick alice");
+                verify(awaitLine(toBob, "Username 'alice' is not available."),
+                        "/nick took a name held on the other node");
+                summary = "broadcast, " + wide.length() / 2 + "-emoji line, private message and name claims ok";
+            } finally {
+                for (ChatConnection connection : connections) {
+                    connection.close();
+                }
+                for (Thread listener : listeners) {
+                    listener.join(5000);
+                }
+                for (ChatServer node : nodes) {
+                    node.stop();
+                }
+            }
+            for (Thread listener : listeners) {
+                verify(!listener.isAlive(), listener.getName() + " did not stop");
+            }
+            return summary;
+        });
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> selected = new ArrayList<>(Arrays.asList(args));
+        if (selected.isEmpty()) {
+            selected.addAll(checks.keySet());
+        }
+
+        int failed = 0;
+        for (String name : selected) {
+            Check check = checks.get(name);
+            if (check == null) {
+                System.err.println("Unknown check: " + name + " (known: " + checks.keySet() + ")");
+                failed++;
+                continue;
+            }
+            long start = System.nanoTime();
+            try {
+                String summary = check.run();
+                System.out.printf(Locale.ROOT, "PASS %-40s %6d ms  %s%n", name,
+                        (System.nanoTime() - start) / 1_000_000, summary);
+            } catch (AssertionError | Exception e) {
+                failed++;
+                System.out.printf(Locale.ROOT, "FAIL %-40s %6d ms  %s%n", name,
+                        (System.nanoTime() - start) / 1_000_000, e.getMessage() != null ? e.getMessage() : e);
+            }
+        }
+        System.exit(failed == 0 ? 0 : 1);
+    }
+}
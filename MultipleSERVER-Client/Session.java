@@ -0,0 +1,280 @@
+package Hn;
+
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A client's resumable session, so that a dropped connection costs neither
+ * the user's place in the chat nor any of the frames sent meanwhile.
+ *
+ * <p>The handler the client first logged in with stays the user everywhere
+ * the server keeps track of it, for as long as the session lasts; it sends
+ * its frames through the session to whichever connection carries it at the
+ * time. Frames are numbered as that connection's writer takes them off its
+ * queue, starting after the {@code SESSION} frame that announces the session:
+ * the n-th frame after it is number n. Nothing is added to the wire; the
+ * client counts the frames it receives, and since TCP keeps them in order the
+ * count is the number of the last frame it has seen. The most recent frames
+ * are kept in a log.
+ *
+ * <p>When the connection drops, whatever it still had queued goes to the log,
+ * and so does everything sent to the user until a new connection presents
+ * the token and its count. That connection is sent a {@code SESSION} frame
+ * with the count, then every logged frame after it, and carries the session
+ * from then on; nobody else notices. A session that is not resumed within the
+ * grace period ends and the user leaves as with any disconnect.
+ *
+ * <p>The lock is per session, so it only ever contends between one client's
+ * writer and whoever sends to that client.
+ */
+public final class Session {
+
+    /** Returned by {@link #resume} while the previous connection still holds the session. */
+    static final Resumption BUSY = new Resumption(0, 0);
+
+    /** The token of the {@code SESSION} frame that says the session is over. */
+    static final String ENDED = "-";
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final String token = newToken();
+    private final ClientHandler owner;
+    private final int capacity;
+    // Logged frames, oldest first; batches are logged as their parts
+    private final ArrayDeque<SharedFrame> log = new ArrayDeque<>();
+    // Number of the next frame logged
+    private long nextSeq = 1;
+    // The connection that carries the session, or carried it last
+    private ClientHandler connection;
+    // Whether frames still go to that connection's queue rather than the log
+    private boolean live = true;
+    private boolean ended = false;
+    private ScheduledFuture<?> expiry;
+
+    /**
+     * @param capacity frames kept for a client to resume from
+     */
+    Session(ClientHandler owner, int capacity) {
+        this.owner = owner;
+        this.connection = owner;
+        this.capacity = Math.max(1, capacity);
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder sb = new StringBuilder(32);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * The handler that stands for the user, whichever connection carries the
+     * session.
+     */
+    public ClientHandler getOwner() {
+        return owner;
+    }
+
+    /**
+     * The frame that tells the client its token and the number of the frame
+     * before the ones that follow it. It is not numbered itself.
+     */
+    synchronized SharedFrame announcement() {
+        return SharedFrame.of(FrameCodec.Type.SESSION, 0, null, token + " " + (nextSeq - 1));
+    }
+
+    /**
+     * Queues {@code frame} on the connection, or logs it while there is none,
+     * taking over the caller's reference.
+     */
+    synchronized void send(SharedFrame frame) {
+        if (ended) {
+            frame.release();
+        } else if (live) {
+            connection.enqueue(frame);
+        } else {
+            log(frame);
+        }
+    }
+
+    /**
+     * Numbers and logs a frame that {@code from}'s writer has taken off its
+     * queue, taking over the caller's reference.
+     */
+    synchronized void record(ClientHandler from, SharedFrame frame) {
+        if (ended || from != connection) {
+            frame.release();
+        } else {
+            log(frame);
+        }
+    }
+
+    private void log(SharedFrame frame) {
+        SharedFrame[] parts = frame.getParts();
+        if (parts == null) {
+            append(frame);
+            return;
+        }
+        for (SharedFrame part : parts) {
+            append(part.retain());
+        }
+        frame.release();
+    }
+
+    private void append(SharedFrame frame) {
+        log.addLast(frame);
+        nextSeq++;
+        if (log.size() > capacity) {
+            log.pollFirst().release();
+        }
+    }
+
+    /**
+     * Called by {@code from}'s writer once it has stopped: runs
+     * {@code drain}, which records what is left in its queue, and from then
+     * on logs what is sent instead of queueing it.
+     */
+    synchronized void detach(ClientHandler from, Runnable drain) {
+        drain.run();
+        if (from == connection) {
+            live = false;
+        }
+    }
+
+    /**
+     * Called when {@code from} has disconnected. Returns false if the session
+     * has ended, so the user must leave; otherwise it waits to be resumed,
+     * and runs {@code expire} if it is not within {@code graceMillis}.
+     */
+    synchronized boolean linger(ClientHandler from, ScheduledExecutorService timers, long graceMillis,
+            Runnable expire) {
+        if (ended) {
+            return false;
+        }
+        if (from == connection) {
+            if (expiry != null) {
+                expiry.cancel(false);
+            }
+            expiry = timers.schedule(expire, graceMillis, TimeUnit.MILLISECONDS);
+        }
+        // Otherwise a newer connection already carries it
+        return true;
+    }
+
+    /**
+     * The connection that still holds the session, or null once it has let
+     * go of it.
+     */
+    synchronized ClientHandler liveConnection() {
+        return live && !ended ? connection : null;
+    }
+
+    /**
+     * Moves the session to {@code to}, whose client has seen {@code lastSeq}
+     * frames. Queues the announcement, a notice if frames were missed and
+     * every logged frame after {@code lastSeq}, ahead of anything sent from
+     * then on. Returns null if the session has ended and {@link #BUSY} if its
+     * previous connection has not let go of it yet.
+     */
+    synchronized Resumption resume(ClientHandler to, long lastSeq) {
+        if (ended) {
+            return null;
+        }
+        if (live) {
+            return BUSY;
+        }
+        if (expiry != null) {
+            expiry.cancel(false);
+            expiry = null;
+        }
+        // A count beyond what was sent cannot be trusted; take it as all of it
+        lastSeq = Math.max(0, Math.min(lastSeq, nextSeq - 1));
+        long firstLogged = nextSeq - log.size();
+        long missed = Math.max(0, firstLogged - (lastSeq + 1));
+        List<SharedFrame> unseen = new ArrayList<>();
+        long seq = firstLogged;
+        for (SharedFrame frame : log) {
+            if (seq++ > lastSeq) {
+                unseen.add(frame);
+            } else {
+                frame.release();
+            }
+        }
+        log.clear();
+        // The unseen frames are numbered again as the new connection takes them
+        nextSeq = lastSeq + 1;
+        connection = to;
+        live = true;
+        to.enqueue(announcement());
+        if (missed > 0) {
+            to.enqueue(SharedFrame.system("You missed " + missed + " messages while you were away."));
+        }
+        if (!unseen.isEmpty()) {
+            to.enqueue(SharedFrame.batch(unseen));
+        }
+        return new Resumption(unseen.size(), missed);
+    }
+
+    /**
+     * Ends the session if {@code from} was the last connection to carry it
+     * and none has resumed it since. Returns false otherwise.
+     */
+    synchronized boolean expire(ClientHandler from) {
+        if (ended || live || from != connection) {
+            return false;
+        }
+        end();
+        return true;
+    }
+
+    /**
+     * Ends the session and releases the log, telling the client not to
+     * reconnect if it is still connected. Returns the connection that carried
+     * it last, or null if it had already ended.
+     */
+    synchronized ClientHandler end() {
+        if (ended) {
+            return null;
+        }
+        if (live) {
+            connection.enqueue(SharedFrame.of(FrameCodec.Type.SESSION, 0, null, ENDED + " " + (nextSeq - 1)));
+        }
+        ended = true;
+        if (expiry != null) {
+            expiry.cancel(false);
+            expiry = null;
+        }
+        for (SharedFrame frame : log) {
+            frame.release();
+        }
+        log.clear();
+        return connection;
+    }
+
+    /**
+     * What {@link #resume} sent the new connection.
+     */
+    static final class Resumption {
+        /** Frames sent again. */
+        final int replayed;
+        /** Frames the client missed that were no longer logged. */
+        final long missed;
+
+        Resumption(int replayed, long missed) {
+            this.replayed = replayed;
+            this.missed = missed;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package Hn;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An outgoing frame shared by every connection it is fanned out to. It is
+ * encoded at most once per wire protocol (text line or binary frame), on first
+ * use, and those bytes are then written to every recipient speaking that
+ * protocol.
+ *
+ * <p>Each recipient holds a reference from the moment it is queued until it
+ * has been written (or dropped); the frame is released when the last
+ * reference goes.
+ */
+public final class SharedFrame {
+
+    private static final AtomicLong liveFrames = new AtomicLong();
+
+    private final FrameCodec.Type type;
+    private final int senderId;
+    private final String peer;
+    private final String text;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+    private final boolean constant;
+    // For queue-wait metrics; 0 for constants, which are created once at startup
+    private final long createdNanos;
+    // For a batch, the frames it is made of; it holds a reference to each
+    private final SharedFrame[] parts;
+
+    // Lazily encoded; a race only means both threads encode identical bytes
+    private volatile byte[] textBytes;
+    private volatile byte[] binaryBytes;
+    // Set once the frame is fanned out to a large audience, so compressed
+    // streams splice it in rather than compress it per recipient
+    private volatile boolean broadcast;
+    private volatile byte[] deflatedText;
+    private volatile byte[] deflatedBinary;
+
+    private SharedFrame(FrameCodec.Type type, int senderId, String peer, String text, boolean constant,
+            SharedFrame[] parts) {
+        this.type = type;
+        this.senderId = senderId;
+        this.peer = peer;
+        this.text = text;
+        this.constant = constant;
+        this.parts = parts;
+        this.createdNanos = constant ? 0 : System.nanoTime();
+        if (!constant) {
+            liveFrames.incrementAndGet();
+        }
+    }
+
+    /**
+     * The caller owns the returned frame's single reference.
+     */
+    public static SharedFrame of(FrameCodec.Type type, int senderId, String peer, String text) {
+        return new SharedFrame(type, senderId, peer, text, false, null);
+    }
+
+    public static SharedFrame chat(int senderId, String line) {
+        return of(FrameCodec.Type.CHAT, senderId, null, line);
+    }
+
+    public static SharedFrame system(String text) {
+        return of(FrameCodec.Type.SYSTEM, 0, null, text);
+    }
+
+    /**
+     * A frame that is never released, for fixed protocol frames and markers.
+     * {@link #retain()} and {@link #release()} are no-ops on it.
+     */
+    public static SharedFrame constant(FrameCodec.Type type, String text) {
+        return new SharedFrame(type, 0, null, text, true, null);
+    }
+
+    /**
+     * Several frames queued and written as one, e.g. a backlog replayed to a
+     * joiner in a single write. Takes over the caller's reference to each
+     * part; the caller owns the returned frame's single reference.
+     */
+    public static SharedFrame batch(List<SharedFrame> parts) {
+        return new SharedFrame(FrameCodec.Type.CHAT, 0, null, null, false, parts.toArray(new SharedFrame[0]));
+    }
+
+    public SharedFrame retain() {
+        if (!tryRetain()) {
+            throw new IllegalStateException("Frame already released");
+        }
+        return this;
+    }
+
+    /**
+     * Takes another reference unless the frame has already been released,
+     * for readers that may race with the last release.
+     */
+    public boolean tryRetain() {
+        if (constant) {
+            return true;
+        }
+        int count;
+        do {
+            count = refCount.get();
+            if (count <= 0) {
+                return false;
+            }
+        } while (!refCount.compareAndSet(count, count + 1));
+        return true;
+    }
+
+    public void release() {
+        if (constant) {
+            return;
+        }
+        int count = refCount.decrementAndGet();
+        if (count == 0) {
+            liveFrames.decrementAndGet();
+            if (parts != null) {
+                for (SharedFrame part : parts) {
+                    part.release();
+                }
+            }
+        } else if (count < 0) {
+            throw new IllegalStateException("Frame released too many times");
+        }
+    }
+
+    public byte[] bytes(boolean binary) {
+        if (parts != null) {
+            return batchBytes(binary);
+        }
+        if (binary) {
+            byte[] bytes = binaryBytes;
+            if (bytes == null) {
+                binaryBytes = bytes = FrameCodec.encode(type, senderId, peer, text);
+            }
+            return bytes;
+        }
+        byte[] bytes = textBytes;
+        if (bytes == null) {
+            textBytes = bytes = (FrameCodec.toTextLine(type, peer, text) + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+        return bytes;
+    }
+
+    private byte[] batchBytes(boolean binary) {
+        byte[] bytes = binary ? binaryBytes : textBytes;
+        if (bytes == null) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            for (SharedFrame part : parts) {
+                buffer.writeBytes(part.bytes(binary));
+            }
+            bytes = buffer.toByteArray();
+            if (binary) {
+                binaryBytes = bytes;
+            } else {
+                textBytes = bytes;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * The frame's bytes compressed on their own, for splicing into any
+     * recipient's {@link StreamCompressor} stream. Compressed once per
+     * protocol, like {@link #bytes}.
+     */
+    public byte[] deflated(boolean binary) {
+        byte[] deflated = binary ? deflatedBinary : deflatedText;
+        if (deflated == null) {
+            deflated = StreamCompressor.compressAlone(bytes(binary));
+            if (binary) {
+                deflatedBinary = deflated;
+            } else {
+                deflatedText = deflated;
+            }
+        }
+        return deflated;
+    }
+
+    void markBroadcast() {
+        broadcast = true;
+    }
+
+    public boolean isBroadcast() {
+        return broadcast;
+    }
+
+    /**
+     * A read-only view with its own position, for non-blocking writers that
+     * may need several attempts.
+     */
+    public ByteBuffer view(boolean binary) {
+        return ByteBuffer.wrap(bytes(binary)).asReadOnlyBuffer();
+    }
+
+    public void writeTo(OutputStream out, boolean binary) throws IOException {
+        out.write(bytes(binary));
+    }
+
+    public long getCreatedNanos() {
+        return createdNanos;
+    }
+
+    public FrameCodec.Type getType() {
+        return type;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * The frames a batch is made of, or null if this is not a batch. The
+     * batch holds a reference to each; the array must not be changed.
+     */
+    SharedFrame[] getParts() {
+        return parts;
+    }
+
+    public static long getLiveFrames() {
+        return liveFrames.get();
+    }
+}
@@ -0,0 +1,172 @@
+package Hn;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses everything a server writes to one client that negotiated
+ * {@value FrameCodec#DEFLATE_HANDSHAKE} into a single raw deflate stream.
+ *
+ * <p>The stream keeps its compression context from one write to the next, so
+ * the names, timestamps and prefixes that recur in chat compress to a few
+ * bytes, and every write ends with a sync flush so the client can decode it
+ * at once instead of waiting for more data.
+ *
+ * <p>Broadcasts to large audiences are the exception. Compressing a frame
+ * once per recipient would cost more than the rest of the fan-out, so such
+ * a frame is compressed once, on its own, by {@link SharedFrame#deflated}
+ * and spliced into each recipient's stream as is. Without the stream's
+ * context a short chat line hardly shrinks, which is the price of that. Deflate allows that: the spliced
+ * blocks start at a sync-flushed byte boundary and refer only to
+ * themselves. Our own deflater's history then no longer matches what the
+ * client has decoded, so it is reset before the next write of our own.
+ *
+ * <p>Not thread-safe; each connection's writer owns its compressor. A
+ * {@link Deflater} holds about 256 KB of native memory until {@link #end}.
+ */
+public final class StreamCompressor {
+
+    // Deflaters for compressing shared frames, reused across threads
+    private static final ConcurrentLinkedQueue<Deflater> spare = new ConcurrentLinkedQueue<>();
+
+    private final Deflater deflater;
+    private byte[] output = new byte[1024];
+    private int length = 0;
+    private long rawLength = 0;
+    // Input given to the deflater since the last sync flush
+    private boolean unflushed = false;
+    // Set after a splice; the deflater's history is not what the client saw
+    private boolean stale = false;
+
+    /**
+     * @param level deflate level, 1 (fastest) to 9 (smallest)
+     */
+    public StreamCompressor(int level) {
+        this.deflater = new Deflater(level, true);
+    }
+
+    /**
+     * Appends {@code frame}, compressed, to the output. Call {@link #flush}
+     * before sending the output.
+     */
+    public void write(SharedFrame frame, boolean binary) {
+        byte[] bytes = frame.bytes(binary);
+        rawLength += bytes.length;
+        if (frame.isBroadcast()) {
+            flush();
+            byte[] deflated = frame.deflated(binary);
+            ensureCapacity(length + deflated.length);
+            System.arraycopy(deflated, 0, output, length, deflated.length);
+            length += deflated.length;
+            stale = true;
+            return;
+        }
+        if (stale) {
+            deflater.reset();
+            stale = false;
+        }
+        deflater.setInput(bytes);
+        deflate(Deflater.NO_FLUSH);
+        unflushed = true;
+    }
+
+    /**
+     * Ends the output with a sync flush, so that the client can decode all of
+     * it without waiting for more.
+     */
+    public void flush() {
+        if (unflushed) {
+            deflate(Deflater.SYNC_FLUSH);
+            unflushed = false;
+        }
+    }
+
+    private void deflate(int mode) {
+        while (true) {
+            ensureCapacity(length + 1);
+            int space = output.length - length;
+            int written = deflater.deflate(output, length, space, mode);
+            length += written;
+            // A sync flush is complete once it leaves space unused; otherwise
+            // stop as soon as all input has been taken
+            if (mode == Deflater.NO_FLUSH ? deflater.needsInput() : written < space) {
+                return;
+            }
+        }
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed > output.length) {
+            output = Arrays.copyOf(output, Math.max(needed, output.length * 2));
+        }
+    }
+
+    /**
+     * The compressed output since the last {@link #clear}, without copying.
+     */
+    public ByteBuffer output() {
+        return ByteBuffer.wrap(output, 0, length);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(output, 0, length);
+    }
+
+    /**
+     * Bytes of output since the last {@link #clear}.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Uncompressed bytes written since the last {@link #clear}.
+     */
+    public long getRawLength() {
+        return rawLength;
+    }
+
+    public void clear() {
+        length = 0;
+        rawLength = 0;
+    }
+
+    /**
+     * Frees the deflater's native memory. The compressor cannot be used
+     * afterwards.
+     */
+    public void end() {
+        deflater.end();
+    }
+
+    /**
+     * Compresses {@code data} with a fresh context into sync-flushed blocks
+     * that can be spliced into any stream at a flush boundary. Runs once per
+     * broadcast whatever its audience, so it always uses the default level.
+     */
+    static byte[] compressAlone(byte[] data) {
+        Deflater deflater = spare.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        try {
+            byte[] result = new byte[data.length + 64];
+            int length = 0;
+            deflater.setInput(data);
+            while (true) {
+                int written = deflater.deflate(result, length, result.length - length, Deflater.SYNC_FLUSH);
+                length += written;
+                if (length < result.length) {
+                    return Arrays.copyOf(result, length);
+                }
+                result = Arrays.copyOf(result, result.length * 2);
+            }
+        } finally {
+            deflater.reset();
+            spare.offer(deflater);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package Hn;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.regex.Pattern;
+
+/**
+ * Samples the CPU time of the threads that run client handlers and turns it
+ * into a utilization figure, so the platform-thread and virtual-thread modes
+ * can be compared under the same load.
+ *
+ * <p>In virtual mode the interesting threads are the scheduler's carriers
+ * ({@code ForkJoinPool-N-worker-M}); virtual threads themselves are not
+ * visible to {@link ThreadMXBean}.
+ */
+public class ThreadUtilizationMonitor {
+
+    private static final Pattern CARRIER_NAME = Pattern.compile("ForkJoinPool-\\d+-worker-\\d+");
+
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private final Pattern threadName;
+    private final int capacity;
+    private final String label;
+
+    private long lastCpuNanos = 0;
+    private long lastWallNanos = System.nanoTime();
+    private volatile String lastReport = "n/a";
+
+    private ThreadUtilizationMonitor(Pattern threadName, int capacity, String label) {
+        this.threadName = threadName;
+        this.capacity = capacity;
+        this.label = label;
+        if (threadBean.isThreadCpuTimeSupported() && !threadBean.isThreadCpuTimeEnabled()) {
+            threadBean.setThreadCpuTimeEnabled(true);
+        }
+    }
+
+    public static ThreadUtilizationMonitor forCarriers() {
+        int parallelism = Integer.getInteger("jdk.virtualThreadScheduler.parallelism",
+                Runtime.getRuntime().availableProcessors());
+        return new ThreadUtilizationMonitor(CARRIER_NAME, parallelism, "carriers");
+    }
+
+    public static ThreadUtilizationMonitor forPlatformThreads(String namePrefix) {
+        return new ThreadUtilizationMonitor(Pattern.compile(Pattern.quote(namePrefix) + ".*"),
+                Runtime.getRuntime().availableProcessors(), "cores");
+    }
+
+    /**
+     * Takes a sample and returns a one-line summary of utilization since the
+     * previous sample.
+     */
+    public synchronized String sample() {
+        if (!threadBean.isThreadCpuTimeSupported()) {
+            return lastReport = "thread CPU time not supported";
+        }
+
+        long cpuNanos = 0;
+        int threads = 0;
+        for (ThreadInfo info : threadBean.getThreadInfo(threadBean.getAllThreadIds(), 0)) {
+            if (info != null && threadName.matcher(info.getThreadName()).matches()) {
+                long time = threadBean.getThreadCpuTime(info.getThreadId());
+                if (time > 0) {
+                    cpuNanos += time;
+                    threads++;
+                }
+            }
+        }
+
+        long wallNanos = System.nanoTime();
+        long elapsed = wallNanos - lastWallNanos;
+        // Threads that exited since the last sample take their CPU time with them
+        long used = Math.max(0, cpuNanos - lastCpuNanos);
+        double utilization = elapsed > 0 ? 100.0 * used / ((double) elapsed * capacity) : 0;
+
+        lastCpuNanos = cpuNanos;
+        lastWallNanos = wallNanos;
+        lastReport = String.format("%.1f%% of %d %s (%d threads)",
+                Math.min(100.0, utilization), capacity, label, threads);
+        return lastReport;
+    }
+
+    public String getLastReport() {
+        return lastReport;
+    }
+}
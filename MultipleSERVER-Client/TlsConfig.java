@@ -0,0 +1,104 @@
+package Hn;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import javax.net.ssl.*;
+
+/**
+ * Builds the {@link SSLContext}s for TLS between chat clients and the server.
+ *
+ * <p>The server loads its certificate chain and key from a PKCS#12 keystore;
+ * clients trust the certificates in a truststore, or the JVM's default trust
+ * ({@code -Djavax.net.ssl.trustStore}) if none is given, and check that the
+ * certificate names the host they connected to.
+ *
+ * <p>Both sides keep a session cache of {@value #SESSION_CACHE_SIZE} entries
+ * for {@value #SESSION_TIMEOUT_SECONDS} seconds. A client that reconnects
+ * with the same context within that time resumes its session, which skips
+ * the certificate signature and key exchange, so a reconnect storm after a
+ * network blip costs the server little more than the TCP accepts.
+ */
+public final class TlsConfig {
+
+    static final int SESSION_CACHE_SIZE = 50_000;
+    static final int SESSION_TIMEOUT_SECONDS = 3600;
+
+    private TlsConfig() {
+    }
+
+    public static SSLContext forServer(String keystore, char[] password) throws IOException {
+        try {
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(load(keystore, password), password);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keys.getKeyManagers(), null, null);
+            configureCache(context.getServerSessionContext());
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot use TLS keystore " + keystore + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param truststore PKCS#12 file of trusted certificates, or null for the
+     *        JVM's default trust
+     */
+    public static SSLContext forClient(String truststore, char[] password) throws IOException {
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            TrustManager[] trust = null;
+            if (truststore != null) {
+                TrustManagerFactory factory = TrustManagerFactory.getInstance(
+                        TrustManagerFactory.getDefaultAlgorithm());
+                factory.init(load(truststore, password));
+                trust = factory.getTrustManagers();
+            }
+            context.init(null, trust, null);
+            configureCache(context.getClientSessionContext());
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot use TLS truststore " + truststore + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static KeyStore load(String file, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(Paths.get(file))) {
+            store.load(in, password);
+        }
+        return store;
+    }
+
+    private static void configureCache(SSLSessionContext sessions) {
+        sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+        sessions.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+    }
+
+    /**
+     * Layers TLS over a connected socket and completes the handshake,
+     * failing if it takes longer than {@code timeoutMillis}. The host and
+     * port key the client session cache.
+     */
+    static SSLSocket startClient(SSLContext context, Socket socket, String host, int port, int timeoutMillis)
+            throws IOException {
+        SSLSocket tls = (SSLSocket) context.getSocketFactory().createSocket(socket, host, port, true);
+        SSLParameters parameters = tls.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        tls.setSSLParameters(parameters);
+        tls.setSoTimeout(timeoutMillis);
+        tls.startHandshake();
+        tls.setSoTimeout(0);
+        return tls;
+    }
+
+    /**
+     * Whether a handshake that started at {@code startMillis} (wall clock)
+     * resumed an earlier session rather than creating this one.
+     */
+    static boolean isResumed(SSLSession session, long startMillis) {
+        return session.getCreationTime() < startMillis;
+    }
+}
@@ -0,0 +1,270 @@
+package Hn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.*;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+
+/**
+ * TLS over a non-blocking {@link SocketChannel}, for {@link NioClientHandler}.
+ *
+ * <p>An {@link SSLEngine} does the protocol work; this class moves bytes
+ * between it and the channel and drives the handshake as data arrives.
+ * Ciphertext and plaintext buffers are borrowed from a shared
+ * {@link BufferPool} only while they hold something (part of a record, a
+ * record not yet taken, a record not yet written) and returned as soon as
+ * they are empty, so an idle TLS connection holds no buffers at all.
+ *
+ * <p>The engine's delegated tasks, which do the certificate and key
+ * exchange work, are never run here: {@link #read} returns 0 with
+ * {@link #needsTasks} set, and the caller runs {@link #runTasks} on another
+ * thread so that its event loop keeps serving other channels meanwhile.
+ * Otherwise a session must be used by one thread at a time.
+ */
+public final class TlsSession {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SSLEngine engine;
+    private final SocketChannel channel;
+    private final BufferPool pool;
+    private final int bufferSize;
+    private final ServerMetrics metrics;
+    private final long startNanos = System.nanoTime();
+    private final long startMillis = System.currentTimeMillis();
+    private boolean handshaken = false;
+    private boolean inboundClosed = false;
+
+    // Ciphertext read but not yet unwrapped, ready to be read into
+    private ByteBuffer netIn;
+    // Plaintext unwrapped but not yet taken, ready to be read from
+    private ByteBuffer appIn;
+    // Ciphertext wrapped but not yet written, ready to be read from
+    private ByteBuffer netOut;
+
+    TlsSession(SSLEngine engine, SocketChannel channel, BufferPool pool, ServerMetrics metrics) throws IOException {
+        this.engine = engine;
+        this.channel = channel;
+        this.pool = pool;
+        this.bufferSize = Math.max(engine.getSession().getPacketBufferSize(),
+                engine.getSession().getApplicationBufferSize());
+        this.metrics = metrics;
+        engine.beginHandshake();
+    }
+
+    /**
+     * Reads plaintext into {@code dst}, reading from the channel and moving
+     * the handshake along as needed. Returns the number of bytes read, 0 if
+     * there are none without waiting (or tasks must run first), and -1 once
+     * the peer has closed.
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        while (true) {
+            if (appIn != null) {
+                int count = Math.min(appIn.remaining(), dst.remaining());
+                ByteBuffer chunk = appIn.slice();
+                chunk.limit(count);
+                dst.put(chunk);
+                appIn.position(appIn.position() + count);
+                if (!appIn.hasRemaining()) {
+                    appIn = release(appIn);
+                }
+                return count;
+            }
+            if (inboundClosed) {
+                return -1;
+            }
+            HandshakeStatus handshake = engine.getHandshakeStatus();
+            if (handshake == HandshakeStatus.NEED_TASK) {
+                return 0;
+            }
+            if (handshake == HandshakeStatus.NEED_WRAP) {
+                wrap(EMPTY);
+                if (!flush()) {
+                    return 0;
+                }
+                continue;
+            }
+            if (netIn != null && unwrap()) {
+                continue;
+            }
+
+            if (netIn == null) {
+                netIn = pool.acquire(bufferSize);
+            } else if (!netIn.hasRemaining()) {
+                throw new SSLException("TLS record larger than " + netIn.capacity() + " bytes");
+            }
+            int read = channel.read(netIn);
+            if (read < 0) {
+                inboundClosed = true;
+                try {
+                    engine.closeInbound();
+                } catch (SSLException e) {
+                    // Closed without close_notify; nothing to lose in a chat stream
+                }
+                return -1;
+            }
+            if (read == 0) {
+                if (netIn.position() == 0) {
+                    netIn = release(netIn);
+                }
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Unwraps what has been read so far. Returns true if that made progress,
+     * false if a whole record has not arrived yet.
+     */
+    private boolean unwrap() throws IOException {
+        appIn = pool.acquire(bufferSize);
+        netIn.flip();
+        SSLEngineResult result;
+        try {
+            result = engine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+            if (netIn.position() == 0) {
+                netIn = release(netIn);
+            }
+            appIn.flip();
+            if (!appIn.hasRemaining()) {
+                appIn = release(appIn);
+            }
+        }
+        checkFinished(result);
+        switch (result.getStatus()) {
+            case CLOSED:
+                inboundClosed = true;
+                return true;
+            case BUFFER_OVERFLOW:
+                throw new SSLException("TLS record does not fit a " + bufferSize + " byte buffer");
+            case BUFFER_UNDERFLOW:
+                return false;
+            default:
+                HandshakeStatus next = result.getHandshakeStatus();
+                return result.bytesConsumed() > 0 || result.bytesProduced() > 0
+                        || next == HandshakeStatus.NEED_TASK || next == HandshakeStatus.NEED_WRAP;
+        }
+    }
+
+    /**
+     * Encrypts and writes as much of {@code src} as the channel takes. Data
+     * that cannot be sent before the handshake completes is left in
+     * {@code src}. Returns the number of plaintext bytes consumed.
+     */
+    public int write(ByteBuffer src) throws IOException {
+        int consumed = 0;
+        while (src.hasRemaining() && flush()) {
+            HandshakeStatus handshake = engine.getHandshakeStatus();
+            if (handshake == HandshakeStatus.NEED_WRAP) {
+                wrap(EMPTY);
+            } else if (handshake == HandshakeStatus.NOT_HANDSHAKING) {
+                consumed += wrap(src);
+            } else {
+                break;
+            }
+        }
+        flush();
+        return consumed;
+    }
+
+    private int wrap(ByteBuffer src) throws IOException {
+        netOut = pool.acquire(bufferSize);
+        SSLEngineResult result;
+        try {
+            result = engine.wrap(src, netOut);
+        } finally {
+            netOut.flip();
+            if (!netOut.hasRemaining()) {
+                netOut = release(netOut);
+            }
+        }
+        checkFinished(result);
+        if (result.getStatus() == Status.BUFFER_OVERFLOW) {
+            throw new SSLException("TLS record does not fit a " + bufferSize + " byte buffer");
+        }
+        if (result.getStatus() == Status.CLOSED && !engine.isOutboundDone()) {
+            throw new SSLException("TLS session closed");
+        }
+        return result.bytesConsumed();
+    }
+
+    /**
+     * Writes pending ciphertext. Returns true if none is left.
+     */
+    public boolean flush() throws IOException {
+        if (netOut == null) {
+            return true;
+        }
+        channel.write(netOut);
+        metrics.socketWrite();
+        if (netOut.hasRemaining()) {
+            return false;
+        }
+        netOut = release(netOut);
+        return true;
+    }
+
+    private void checkFinished(SSLEngineResult result) {
+        if (!handshaken && result.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+            handshaken = true;
+            metrics.tlsHandshake(System.nanoTime() - startNanos,
+                    TlsConfig.isResumed(engine.getSession(), startMillis));
+        }
+    }
+
+    public boolean hasPendingOutput() {
+        return netOut != null;
+    }
+
+    public boolean isHandshaking() {
+        HandshakeStatus handshake = engine.getHandshakeStatus();
+        return handshake != HandshakeStatus.NOT_HANDSHAKING && handshake != HandshakeStatus.FINISHED;
+    }
+
+    public boolean needsTasks() {
+        return engine.getHandshakeStatus() == HandshakeStatus.NEED_TASK;
+    }
+
+    /**
+     * Runs the engine's delegated tasks. May block for a while; call it off
+     * the event loop.
+     */
+    public void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Sends close_notify if the channel takes it right away and gives the
+     * buffers back. The channel itself is left to the caller.
+     */
+    public void close() {
+        try {
+            engine.closeOutbound();
+            if (flush()) {
+                wrap(EMPTY);
+                flush();
+            }
+        } catch (IOException e) {
+            // Closing anyway
+        } finally {
+            netIn = release(netIn);
+            appIn = release(appIn);
+            netOut = release(netOut);
+        }
+    }
+
+    private ByteBuffer release(ByteBuffer buffer) {
+        if (buffer != null) {
+            pool.release(buffer);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,60 @@
+package Hn;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket refilled at a steady rate and holding at most a burst's
+ * worth of tokens, kept in one {@link AtomicLong} so that taking a token is
+ * a compare-and-set and never blocks.
+ *
+ * <p>The long is the time at which the bucket will be full again, which says
+ * as much as a token count and a refill time would without two fields that
+ * must change together. {@link #take} always takes its token, going into
+ * debt when the bucket is empty, and returns how long the caller must wait
+ * before acting on it. Callers wait that long before taking another, so
+ * each can owe at most one token and the debt stays bounded without a
+ * queue of waiters.
+ */
+public final class TokenBucket {
+
+    // Time for one token to come back
+    private final long intervalNanos;
+    // Time for an empty bucket to fill up
+    private final long capacityNanos;
+    private final AtomicLong fullAt;
+
+    /**
+     * @param rate tokens added per second
+     * @param burst tokens the bucket holds when full, at least 1
+     */
+    public TokenBucket(double rate, int burst) {
+        if (rate <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Invalid rate limit: " + rate + "/s, burst " + burst);
+        }
+        this.intervalNanos = Math.max(1, (long) (1e9 / rate));
+        this.capacityNanos = intervalNanos * burst;
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * A bucket for {@code rate} tokens a second, or null for no limit if the
+     * rate is 0 or less.
+     */
+    static TokenBucket of(double rate, int burst) {
+        return rate > 0 ? new TokenBucket(rate, Math.max(1, burst)) : null;
+    }
+
+    /**
+     * Takes a token and returns how many nanoseconds after {@code now} it
+     * may be used; 0 if the bucket had one.
+     */
+    public long take(long now) {
+        while (true) {
+            long full = fullAt.get();
+            long next = (full - now > 0 ? full : now) + intervalNanos;
+            if (fullAt.compareAndSet(full, next)) {
+                return Math.max(0, next - now - capacityNanos);
+            }
+        }
+    }
+}